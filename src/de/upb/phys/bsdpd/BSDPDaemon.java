@@ -22,7 +22,7 @@ package de.upb.phys.bsdpd;
 import jargs.gnu.CmdLineParser;
 import jargs.gnu.CmdLineParserWithHelp;
 
-import java.net.SocketException;
+import java.io.IOException;
 import java.net.SocketTimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -30,6 +30,9 @@ import java.util.logging.Logger;
 import org.apache.commons.daemon.Daemon;
 import org.apache.commons.daemon.DaemonContext;
 
+import de.upb.phys.bsdpd.BSDPServer.EXECUTION;
+import de.upb.phys.bsdpd.BSDPServer.TRANSPORT;
+import de.upb.phys.bsdpd.BSDPWorkerPool.OVERFLOW;
 import de.upb.phys.bsdpd.imageDB.BootImage;
 import de.upb.phys.bsdpd.imageDB.BootImageDatabase;
 
@@ -49,7 +52,11 @@ public class BSDPDaemon implements Daemon {
 				.log(
 						Level.INFO,
 						"Usage: bsdpd [--server] [-s] [-m serverName] [-p serverPath] [-t httpURL] [-a afpURL] [-n httpURL] [-o shadowURL]"
-								+ "[--nosanitychecks [true|false]] [-d [OFF|INFO|WARNING|SEVERE|<numeric value>]]");
+								+ "[--nosanitychecks [true|false]] [--watchImages [true|false]] [-d [OFF|INFO|WARNING|SEVERE|<numeric value>]]"
+								+ "[-i interfaces] [--shards n] [--receiveBatch n] [--transport [NIO|MMSG]] [-e executionMode] [-w workers] [-q queueSize] [--overflow [BLOCK|DROP_NEWEST|DROP_OLDEST]]"
+								+ "[--replyQueue n] [--replyBatch n] [--replyPacing us]"
+								+ "[--replyCache n] [--replyCacheTTL ms] [--listTemplates n] [--longOptions [true|false]]"
+								+ "[--clientRate n] [--clientBurst n] [--relayRate n] [--relayBurst n]");
 		l.log(Level.INFO, parser.getUsage());
 		l
 				.log(
@@ -74,6 +81,9 @@ public class BSDPDaemon implements Daemon {
 		CmdLineParser.Option sanitychecksOption = parser.addHelp(parser
 				.addStringOption("sanitychecks"),
 				"Disables checking of the Boot-Images files");
+		CmdLineParser.Option watchImagesOption = parser
+				.addHelp(parser.addStringOption("watchImages"),
+						"Reloads the Boot-Images when something in the image location changes");
 		CmdLineParser.Option settingsOption = parser.addHelp(parser
 				.addBooleanOption('s', "settings"),
 				"Set the settings for the BSDP-Server");
@@ -108,6 +118,65 @@ public class BSDPDaemon implements Daemon {
 						parser.addStringOption('d', "logLevel"),
 						"Defines the verbosity of this Server. One of INFO, WARNING, SEVERE, or a numeric value.");
 
+		CmdLineParser.Option interfacesOption = parser
+				.addHelp(parser.addStringOption('i', "interfaces"),
+						"Comma separated network interfaces to answer on, each gets its own listener. \"\" for all interfaces.");
+		CmdLineParser.Option listenerShardsOption = parser
+				.addHelp(parser.addIntegerOption("shards"),
+						"Number of sockets bound to port 67 with SO_REUSEPORT, each with its own receiving thread, workers, queues and caches (Linux).");
+		CmdLineParser.Option receiveBatchSizeOption = parser.addHelp(parser
+				.addIntegerOption("receiveBatch"),
+				"Maximum number of requests a listener reads at once.");
+		CmdLineParser.Option transportOption = parser
+				.addHelp(parser.addStringOption("transport"),
+						"Socket implementation. One of NIO, MMSG (recvmmsg/sendmmsg, needs Linux and Java 21 or later).");
+		CmdLineParser.Option executionModeOption = parser
+				.addHelp(parser.addStringOption('e', "execution"),
+						"Threads handling BSDP requests. One of SINGLE_THREAD, WORKER_POOL, VIRTUAL_THREADS (needs Java 21).");
+		CmdLineParser.Option workerThreadsOption = parser
+				.addHelp(parser.addIntegerOption('w', "workers"),
+						"Number of threads handling BSDP requests. 0 handles them on the receiving thread.");
+		CmdLineParser.Option queueCapacityOption = parser.addHelp(parser
+				.addIntegerOption('q', "queueSize"),
+				"Maximum number of requests waiting for a worker thread.");
+		CmdLineParser.Option overflowPolicyOption = parser
+				.addHelp(parser.addStringOption("overflow"),
+						"What to do if the request queue is full. One of BLOCK, DROP_NEWEST, DROP_OLDEST.");
+		CmdLineParser.Option replyQueueCapacityOption = parser
+				.addHelp(parser.addIntegerOption("replyQueue"),
+						"Maximum number of replies waiting for the sender thread. 0 sends them on the handling thread.");
+		CmdLineParser.Option replyBatchSizeOption = parser.addHelp(parser
+				.addIntegerOption("replyBatch"),
+				"Maximum number of replies the sender thread takes at once.");
+		CmdLineParser.Option replyPacingOption = parser
+				.addHelp(parser.addIntegerOption("replyPacing"),
+						"Minimum time between two replies in microseconds. 0 disables pacing.");
+
+		CmdLineParser.Option replyCacheSizeOption = parser
+				.addHelp(parser.addIntegerOption("replyCache"),
+						"Number of recent requests whose replies are resent on a retransmission. 0 disables the cache.");
+		CmdLineParser.Option replyCacheTTLOption = parser.addHelp(parser
+				.addIntegerOption("replyCacheTTL"),
+				"Time in milliseconds the replies to a request are kept.");
+		CmdLineParser.Option listTemplatesOption = parser
+				.addHelp(parser.addIntegerOption("listTemplates"),
+						"Number of encoded LIST replies reused for clients of the same model. 0 disables the templates.");
+		CmdLineParser.Option longOptionsOption = parser
+				.addHelp(parser.addStringOption("longOptions"),
+						"Splits the BSDP options of LIST replies over several options (RFC 3396) for clients sending a maximum message size.");
+		CmdLineParser.Option clientRateOption = parser
+				.addHelp(parser.addIntegerOption("clientRate"),
+						"Requests per second accepted from one client (MAC address). 0 for no limit.");
+		CmdLineParser.Option clientBurstOption = parser.addHelp(parser
+				.addIntegerOption("clientBurst"),
+				"Requests accepted from one client at once.");
+		CmdLineParser.Option relayRateOption = parser
+				.addHelp(parser.addIntegerOption("relayRate"),
+						"Requests per second accepted through one relay (giaddr). 0 for no limit.");
+		CmdLineParser.Option relayBurstOption = parser.addHelp(parser
+				.addIntegerOption("relayBurst"),
+				"Requests accepted through one relay at once.");
+
 		CmdLineParser.Option help = parser.addHelp(parser.addBooleanOption('h',
 				"help"), "Show this help message");
 
@@ -192,6 +261,121 @@ public class BSDPDaemon implements Daemon {
 			BootImageDatabase.bootImageDB.setSanityChecks(Boolean
 					.parseBoolean(sanitychecksOptionValue));
 		}
+		String watchImagesOptionValue = (String) parser
+				.getOptionValue(watchImagesOption);
+		if (watchImagesOptionValue != null) {
+			BootImageDatabase.bootImageDB.setWatchImages(Boolean
+					.parseBoolean(watchImagesOptionValue));
+		}
+
+		String interfacesOptionValue = (String) parser
+				.getOptionValue(interfacesOption);
+		if (interfacesOptionValue != null) {
+			BSDPServerConfig.serverConfig.setInterfaces(interfacesOptionValue);
+		}
+		Integer listenerShardsOptionValue = (Integer) parser
+				.getOptionValue(listenerShardsOption);
+		if (listenerShardsOptionValue != null) {
+			BSDPServerConfig.serverConfig
+					.setListenerShards(listenerShardsOptionValue);
+		}
+		Integer receiveBatchSizeOptionValue = (Integer) parser
+				.getOptionValue(receiveBatchSizeOption);
+		if (receiveBatchSizeOptionValue != null) {
+			BSDPServerConfig.serverConfig
+					.setReceiveBatchSize(receiveBatchSizeOptionValue);
+		}
+		String transportOptionValue = (String) parser
+				.getOptionValue(transportOption);
+		if (transportOptionValue != null) {
+			BSDPServerConfig.serverConfig.setTransport(TRANSPORT
+					.valueOf(transportOptionValue));
+		}
+		String executionModeOptionValue = (String) parser
+				.getOptionValue(executionModeOption);
+		if (executionModeOptionValue != null) {
+			BSDPServerConfig.serverConfig.setExecutionMode(EXECUTION
+					.valueOf(executionModeOptionValue));
+		}
+		Integer workerThreadsOptionValue = (Integer) parser
+				.getOptionValue(workerThreadsOption);
+		if (workerThreadsOptionValue != null) {
+			BSDPServerConfig.serverConfig
+					.setWorkerThreads(workerThreadsOptionValue);
+		}
+		Integer queueCapacityOptionValue = (Integer) parser
+				.getOptionValue(queueCapacityOption);
+		if (queueCapacityOptionValue != null) {
+			BSDPServerConfig.serverConfig
+					.setQueueCapacity(queueCapacityOptionValue);
+		}
+		String overflowPolicyOptionValue = (String) parser
+				.getOptionValue(overflowPolicyOption);
+		if (overflowPolicyOptionValue != null) {
+			BSDPServerConfig.serverConfig.setOverflowPolicy(OVERFLOW
+					.valueOf(overflowPolicyOptionValue));
+		}
+		Integer replyQueueCapacityOptionValue = (Integer) parser
+				.getOptionValue(replyQueueCapacityOption);
+		if (replyQueueCapacityOptionValue != null) {
+			BSDPServerConfig.serverConfig
+					.setReplyQueueCapacity(replyQueueCapacityOptionValue);
+		}
+		Integer replyBatchSizeOptionValue = (Integer) parser
+				.getOptionValue(replyBatchSizeOption);
+		if (replyBatchSizeOptionValue != null) {
+			BSDPServerConfig.serverConfig
+					.setReplyBatchSize(replyBatchSizeOptionValue);
+		}
+		Integer replyPacingOptionValue = (Integer) parser
+				.getOptionValue(replyPacingOption);
+		if (replyPacingOptionValue != null) {
+			BSDPServerConfig.serverConfig.setReplyPacing(replyPacingOptionValue);
+		}
+		Integer replyCacheSizeOptionValue = (Integer) parser
+				.getOptionValue(replyCacheSizeOption);
+		if (replyCacheSizeOptionValue != null) {
+			BSDPServerConfig.serverConfig
+					.setReplyCacheSize(replyCacheSizeOptionValue);
+		}
+		Integer replyCacheTTLOptionValue = (Integer) parser
+				.getOptionValue(replyCacheTTLOption);
+		if (replyCacheTTLOptionValue != null) {
+			BSDPServerConfig.serverConfig
+					.setReplyCacheTTL(replyCacheTTLOptionValue);
+		}
+		Integer listTemplatesOptionValue = (Integer) parser
+				.getOptionValue(listTemplatesOption);
+		if (listTemplatesOptionValue != null) {
+			BSDPServerConfig.serverConfig
+					.setListTemplates(listTemplatesOptionValue);
+		}
+		String longOptionsOptionValue = (String) parser
+				.getOptionValue(longOptionsOption);
+		if (longOptionsOptionValue != null) {
+			BSDPServerConfig.serverConfig.setLongOptions(Boolean
+					.parseBoolean(longOptionsOptionValue));
+		}
+		Integer clientRateOptionValue = (Integer) parser
+				.getOptionValue(clientRateOption);
+		if (clientRateOptionValue != null) {
+			BSDPServerConfig.serverConfig.setClientRate(clientRateOptionValue);
+		}
+		Integer clientBurstOptionValue = (Integer) parser
+				.getOptionValue(clientBurstOption);
+		if (clientBurstOptionValue != null) {
+			BSDPServerConfig.serverConfig.setClientBurst(clientBurstOptionValue);
+		}
+		Integer relayRateOptionValue = (Integer) parser
+				.getOptionValue(relayRateOption);
+		if (relayRateOptionValue != null) {
+			BSDPServerConfig.serverConfig.setRelayRate(relayRateOptionValue);
+		}
+		Integer relayBurstOptionValue = (Integer) parser
+				.getOptionValue(relayBurstOption);
+		if (relayBurstOptionValue != null) {
+			BSDPServerConfig.serverConfig.setRelayBurst(relayBurstOptionValue);
+		}
 
 		if (settings) {
 			printSettings();
@@ -222,8 +406,46 @@ public class BSDPDaemon implements Daemon {
 				+ BootImageDatabase.bootImageDB.getShadowMountPathLocal());
 		l.log(Level.INFO, "SanityChecks:      "
 				+ BootImageDatabase.bootImageDB.isSanityChecks());
+		l.log(Level.INFO, "Watch Images:      "
+				+ BootImageDatabase.bootImageDB.isWatchImages());
 		l.log(Level.INFO, "Log Level:         "
 				+ BootImageDatabase.bootImageDB.getLogLevel());
+		l.log(Level.INFO, "Interfaces:        "
+				+ BSDPServerConfig.serverConfig.getInterfaces());
+		l.log(Level.INFO, "Listener Shards:   "
+				+ BSDPServerConfig.serverConfig.getListenerShards());
+		l.log(Level.INFO, "Receive Batch:     "
+				+ BSDPServerConfig.serverConfig.getReceiveBatchSize());
+		l.log(Level.INFO, "Transport:         "
+				+ BSDPServerConfig.serverConfig.getTransport());
+		l.log(Level.INFO, "Execution Mode:    "
+				+ BSDPServerConfig.serverConfig.getExecutionMode());
+		l.log(Level.INFO, "Worker Threads:    "
+				+ BSDPServerConfig.serverConfig.getWorkerThreads());
+		l.log(Level.INFO, "Queue Size:        "
+				+ BSDPServerConfig.serverConfig.getQueueCapacity());
+		l.log(Level.INFO, "Queue Overflow:    "
+				+ BSDPServerConfig.serverConfig.getOverflowPolicy());
+		l.log(Level.INFO, "Reply Queue Size:  "
+				+ BSDPServerConfig.serverConfig.getReplyQueueCapacity());
+		l.log(Level.INFO, "Reply Batch Size:  "
+				+ BSDPServerConfig.serverConfig.getReplyBatchSize());
+		l.log(Level.INFO, "Reply Pacing (us): "
+				+ BSDPServerConfig.serverConfig.getReplyPacing());
+		l.log(Level.INFO, "Reply Cache Size:  "
+				+ BSDPServerConfig.serverConfig.getReplyCacheSize());
+		l.log(Level.INFO, "Reply Cache (ms):  "
+				+ BSDPServerConfig.serverConfig.getReplyCacheTTL());
+		l.log(Level.INFO, "LIST Templates:    "
+				+ BSDPServerConfig.serverConfig.getListTemplates());
+		l.log(Level.INFO, "Long Options:      "
+				+ BSDPServerConfig.serverConfig.isLongOptions());
+		l.log(Level.INFO, "Client Rate Limit: "
+				+ BSDPServerConfig.serverConfig.getClientRate() + "/s, burst "
+				+ BSDPServerConfig.serverConfig.getClientBurst());
+		l.log(Level.INFO, "Relay Rate Limit:  "
+				+ BSDPServerConfig.serverConfig.getRelayRate() + "/s, burst "
+				+ BSDPServerConfig.serverConfig.getRelayBurst());
 		l.log(Level.INFO, "");
 		l.log(Level.INFO, "Images:");
 		l.log(Level.INFO, CmdLineParserWithHelp.pad("Name", 25) + "\t"
@@ -276,7 +498,7 @@ public class BSDPDaemon implements Daemon {
 						if (!acceptSocketTimeoutException) {
 							throw new RuntimeException(e);
 						}
-					} catch (SocketException e) {
+					} catch (IOException e) {
 						throw new RuntimeException(e.getMessage(), e);
 					} catch (ClassNotFoundException e) {
 						throw new RuntimeException(e.getMessage(), e);
@@ -0,0 +1,245 @@
+/*
+ *    BSDPServer - Implements Apple's Boot Service Discover Protocol
+ *     in Java. "jbsdpd"
+ *    Copyright (C) 2015  Jan-Philipp Hülshoff <github@bklosr.de>
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package de.upb.phys.bsdpd;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.upb.phys.bsdpd.imageDB.BootImage;
+import de.upb.phys.bsdpd.imageDB.BootImage.ARCH;
+
+/**
+ * Keeps the encoded LIST replies for each combination of server identity,
+ * architecture, system identifier, image filter, default image and maximum
+ * message size.
+ *
+ * Every client of the same model gets the same LIST replies but for the
+ * fields copied from its request. A reply from a template only gets these
+ * fields patched in, nothing is encoded again. The templates are dropped when
+ * the generation of the image database changes.
+ *
+ * @author jph
+ *
+ */
+public class BSDPListTemplates {
+
+	private static final int HTYPE_OFFSET = 1;
+	private static final int HLEN_OFFSET = 2;
+	private static final int HOPS_OFFSET = 3;
+	private static final int XID_OFFSET = 4;
+	private static final int SECS_OFFSET = 8;
+	private static final int FLAGS_OFFSET = 10;
+	private static final int CIADDR_OFFSET = 12;
+	private static final int GIADDR_OFFSET = 24;
+	private static final int CHADDR_OFFSET = 28;
+	private static final int CHADDR_LENGTH = 16;
+
+	/**
+	 * Identifies the requests getting the same LIST replies.
+	 */
+	public static class Key {
+		private final BSDPServerIdentity identity;
+		private final ARCH arch;
+		private final String systemIdentifier;
+		private final byte[] filter;
+		private final BootImage defaultImage;
+		private final int maxMessageSize;
+
+		/**
+		 * @param filter
+		 *            encoded image attribute filter list of the request, null
+		 *            if none
+		 * @param defaultImage
+		 *            default image of the client, null if none
+		 * @param maxMessageSize
+		 *            maximum size of the replies with long options, 0 if none
+		 */
+		public Key(BSDPServerIdentity identity, ARCH arch,
+				String systemIdentifier, byte[] filter,
+				BootImage defaultImage, int maxMessageSize) {
+			this.identity = identity;
+			this.arch = arch;
+			this.systemIdentifier = systemIdentifier;
+			this.filter = filter;
+			this.defaultImage = defaultImage;
+			this.maxMessageSize = maxMessageSize;
+		}
+
+		@Override
+		public int hashCode() {
+			int hash = identity.hashCode();
+			hash = hash * 31 + arch.hashCode();
+			hash = hash * 31 + systemIdentifier.hashCode();
+			hash = hash * 31 + Arrays.hashCode(filter);
+			hash = hash * 31 + maxMessageSize;
+			return hash * 31
+					+ (defaultImage == null ? 0 : defaultImage.hashCode());
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return arch == other.arch && defaultImage == other.defaultImage
+					&& maxMessageSize == other.maxMessageSize
+					&& identity.equals(other.identity)
+					&& systemIdentifier.equals(other.systemIdentifier)
+					&& Arrays.equals(filter, other.filter);
+		}
+	}
+
+	private final int maxEntries;
+	private final LinkedHashMap<Key, List<byte[]>> templates = new LinkedHashMap<Key, List<byte[]>>();
+	private long generation;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong invalidations = new AtomicLong();
+
+	/**
+	 * @param maxEntries
+	 *            maximum number of kept combinations
+	 */
+	public BSDPListTemplates(int maxEntries) {
+		if (maxEntries < 1) {
+			throw new IllegalArgumentException(
+					"There must be room for at least one template.");
+		}
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * @param generation
+	 *            current generation of the image database
+	 * @return the encoded replies or null if there are none for the key or
+	 *         the generation is older than the one of the templates.
+	 */
+	public List<byte[]> get(Key key, long generation) {
+		synchronized (templates) {
+			if (generation != this.generation) {
+				if (generation < this.generation) {
+					// Read before a reload, the templates are newer.
+					misses.incrementAndGet();
+					return null;
+				}
+				invalidate(generation);
+			}
+			List<byte[]> packets = templates.get(key);
+			if (packets != null) {
+				hits.incrementAndGet();
+				return packets;
+			}
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Remembers the encoded replies of a key.
+	 *
+	 * @param generation
+	 *            generation of the image database the replies were built from
+	 */
+	public void put(Key key, long generation, List<byte[]> packets) {
+		synchronized (templates) {
+			if (generation != this.generation) {
+				if (generation < this.generation) {
+					// Built from images which are outdated by now.
+					return;
+				}
+				invalidate(generation);
+			}
+			templates.remove(key);
+			templates.put(key, Collections.unmodifiableList(packets));
+			Iterator<Key> it = templates.keySet().iterator();
+			while (templates.size() > maxEntries) {
+				it.next();
+				it.remove();
+			}
+		}
+	}
+
+	private void invalidate(long generation) {
+		templates.clear();
+		this.generation = generation;
+		invalidations.incrementAndGet();
+	}
+
+	/**
+	 * Writes a reply from a template into a buffer and copies the client
+	 * specific fields of the request into it.
+	 */
+	public static void writeReply(ByteBuffer out, byte[] template,
+			BSDPRequest request) {
+		int base = out.position();
+		out.put(template);
+		out.put(base + HTYPE_OFFSET, request.getHtype());
+		out.put(base + HLEN_OFFSET, request.getHlen());
+		out.put(base + HOPS_OFFSET, request.getHops());
+		out.putInt(base + XID_OFFSET, request.getXid());
+		out.putShort(base + SECS_OFFSET, request.getSecs());
+		out.putShort(base + FLAGS_OFFSET, request.getFlags());
+		put(out, base + CIADDR_OFFSET, request.getRawCiaddr(), 4);
+		put(out, base + GIADDR_OFFSET, request.getRawGiaddr(), 4);
+		put(out, base + CHADDR_OFFSET, request.getRawChaddr(), CHADDR_LENGTH);
+	}
+
+	private static void put(ByteBuffer out, int index, byte[] data, int length) {
+		for (int i = 0; i < length; i++) {
+			out.put(index + i, i < data.length ? data[i] : 0);
+		}
+	}
+
+	public int size() {
+		synchronized (templates) {
+			return templates.size();
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getInvalidations() {
+		return invalidations.get();
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "@" + hashCode() + "[maxEntries="
+				+ maxEntries + ",size=" + size() + ",hits=" + getHits()
+				+ ",misses=" + getMisses() + ",invalidations="
+				+ getInvalidations() + "]";
+	}
+}
@@ -0,0 +1,434 @@
+/*
+ *    BSDPServer - Implements Apple's Boot Service Discover Protocol
+ *     in Java. "jbsdpd"
+ *    Copyright (C) 2015  Jan-Philipp Hülshoff <github@bklosr.de>
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package de.upb.phys.bsdpd;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import de.upb.phys.bsdpd.BSDPRequestDispatcher.RequestHandler;
+import de.upb.phys.bsdpd.transport.BSDPBufferPool;
+import de.upb.phys.bsdpd.transport.BSDPTransport;
+import edu.bucknell.net.JDHCP.DHCPMessage;
+
+/**
+ * Receive loop of one socket of the BSDP-Server.
+ * 
+ * Every listener owns its transport and receive buffers, so several listeners
+ * (e.g. SO_REUSEPORT shards) do not share any state on the receive path.
+ * Received requests remember their listener and the replies are sent through
+ * it, either directly or by a {@link BSDPReplySender}.
+ * 
+ * Only DHCPINFORM requests of BSDP clients are parsed. All other DHCP traffic,
+ * e.g. of a DHCP server on the same segment, is recognized in the received
+ * buffer and dropped without allocating anything.
+ * 
+ * @author jph
+ * 
+ */
+public class BSDPListener implements Runnable {
+
+	private static final Logger l = Logger.getLogger("bsdpd");
+
+	/** Start of the vendor class identifier (option 60) of BSDP clients. */
+	private static final byte[] BSDP_VENDOR_CLASS = "AAPLBSDPC".getBytes();
+
+	private final String name;
+	private volatile BSDPTransport transport;
+	/** Transport replacing the current one, see {@link #rebind(BSDPTransport)}. */
+	private final AtomicReference<BSDPTransport> nextTransport = new AtomicReference<BSDPTransport>();
+	private final BSDPServerIdentities identities;
+	private final String interfaceName;
+	private final BSDPRequestDispatcher dispatcher;
+	private final RequestHandler handler;
+	private final BSDPReplySender replySender;
+	private final int receiveBatchSize;
+	private final BSDPRateLimiter rateLimiter;
+	private final BSDPReplyCache replyCache;
+	private final BSDPPacketView packet = new BSDPPacketView();
+	/** Decodes every request, it is only read into a {@link BSDPRequest}. */
+	private final BSDPMessage decoded = new BSDPMessage();
+	private volatile boolean running = true;
+
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong receiveErrors = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong notInform = new AtomicLong();
+	private final AtomicLong notBSDP = new AtomicLong();
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong sendErrors = new AtomicLong();
+
+	/**
+	 * @param name
+	 *            name used in the log
+	 * @param transport
+	 *            socket to listen on, owned by the listener
+	 * @param identities
+	 *            server identities of the network interfaces
+	 * @param interfaceName
+	 *            interface the transport is bound to or null if it is bound
+	 *            to all interfaces
+	 * @param dispatcher
+	 *            hands the requests to the handler threads; null to call the
+	 *            handler on the receiving thread
+	 * @param handler
+	 *            handles a request
+	 * @param replySender
+	 *            sends the replies; null to send them on the handling thread
+	 * @param receiveBatchSize
+	 *            maximum number of datagrams read from the transport at once
+	 * @param rateLimiter
+	 *            drops requests of flooding clients before they are parsed;
+	 *            null to accept all requests
+	 * @param replyCache
+	 *            answers retransmissions without parsing them; null to handle
+	 *            every request
+	 */
+	public BSDPListener(String name, BSDPTransport transport,
+			BSDPServerIdentities identities, String interfaceName,
+			BSDPRequestDispatcher dispatcher, RequestHandler handler,
+			BSDPReplySender replySender, int receiveBatchSize,
+			BSDPRateLimiter rateLimiter, BSDPReplyCache replyCache) {
+		this.name = name;
+		this.transport = transport;
+		this.identities = identities;
+		this.interfaceName = interfaceName;
+		this.dispatcher = dispatcher;
+		this.handler = handler;
+		this.replySender = replySender;
+		this.receiveBatchSize = receiveBatchSize;
+		this.rateLimiter = rateLimiter;
+		this.replyCache = replyCache;
+	}
+
+	@Override
+	public void run() {
+		l.log(Level.INFO, name + ": Receiving...");
+		ByteBuffer[] datagrams = new ByteBuffer[receiveBatchSize];
+		for (int i = 0; i < datagrams.length; i++) {
+			datagrams[i] = ByteBuffer.allocateDirect(BSDPTransport.PACKET_SIZE);
+		}
+		byte[] frame = new byte[BSDPTransport.PACKET_SIZE];
+		while (running) {
+			BSDPTransport next = nextTransport.getAndSet(null);
+			if (next != null) {
+				BSDPTransport previous = transport;
+				transport = next;
+				previous.close();
+				l.log(Level.INFO, "{0}: Now bound to {1}.", new Object[] {
+						name, next.getLocalAddress() });
+			}
+			int count;
+			try {
+				count = transport.receive(datagrams);
+			} catch (IOException e) {
+				if (running) {
+					l.log(Level.SEVERE, name + ": Receive failed!", e);
+				}
+				break;
+			}
+			if (count == 0) {
+				l.log(Level.FINEST, "{0}: Woken up without a datagram.", name);
+				continue;
+			}
+			for (int i = 0; i < count; i++) {
+				handleDatagram(datagrams[i], frame);
+			}
+		}
+	}
+
+	private void handleDatagram(ByteBuffer datagram, byte[] frame) {
+		received.incrementAndGet();
+		boolean pending = false;
+		try {
+			if (!packet.wrap(datagram)) {
+				receiveErrors.incrementAndGet();
+				l.log(Level.FINE, "{0}: Dropped a malformed packet.", name);
+				return;
+			}
+			if (packet.getMessageType() != DHCPMessage.INFORM) {
+				notInform.incrementAndGet();
+				return;
+			}
+			if (!packet.vendorClassStartsWith(BSDP_VENDOR_CLASS)) {
+				notBSDP.incrementAndGet();
+				return;
+			}
+			if (rateLimiter != null && !rateLimiter.admit(packet)) {
+				l.log(Level.FINE, "{0}: Rate limit exceeded, dropped a request.",
+						name);
+				return;
+			}
+			if (replyCache != null) {
+				List<BSDPReplyCache.Reply> cachedReplies = replyCache
+						.get(packet);
+				if (cachedReplies != null && cachedReplies.isEmpty()) {
+					l.log(Level.FINE,
+							"{0}: Retransmission of a request being handled, dropped it.",
+							name);
+					return;
+				}
+				if (cachedReplies != null) {
+					l.log(Level.INFO,
+							"{0}: Retransmission, sending the cached replies...",
+							name);
+					for (BSDPReplyCache.Reply reply : cachedReplies) {
+						send(reply.getDatagram(), reply.getDestination());
+					}
+					return;
+				}
+				pending = true;
+			}
+			int length = datagram.remaining();
+			datagram.get(frame, 0, length);
+			Arrays.fill(frame, length, frame.length, (byte) 0);
+			BSDPRequest request;
+			try {
+				decoded.internalize(frame);
+				request = new BSDPRequest(decoded, this);
+			} finally {
+				decoded.reset();
+			}
+			if (dispatcher != null) {
+				dispatcher.submit(request);
+			} else {
+				handler.handle(request);
+			}
+		} catch (InterruptedException e) {
+			if (pending) {
+				cancelPending();
+			}
+			l.log(Level.FINE, name + ": Interrupted while queueing.");
+		} catch (Exception e) {
+			if (pending) {
+				cancelPending();
+			}
+			receiveErrors.incrementAndGet();
+			l.log(Level.SEVERE, "Error while handling receive!");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Lets retransmissions of the packet which could not be handled be handled
+	 * again.
+	 */
+	private void cancelPending() {
+		if (replyCache != null) {
+			replyCache.cancel(packet);
+		}
+	}
+
+	/**
+	 * Called by the dispatcher if it dropped a request received by this
+	 * listener.
+	 */
+	public void requestDropped(BSDPRequest request) {
+		dropped.incrementAndGet();
+		if (replyCache != null) {
+			replyCache.cancel(request);
+		}
+	}
+
+	/**
+	 * @return the server identity to use in the replies to the request.
+	 */
+	public BSDPServerIdentity getServerIdentity(BSDPRequest request) {
+		if (interfaceName != null) {
+			BSDPServerIdentity identity = identities.get(interfaceName);
+			if (identity != null) {
+				return identity;
+			}
+		}
+		return identities.select(request.getRawGiaddr(), request
+				.getRawCiaddr());
+	}
+
+	/**
+	 * Sends an encoded reply through the socket of this listener. With a reply
+	 * sender the reply is only queued.
+	 * 
+	 * @param datagram
+	 *            the encoded reply, it is not modified
+	 */
+	public void send(byte[] datagram, InetSocketAddress destination)
+			throws IOException {
+		send(ByteBuffer.wrap(datagram), destination, null);
+	}
+
+	/**
+	 * Sends an encoded reply through the socket of this listener. With a reply
+	 * sender the reply is only queued.
+	 * 
+	 * @param datagram
+	 *            the encoded reply between position and limit
+	 * @param pool
+	 *            pool the buffer is returned to after sending; null if the
+	 *            buffer is not pooled
+	 */
+	public void send(ByteBuffer datagram, InetSocketAddress destination,
+			BSDPBufferPool pool) throws IOException {
+		if (replySender != null) {
+			replySender.submit(this, datagram, destination, pool);
+			return;
+		}
+		try {
+			transmit(datagram, destination);
+		} finally {
+			if (pool != null) {
+				pool.release(datagram);
+			}
+		}
+	}
+
+	/**
+	 * Writes an encoded reply to the socket.
+	 */
+	void transmit(ByteBuffer datagram, InetSocketAddress destination)
+			throws IOException {
+		try {
+			transport.send(datagram, destination);
+			sent.incrementAndGet();
+		} catch (IOException e) {
+			sendErrors.incrementAndGet();
+			throw e;
+		}
+	}
+
+	/**
+	 * Writes a batch of encoded replies to the socket.
+	 *
+	 * @return number of replies sent, the others failed.
+	 */
+	int transmit(ByteBuffer[] datagrams, InetSocketAddress[] destinations,
+			int count) {
+		int sentNow;
+		try {
+			sentNow = transport.send(datagrams, destinations, count);
+		} catch (IOException e) {
+			l.log(Level.INFO, name + ": Couldn't send packet to "
+					+ destinations[0] + ": " + e.getMessage());
+			sentNow = 0;
+		}
+		sent.addAndGet(sentNow);
+		sendErrors.addAndGet(count - sentNow);
+		return sentNow;
+	}
+
+	/**
+	 * Replaces the transport, e.g. because the address of the interface of
+	 * this listener changed. The receiving thread switches to the new
+	 * transport and closes the current one; replies still being sent through
+	 * it fail.
+	 */
+	public void rebind(BSDPTransport transport) {
+		BSDPTransport displaced = nextTransport.getAndSet(transport);
+		if (displaced != null) {
+			displaced.close();
+		}
+		this.transport.wakeup();
+	}
+
+	/**
+	 * @return the address the transport of this listener is bound to.
+	 */
+	public InetSocketAddress getLocalAddress() {
+		return transport.getLocalAddress();
+	}
+
+	/**
+	 * @return the interface the listener is bound to or null if it is bound to
+	 *         all interfaces.
+	 */
+	public String getInterfaceName() {
+		return interfaceName;
+	}
+
+	/**
+	 * Makes {@link #run()} return as soon as possible.
+	 */
+	public void stop() {
+		running = false;
+		transport.wakeup();
+	}
+
+	public void close() {
+		transport.close();
+		BSDPTransport next = nextTransport.getAndSet(null);
+		if (next != null) {
+			next.close();
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getReceived() {
+		return received.get();
+	}
+
+	public long getReceiveErrors() {
+		return receiveErrors.get();
+	}
+
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return number of well formed packets dropped because they are no
+	 *         DHCPINFORM.
+	 */
+	public long getNotInform() {
+		return notInform.get();
+	}
+
+	/**
+	 * @return number of DHCPINFORM packets dropped because they are not sent
+	 *         by a BSDP client.
+	 */
+	public long getNotBSDP() {
+		return notBSDP.get();
+	}
+
+	public long getSent() {
+		return sent.get();
+	}
+
+	public long getSendErrors() {
+		return sendErrors.get();
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "@" + hashCode() + "[name=" + name
+				+ ",received=" + getReceived() + ",receiveErrors="
+				+ getReceiveErrors() + ",notInform=" + getNotInform()
+				+ ",notBSDP=" + getNotBSDP() + ",dropped=" + getDropped() + ",sent="
+				+ getSent() + ",sendErrors=" + getSendErrors() + "]";
+	}
+}
@@ -20,10 +20,12 @@
 package de.upb.phys.bsdpd;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 
 import de.upb.phys.bsdpd.bsdppackets.BSDPOption;
 import de.upb.phys.bsdpd.bsdppackets.DHCPOption;
 import edu.bucknell.net.JDHCP.DHCPMessage;
+import edu.bucknell.net.JDHCP.DHCPOptions;
 
 /**
  * BSDP Packet sent/received with/from the socket.
@@ -84,12 +86,17 @@ import edu.bucknell.net.JDHCP.DHCPMessage;
  * 
  * 
  * 
+ * A message is not thread safe. Received messages are only decoded and then
+ * read into an immutable {@link BSDPRequest}, replies are built by a
+ * {@link BSDPReplyBuilder} and only encoded afterwards.
+ * 
  * @author jph
  * 
  */
 public class BSDPMessage extends DHCPMessage {
 
 	private BSDPOptions bsdpOptionsList = null;
+	private int maxMessageSize = 0;
 
 	public static final byte BSDP_OPTION_MESSAGETYPE = 1;
 	public static final byte BSDP_OPTION_VERSION = 2;
@@ -103,26 +110,186 @@ public class BSDPMessage extends DHCPMessage {
 	public static final byte BSDP_OPTION_FIRMWAREVERSION = 10;
 	public static final byte BSDP_OPTION_IMAGEATTRIBUTESFILTER = 11;
 
+	/** Maximum length of the vendor specific option with the BSDP options. */
+	public static final int BSDP_OPTIONS_MAX_LENGTH = 255;
+
+	/** Code and length of an option. */
+	private static final int OPTION_HEADER_LENGTH = 2;
+	/** Vendor magic cookie in front of the options. */
+	private static final int MAGIC_COOKIE_LENGTH = 4;
+	/** Vendor class of every BSDP message, shared and never modified. */
+	private static final byte[] VENDOR_CLASS = "AAPLBSDPC".getBytes();
+
 	public BSDPMessage() {
-		setOption((byte) 60, "AAPLBSDPC".getBytes());
+		setOption((byte) 60, VENDOR_CLASS);
 		bsdpOptionsList = new BSDPOptions();
 	}
 
+	/**
+	 * Resets the message to the state of a new message, with the vendor class
+	 * set and without BSDP options.
+	 */
 	@Override
-	public synchronized byte[] externalize() {
-		byte[] options = new byte[312];
-		options = bsdpOptionsList.externalize();
-		setOption((byte) 43, options);
-		return super.externalize();
+	public void reset() {
+		super.reset();
+		bsdpOptionsList.clear();
+		maxMessageSize = 0;
+		setOption((byte) 60, VENDOR_CLASS);
 	}
 
+	/**
+	 * Encodes the message with the buffer encoder, so option 43 is not set as
+	 * a side effect.
+	 */
 	@Override
-	public synchronized BSDPMessage internalize(byte[] ibuff) {
-		super.internalize(ibuff);
-		byte[] options = getOption((byte) 43);
-		if (options != null) {
-			bsdpOptionsList.internalize(options);
+	public byte[] externalize() {
+		ByteBuffer out = ByteBuffer.allocate(maxMessageSize != 0 ? maxMessageSize
+				: FIXED_FIELDS_LENGTH + MAGIC_COOKIE_LENGTH
+						+ getOptionsList().getEncodedLength(43)
+						+ OPTION_HEADER_LENGTH + BSDP_OPTIONS_MAX_LENGTH + 1);
+		externalize(out);
+		byte[] data = new byte[out.position()];
+		out.flip();
+		out.get(data);
+		return data;
+	}
+
+	/**
+	 * Writes the BSDP options straight into option 43 of the buffer.
+	 * 
+	 * If they are longer than 255 bytes and a maximum message size is set,
+	 * option 43 is split into several instances (RFC 3396). If these do not
+	 * fit into the options field, the empty file and sname fields carry the
+	 * rest (option 52).
+	 */
+	@Override
+	protected void externalizeOptions(DHCPOptions options, ByteBuffer out) {
+		int messageStart = out.position() - FIXED_FIELDS_LENGTH;
+		options.externalizeExcept(out, 43);
+		if (bsdpOptionsList.getEncodedLength() >= BSDP_OPTIONS_MAX_LENGTH) {
+			if (maxMessageSize == 0) {
+				throw new IllegalStateException(
+						"BSDP Vendor Option payload must be less or equal than 255 bytes.");
+			}
+			externalizeLongOptions(out, messageStart);
+			return;
+		}
+		out.put((byte) 43);
+		int lengthPosition = out.position();
+		out.put((byte) 0);
+		bsdpOptionsList.externalize(out);
+		out.put(lengthPosition, (byte) (out.position() - lengthPosition - 1));
+		out.put((byte) 255); // insert end option
+	}
+
+	private void externalizeLongOptions(ByteBuffer out, int messageStart) {
+		byte[] data = new byte[bsdpOptionsList.getEncodedLength() + 1];
+		bsdpOptionsList.externalize(ByteBuffer.wrap(data));
+		// Leaves room for the end option.
+		int end = messageStart + maxMessageSize - 1;
+		int overload = 0;
+		if (getChunkCapacity(end - out.position()) < data.length) {
+			if (!isOverloadable()) {
+				throw new IllegalStateException(
+						"BSDP options do not fit into the message.");
+			}
+			int room = end - out.position() - OPTION_HEADER_LENGTH - 1;
+			overload = getChunkCapacity(room)
+					+ getChunkCapacity(FILE_LENGTH - 1) >= data.length ? OVERLOAD_FILE
+					: OVERLOAD_FILE | OVERLOAD_SNAME;
+			out.put(OPTION_OVERLOAD);
+			out.put((byte) 1);
+			out.put((byte) overload);
+		}
+		int offset = putChunks(out, data, 0, end);
+		if ((overload & OVERLOAD_FILE) != 0) {
+			offset = putOverloaded(out, messageStart + FILE_OFFSET,
+					FILE_LENGTH, data, offset);
+		}
+		if ((overload & OVERLOAD_SNAME) != 0) {
+			offset = putOverloaded(out, messageStart + SNAME_OFFSET,
+					SNAME_LENGTH, data, offset);
+		}
+		if (offset < data.length) {
+			throw new IllegalStateException(
+					"BSDP options do not fit into the message.");
+		}
+		out.put((byte) 255); // insert end option
+	}
+
+	/**
+	 * Writes data as instances of option 43 until the data or the room up to
+	 * the end position is used up.
+	 * 
+	 * @return offset of the data not written yet
+	 */
+	private static int putChunks(ByteBuffer out, byte[] data, int offset,
+			int end) {
+		while (offset < data.length
+				&& end - out.position() > OPTION_HEADER_LENGTH) {
+			int length = Math.min(Math.min(255, data.length - offset), end
+					- out.position() - OPTION_HEADER_LENGTH);
+			out.put((byte) 43);
+			out.put((byte) length);
+			out.put(data, offset, length);
+			offset += length;
+		}
+		return offset;
+	}
+
+	/**
+	 * Writes data as instances of option 43 into an overloaded field, which
+	 * is terminated by an end option.
+	 * 
+	 * @return offset of the data not written yet
+	 */
+	private static int putOverloaded(ByteBuffer out, int fieldStart,
+			int fieldLength, byte[] data, int offset) {
+		ByteBuffer field = out.duplicate();
+		field.position(fieldStart);
+		offset = putChunks(field, data, offset, fieldStart + fieldLength - 1);
+		field.put((byte) 255); // insert end option
+		return offset;
+	}
+
+	/**
+	 * @return number of data bytes instances of option 43 can carry in room
+	 *         bytes, split like {@link #putChunks(ByteBuffer, byte[], int, int)}
+	 *         does.
+	 */
+	private static int getChunkCapacity(int room) {
+		int capacity = 0;
+		while (room > OPTION_HEADER_LENGTH) {
+			int length = Math.min(255, room - OPTION_HEADER_LENGTH);
+			capacity += length;
+			room -= length + OPTION_HEADER_LENGTH;
+		}
+		return capacity;
+	}
+
+	/**
+	 * @return true if the file and sname fields are empty and may carry
+	 *         options.
+	 */
+	private boolean isOverloadable() {
+		return isZero(getFile()) && isZero(getSname());
+	}
+
+	private static boolean isZero(byte[] field) {
+		for (byte b : field) {
+			if (b != 0) {
+				return false;
+			}
 		}
+		return true;
+	}
+
+	@Override
+	public BSDPMessage internalize(byte[] ibuff) {
+		super.internalize(ibuff);
+		// The BSDP options are parsed in place, option 43 is not copied.
+		bsdpOptionsList.clear();
+		bsdpOptionsList.internalize(getOptionsList(), (byte) 43);
 		return this;
 	}
 
@@ -130,6 +297,57 @@ public class BSDPMessage extends DHCPMessage {
 		bsdpOptionsList.setOption(option);
 	}
 
+	/**
+	 * @return the maximum size of the message if its BSDP options may be
+	 *         longer than 255 bytes, otherwise 0.
+	 */
+	public int getMaxMessageSize() {
+		return maxMessageSize;
+	}
+
+	/**
+	 * Allows BSDP options longer than 255 bytes. They are split into several
+	 * vendor specific options as described by RFC 3396, which the client
+	 * must support.
+	 * 
+	 * @param maxMessageSize
+	 *            maximum size of the encoded message, without IP and UDP
+	 *            headers; 0 to keep the BSDP options within 255 bytes.
+	 */
+	public void setMaxMessageSize(int maxMessageSize) {
+		if (maxMessageSize != 0
+				&& maxMessageSize < FIXED_FIELDS_LENGTH + MAGIC_COOKIE_LENGTH
+						+ BSDP_OPTIONS_MAX_LENGTH) {
+			throw new IllegalArgumentException("Message size "
+					+ maxMessageSize + " is too small for long options.");
+		}
+		this.maxMessageSize = maxMessageSize;
+	}
+
+	/**
+	 * @return number of bytes the BSDP options set so far leave free in the
+	 *         vendor specific option, or in all its instances if a maximum
+	 *         message size is set.
+	 */
+	public int getFreeBSDPOptionSpace() {
+		// BSDP options and their end option share the 255 bytes.
+		int capacity = BSDP_OPTIONS_MAX_LENGTH;
+		if (maxMessageSize != 0) {
+			// Room of option 43 besides the other options and the end option.
+			int room = maxMessageSize - FIXED_FIELDS_LENGTH
+					- MAGIC_COOKIE_LENGTH - getOptionsList().getEncodedLength(43)
+					- 1;
+			capacity = Math.max(capacity, getChunkCapacity(room));
+			if (isOverloadable()) {
+				capacity = Math.max(capacity, getChunkCapacity(room
+						- OPTION_HEADER_LENGTH - 1)
+						+ getChunkCapacity(FILE_LENGTH - 1)
+						+ getChunkCapacity(SNAME_LENGTH - 1));
+			}
+		}
+		return capacity - bsdpOptionsList.getEncodedLength() - 1;
+	}
+
 	public BSDPOption getBDSPOption(byte inOptNum) {
 		return bsdpOptionsList.getOption(inOptNum);
 	}
@@ -0,0 +1,124 @@
+/*
+ *    BSDPServer - Implements Apple's Boot Service Discover Protocol
+ *     in Java. "jbsdpd"
+ *    Copyright (C) 2015  Jan-Philipp Hülshoff <github@bklosr.de>
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package de.upb.phys.bsdpd;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-thread pools of {@link BSDPMessage}s the replies are built in.
+ * 
+ * A message is taken with {@link #acquire()}, and after it is encoded it is
+ * handed back with {@link #release(BSDPMessage)}, which resets it. Every thread
+ * keeps its own free messages, so neither call needs a lock, and a handler
+ * thread building the same replies again and again does not allocate new
+ * messages with their option tables.
+ * 
+ * A message may be released on another thread than it was acquired on; it
+ * then joins the free messages of the releasing thread.
+ * 
+ * @author jph
+ * 
+ */
+public class BSDPMessagePool {
+
+	/**
+	 * Free messages of one thread.
+	 */
+	private static class FreeMessages {
+		private final BSDPMessage[] messages;
+		private int size;
+
+		private FreeMessages(int maxMessages) {
+			messages = new BSDPMessage[maxMessages];
+		}
+	}
+
+	private final int maxMessages;
+	private final ThreadLocal<FreeMessages> freeMessages = new ThreadLocal<FreeMessages>() {
+		@Override
+		protected FreeMessages initialValue() {
+			return new FreeMessages(maxMessages);
+		}
+	};
+
+	private final AtomicLong allocated = new AtomicLong();
+	private final AtomicLong reused = new AtomicLong();
+
+	/**
+	 * @param maxMessages
+	 *            maximum number of free messages kept per thread. With 0
+	 *            nothing is kept, e.g. for threads handling a single request.
+	 */
+	public BSDPMessagePool(int maxMessages) {
+		if (maxMessages < 0) {
+			throw new IllegalArgumentException(
+					"Number of pooled messages must not be negative.");
+		}
+		this.maxMessages = maxMessages;
+	}
+
+	/**
+	 * @return a message like a new one, allocated if the pool of this thread
+	 *         is empty.
+	 */
+	public BSDPMessage acquire() {
+		if (maxMessages > 0) {
+			FreeMessages free = freeMessages.get();
+			if (free.size > 0) {
+				BSDPMessage message = free.messages[--free.size];
+				free.messages[free.size] = null;
+				reused.incrementAndGet();
+				return message;
+			}
+		}
+		allocated.incrementAndGet();
+		return new BSDPMessage();
+	}
+
+	/**
+	 * Resets a message from {@link #acquire()} and returns it to the pool of
+	 * this thread. It must not be used afterwards.
+	 */
+	public void release(BSDPMessage message) {
+		if (maxMessages == 0) {
+			return;
+		}
+		FreeMessages free = freeMessages.get();
+		if (free.size < free.messages.length) {
+			message.reset();
+			free.messages[free.size++] = message;
+		}
+	}
+
+	public long getAllocated() {
+		return allocated.get();
+	}
+
+	public long getReused() {
+		return reused.get();
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "@" + hashCode() + "[maxMessages="
+				+ maxMessages + ",allocated=" + getAllocated() + ",reused="
+				+ getReused() + "]";
+	}
+}
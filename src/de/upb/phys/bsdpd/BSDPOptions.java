@@ -21,13 +21,12 @@ package de.upb.phys.bsdpd;
 
 // $Id: DHCPOptions.java,v 1.2 1999/09/07 03:00:02 jgoldsch Exp $
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.Enumeration;
-import java.util.Hashtable;
-import java.util.Map.Entry;
 
 import de.upb.phys.bsdpd.bsdppackets.BSDPOption;
-import de.upb.phys.bsdpd.bsdppackets.DHCPOption;
+import edu.bucknell.net.JDHCP.DHCPOptions;
+import edu.bucknell.net.JDHCP.OptionTable;
 
 /**
  * This class represents a linked list of options for a DHCP message. Its
@@ -38,32 +37,9 @@ import de.upb.phys.bsdpd.bsdppackets.DHCPOption;
  */
 public class BSDPOptions {
 
-	static {
-		BSDPOption.init();
-		DHCPOption.init();
-	}
-
-	/**
-	 *This inner class represent an entry in the Option Table
-	 */
-
-	class BSDPOptionsEntry extends Object {
-		protected byte code;
-		protected byte length;
-		protected byte content[];
-
-		public BSDPOptionsEntry(byte entryCode, byte entryLength,
-				byte entryContent[]) {
-			code = entryCode;
-			length = entryLength;
-			content = entryContent;
-		}
-	}
-
-	private Hashtable<Byte, BSDPOptionsEntry> optionsTable = null;
+	private final OptionTable optionsTable = new OptionTable();
 
 	public BSDPOptions() {
-		optionsTable = new Hashtable<Byte, BSDPOptionsEntry>();
 	}
 
 	/**
@@ -74,7 +50,7 @@ public class BSDPOptions {
 	 */
 
 	public void removeOption(byte entryCode) {
-		optionsTable.remove(new Byte(entryCode));
+		optionsTable.remove(entryCode);
 	}
 
 	/*
@@ -85,7 +61,7 @@ public class BSDPOptions {
 	 * @return true if option is set, otherwise false
 	 */
 	public boolean contains(byte entryCode) {
-		return optionsTable.containsKey(new Byte(entryCode));
+		return optionsTable.contains(entryCode);
 	}
 
 	/**
@@ -106,12 +82,7 @@ public class BSDPOptions {
 	 *         returned if option is not set.
 	 */
 	private byte[] getOption(byte entryCode) {
-		if (this.contains(entryCode)) {
-			BSDPOptionsEntry ent = optionsTable.get(new Byte(entryCode));
-			return ent.content;
-		} else {
-			return null;
-		}
+		return optionsTable.get(entryCode);
 	}
 
 	/**
@@ -139,9 +110,7 @@ public class BSDPOptions {
 	 *            [] Content of node option
 	 */
 	private void setOption(byte entryCode, byte value[]) {
-		BSDPOptionsEntry opt = new BSDPOptionsEntry(entryCode,
-				(byte) value.length, value);
-		optionsTable.put(new Byte(entryCode), opt);
+		optionsTable.set(entryCode, value);
 	}
 
 	/**
@@ -154,25 +123,6 @@ public class BSDPOptions {
 		setOption(option.getOptionNumber(), option.getEncodedData());
 	}
 
-	/**
-	 * Returns the option value of a specified option code in a byte array
-	 * 
-	 * @param length
-	 *            Length of option content
-	 * @param position
-	 *            Location in array of option node
-	 * @param options
-	 *            [] The byte array of options
-	 * @return byte array containing the value for the option
-	 */
-	private byte[] getArrayOption(int length, int position, byte options[]) {
-		byte value[] = new byte[length];
-		for (int i = 0; i < length; i++) {
-			value[i] = options[position + i];
-		}
-		return value;
-	}
-
 	/**
 	 * Converts an options byte array to a linked list
 	 * 
@@ -180,19 +130,25 @@ public class BSDPOptions {
 	 *            [] The byte array representation of the options list
 	 */
 	public void internalize(byte[] optionsArray) {
+		optionsTable.parse(optionsArray, 0, optionsArray.length);
+	}
 
-		/* Assume options valid and correct */
-		int pos = 0;
-		byte code, length;
-		byte value[];
+	/**
+	 * Converts the options encapsulated in an option of a DHCP options list,
+	 * without copying them out of the list first.
+	 * 
+	 * @param entryCode
+	 *            code of the option with the BSDP options, 43
+	 */
+	public void internalize(DHCPOptions options, byte entryCode) {
+		options.internalizeEncapsulated(entryCode, optionsTable);
+	}
 
-		while (optionsArray.length > pos && optionsArray[pos] != (byte) 255) { // until end option
-			code = optionsArray[pos++];
-			length = optionsArray[pos++];
-			value = getArrayOption(length, pos, optionsArray);
-			setOption(code, value);
-			pos += length; // increment position pointer
-		}
+	/**
+	 * Removes all options.
+	 */
+	public void clear() {
+		optionsTable.clear();
 	}
 
 	/**
@@ -201,12 +157,7 @@ public class BSDPOptions {
 	 * @return Current length with header and payload.
 	 */
 	public int checkLength() {
-		int byteCount = 0;
-		for (Entry<Byte, BSDPOptionsEntry> e : optionsTable.entrySet()) {
-			byteCount++; // Identifier Byte
-			byteCount++; // Length Byte
-			byteCount += e.getValue().content.length; // Data length
-		}
+		int byteCount = getEncodedLength();
 		if (byteCount > 255) {
 			throw new IllegalStateException(
 					"BSDP Vendor Option payload must be less or equal than 255 bytes.");
@@ -214,6 +165,15 @@ public class BSDPOptions {
 		return byteCount;
 	}
 
+	/**
+	 * @return length of the encoded options with header and payload, without
+	 *         end option. Unlike {@link #checkLength()} it may exceed 255
+	 *         bytes.
+	 */
+	public int getEncodedLength() {
+		return optionsTable.encodedLength();
+	}
+
 	/**
 	 * Converts a linked options list to a byte array
 	 * 
@@ -224,41 +184,43 @@ public class BSDPOptions {
 		int length = checkLength() + 1;
 		byte[] options = new byte[length];
 
-		int position = 0;
-		for (Enumeration<BSDPOptionsEntry> e = optionsTable.elements(); e
-				.hasMoreElements();) {
-			BSDPOptionsEntry entry = e.nextElement();
-			options[position++] = entry.code;
-			options[position++] = entry.length;
-			for (int i = 0; i < entry.length; ++i) {
-				options[position++] = entry.content[i];
-			}
-		}
+		int position = optionsTable.write(options, 0);
 		options[position] = (byte) 255; // insert end option
 		return options;
 	}
 
+	/**
+	 * Writes the options like {@link #externalize()} into a buffer.
+	 * 
+	 * @param out
+	 *            buffer to write to, starting at its position
+	 */
+	public void externalize(ByteBuffer out) {
+		optionsTable.write(out, -1);
+		out.put((byte) 255); // insert end option
+	}
+
 	@Override
 	public String toString() {
 		String entries = "";
-		for (Enumeration<BSDPOptionsEntry> e = optionsTable.elements(); e
-				.hasMoreElements();) {
-			BSDPOptionsEntry entry = e.nextElement();
+		for (int i = 0; i < optionsTable.size(); i++) {
+			int code = optionsTable.codeAt(i);
+			byte[] content = optionsTable.get(code);
 			try {
 				BSDPOption option = BSDPOption.createBSDPOptionInstance(
-						entry.code, entry.content);
+						code, content);
 				if (option != null) {
-					entries += BSDPOption.createBSDPOptionInstance(entry.code,
-							entry.content).toString()
+					entries += BSDPOption.createBSDPOptionInstance(code,
+							content).toString()
 							+ ",";
 				} else {
-					entries += entry.code + ": unknown error null,";
+					entries += code + ": unknown error null,";
 				}
 			} catch (Throwable t) {
 				System.err.println(t.getMessage());
 				t.printStackTrace();
-				entries += "id=" + entry.code + ":length=" + entry.length
-						+ ":data=" + Arrays.toString(entry.content) + ",";
+				entries += "id=" + code + ":length=" + content.length
+						+ ":data=" + Arrays.toString(content) + ",";
 			}
 
 		}
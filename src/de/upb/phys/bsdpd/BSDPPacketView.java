@@ -0,0 +1,319 @@
+/*
+ *    BSDPServer - Implements Apple's Boot Service Discover Protocol
+ *     in Java. "jbsdpd"
+ *    Copyright (C) 2015  Jan-Philipp Hülshoff <github@bklosr.de>
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package de.upb.phys.bsdpd;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Read only view of a received DHCP/BSDP packet.
+ *
+ * {@link #wrap(ByteBuffer)} finds the offsets of the DHCP options in one pass
+ * over the buffer, the header fields and option values are read from the
+ * buffer when they are asked for. The BSDP options in option 43 are indexed on
+ * the first access. Nothing is copied, so the view is only valid as long as
+ * the buffer is not reused. One view is meant to be reused for every packet
+ * of a receiving thread.
+ *
+ * @author jph
+ *
+ */
+public class BSDPPacketView {
+
+	private static final int OP_OFFSET = 0;
+	private static final int HLEN_OFFSET = 2;
+	private static final int XID_OFFSET = 4;
+	private static final int CIADDR_OFFSET = 12;
+	private static final int GIADDR_OFFSET = 24;
+	private static final int CHADDR_OFFSET = 28;
+	private static final int CHADDR_LENGTH = 16;
+	private static final int COOKIE_OFFSET = 236;
+	private static final int OPTIONS_OFFSET = 240;
+	private static final int MAGIC_COOKIE = 0x63825363;
+
+	private static final int OPTION_PAD = 0;
+	private static final int OPTION_END = 255;
+	private static final int OPTION_MESSAGETYPE = 53;
+	private static final int OPTION_VENDORCLASS = 60;
+	private static final int OPTION_VENDORSPECIFIC = 43;
+
+	private ByteBuffer buffer;
+	private int base;
+	private int length;
+
+	/** Offsets of the option values relative to base, 0 if not present. */
+	private final int[] optionOffsets = new int[256];
+	private final int[] optionLengths = new int[256];
+	private final int[] options = new int[256];
+	private int optionCount;
+
+	private boolean bsdpIndexed;
+	private final int[] bsdpOffsets = new int[256];
+	private final int[] bsdpLengths = new int[256];
+	private final int[] bsdpOptions = new int[256];
+	private int bsdpOptionCount;
+
+	/**
+	 * Makes this view show the packet between position and limit of the
+	 * buffer. Position and limit are not changed.
+	 *
+	 * @return false if the packet is not a DHCP packet with well formed
+	 *         options. The view must not be used then.
+	 */
+	public boolean wrap(ByteBuffer buffer) {
+		clear();
+		this.buffer = buffer;
+		this.base = buffer.position();
+		this.length = buffer.remaining();
+		if (length < OPTIONS_OFFSET || getInt(COOKIE_OFFSET) != MAGIC_COOKIE) {
+			return false;
+		}
+		int pos = OPTIONS_OFFSET;
+		while (pos < length) {
+			int code = getUnsigned(pos++);
+			if (code == OPTION_END) {
+				return true;
+			}
+			if (code == OPTION_PAD) {
+				continue;
+			}
+			if (pos >= length) {
+				return false;
+			}
+			int optionLength = getUnsigned(pos++);
+			if (pos + optionLength > length) {
+				return false;
+			}
+			if (optionOffsets[code] == 0) {
+				optionOffsets[code] = pos;
+				optionLengths[code] = optionLength;
+				options[optionCount++] = code;
+			}
+			pos += optionLength;
+		}
+		// The original parser also accepts packets without end option.
+		return true;
+	}
+
+	private void clear() {
+		for (int i = 0; i < optionCount; i++) {
+			optionOffsets[options[i]] = 0;
+		}
+		optionCount = 0;
+		for (int i = 0; i < bsdpOptionCount; i++) {
+			bsdpOffsets[bsdpOptions[i]] = 0;
+		}
+		bsdpOptionCount = 0;
+		bsdpIndexed = false;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	public byte getOp() {
+		return buffer.get(base + OP_OFFSET);
+	}
+
+	public int getHlen() {
+		return getUnsigned(HLEN_OFFSET);
+	}
+
+	public int getXid() {
+		return getInt(XID_OFFSET);
+	}
+
+	/**
+	 * @return ciaddr as int in network byte order.
+	 */
+	public int getCiaddr() {
+		return getInt(CIADDR_OFFSET);
+	}
+
+	/**
+	 * @return giaddr as int in network byte order.
+	 */
+	public int getGiaddr() {
+		return getInt(GIADDR_OFFSET);
+	}
+
+	/**
+	 * @return the first hlen bytes of chaddr (at most 16).
+	 */
+	public byte[] getChaddr() {
+		byte[] chaddr = new byte[Math.min(getHlen(), CHADDR_LENGTH)];
+		for (int i = 0; i < chaddr.length; i++) {
+			chaddr[i] = buffer.get(base + CHADDR_OFFSET + i);
+		}
+		return chaddr;
+	}
+
+	/**
+	 * @return the first hlen bytes of chaddr (at most 8) packed into a long,
+	 *         e.g. a 48 bit ethernet address.
+	 */
+	public long getChaddrKey() {
+		int hlen = Math.min(Math.max(getHlen(), 1), 8);
+		long key = 0;
+		for (int i = 0; i < hlen; i++) {
+			key = (key << 8) | getUnsigned(CHADDR_OFFSET + i);
+		}
+		return key;
+	}
+
+	public boolean hasOption(int code) {
+		return optionOffsets[code & 0xFF] != 0;
+	}
+
+	/**
+	 * @return length of the option or -1 if it is not present.
+	 */
+	public int getOptionLength(int code) {
+		return hasOption(code) ? optionLengths[code & 0xFF] : -1;
+	}
+
+	/**
+	 * @return copy of the option value or null if it is not present.
+	 */
+	public byte[] getOption(int code) {
+		if (!hasOption(code)) {
+			return null;
+		}
+		return copy(optionOffsets[code & 0xFF], optionLengths[code & 0xFF]);
+	}
+
+	/**
+	 * @return the DHCP message type (option 53) or -1 if it is not present.
+	 */
+	public int getMessageType() {
+		if (getOptionLength(OPTION_MESSAGETYPE) < 1) {
+			return -1;
+		}
+		return getUnsigned(optionOffsets[OPTION_MESSAGETYPE]);
+	}
+
+	/**
+	 * @return true if the vendor class identifier (option 60) starts with the
+	 *         given bytes.
+	 */
+	public boolean vendorClassStartsWith(byte[] prefix) {
+		if (getOptionLength(OPTION_VENDORCLASS) < prefix.length) {
+			return false;
+		}
+		int offset = optionOffsets[OPTION_VENDORCLASS];
+		for (int i = 0; i < prefix.length; i++) {
+			if (buffer.get(base + offset + i) != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the vendor class identifier (option 60) or null if it is not
+	 *         present.
+	 */
+	public String getVendorClass() {
+		byte[] vendorClass = getOption(OPTION_VENDORCLASS);
+		return vendorClass == null ? null : new String(vendorClass);
+	}
+
+	public boolean hasBSDPOption(int code) {
+		indexBSDPOptions();
+		return bsdpOffsets[code & 0xFF] != 0;
+	}
+
+	/**
+	 * @return length of the BSDP option or -1 if it is not present.
+	 */
+	public int getBSDPOptionLength(int code) {
+		return hasBSDPOption(code) ? bsdpLengths[code & 0xFF] : -1;
+	}
+
+	/**
+	 * @return copy of the BSDP option value or null if it is not present.
+	 */
+	public byte[] getBSDPOption(int code) {
+		if (!hasBSDPOption(code)) {
+			return null;
+		}
+		return copy(bsdpOffsets[code & 0xFF], bsdpLengths[code & 0xFF]);
+	}
+
+	/**
+	 * @return the BSDP message type (BSDP option 1) or -1 if it is not
+	 *         present.
+	 */
+	public int getBSDPMessageType() {
+		if (getBSDPOptionLength(BSDPMessage.BSDP_OPTION_MESSAGETYPE) != 1) {
+			return -1;
+		}
+		return getUnsigned(bsdpOffsets[BSDPMessage.BSDP_OPTION_MESSAGETYPE]);
+	}
+
+	private void indexBSDPOptions() {
+		if (bsdpIndexed) {
+			return;
+		}
+		bsdpIndexed = true;
+		if (!hasOption(OPTION_VENDORSPECIFIC)) {
+			return;
+		}
+		int pos = optionOffsets[OPTION_VENDORSPECIFIC];
+		int end = pos + optionLengths[OPTION_VENDORSPECIFIC];
+		while (pos + 1 < end) {
+			int code = getUnsigned(pos++);
+			if (code == OPTION_END) {
+				return;
+			}
+			int optionLength = getUnsigned(pos++);
+			if (pos + optionLength > end) {
+				return;
+			}
+			if (bsdpOffsets[code] == 0) {
+				bsdpOffsets[code] = pos;
+				bsdpLengths[code] = optionLength;
+				bsdpOptions[bsdpOptionCount++] = code;
+			}
+			pos += optionLength;
+		}
+	}
+
+	private int getUnsigned(int offset) {
+		return buffer.get(base + offset) & 0xFF;
+	}
+
+	private int getInt(int offset) {
+		return buffer.getInt(base + offset);
+	}
+
+	private byte[] copy(int offset, int count) {
+		byte[] data = new byte[count];
+		for (int i = 0; i < count; i++) {
+			data[i] = buffer.get(base + offset + i);
+		}
+		return data;
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "@" + hashCode() + "[length="
+				+ length + ",options=" + optionCount + "]";
+	}
+}
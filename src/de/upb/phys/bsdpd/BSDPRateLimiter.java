@@ -0,0 +1,215 @@
+/*
+ *    BSDPServer - Implements Apple's Boot Service Discover Protocol
+ *     in Java. "jbsdpd"
+ *    Copyright (C) 2015  Jan-Philipp Hülshoff <github@bklosr.de>
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package de.upb.phys.bsdpd;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket admission control for received requests.
+ *
+ * Every client hardware address and every relay address (giaddr, 0.0.0.0 for
+ * the local networks) has a bucket that is refilled with a fixed rate up to a
+ * burst size. A request takes one token from the bucket of its relay and one
+ * from the bucket of its client; without tokens it is dropped. The relay is
+ * asked first, so a flood of made-up hardware addresses through a busy relay
+ * does not create client buckets, and a request dropped by its client bucket
+ * gives the relay token back. So a single stuck client does not starve the
+ * others, and a flooding lab does not starve the other relays. At most
+ * {@link #MAX_CLIENTS} clients have a bucket, requests of further clients are
+ * dropped until quiet clients are purged.
+ *
+ * The limiter only looks at the {@link BSDPPacketView} of the datagram, so
+ * dropped requests are never parsed.
+ *
+ * @author jph
+ *
+ */
+public class BSDPRateLimiter {
+
+	/** Interval for removing the buckets of clients gone quiet in ns. */
+	private static final long PURGE_INTERVAL = 10000000000L;
+	/** Maximum number of client buckets, bounds memory and purge time. */
+	private static final int MAX_CLIENTS = 65536;
+
+	/**
+	 * Tokens of one client or relay.
+	 */
+	private static class Bucket {
+		private double tokens;
+		private long last;
+
+		private Bucket(double tokens, long now) {
+			this.tokens = tokens;
+			this.last = now;
+		}
+
+		private synchronized boolean take(double rate, double burst, long now) {
+			tokens = Math.min(burst, tokens + (now - last) * rate / 1e9);
+			last = now;
+			if (tokens < 1) {
+				return false;
+			}
+			tokens -= 1;
+			return true;
+		}
+
+		private synchronized void giveBack(double burst) {
+			tokens = Math.min(burst, tokens + 1);
+		}
+
+		private synchronized boolean isFull(double rate, double burst, long now) {
+			return tokens + (now - last) * rate / 1e9 >= burst;
+		}
+	}
+
+	private final double clientRate;
+	private final double clientBurst;
+	private final double relayRate;
+	private final double relayBurst;
+
+	private final ConcurrentMap<Long, Bucket> clientBuckets = new ConcurrentHashMap<Long, Bucket>();
+	private final ConcurrentMap<Integer, Bucket> relayBuckets = new ConcurrentHashMap<Integer, Bucket>();
+	private final AtomicLong nextPurge = new AtomicLong(System.nanoTime()
+			+ PURGE_INTERVAL);
+
+	private final AtomicLong admitted = new AtomicLong();
+	private final AtomicLong limitedClients = new AtomicLong();
+	private final AtomicLong limitedRelays = new AtomicLong();
+
+	/**
+	 * @param clientRate
+	 *            requests per second of one client, 0 for no limit
+	 * @param clientBurst
+	 *            requests one client may send at once
+	 * @param relayRate
+	 *            requests per second through one relay, 0 for no limit
+	 * @param relayBurst
+	 *            requests that may arrive through one relay at once
+	 */
+	public BSDPRateLimiter(int clientRate, int clientBurst, int relayRate,
+			int relayBurst) {
+		this.clientRate = clientRate;
+		this.clientBurst = Math.max(1, clientBurst);
+		this.relayRate = relayRate;
+		this.relayBurst = Math.max(1, relayBurst);
+	}
+
+	/**
+	 * @param packet
+	 *            the received packet
+	 * @return true if the request may be handled, false if it is to be dropped.
+	 */
+	public boolean admit(BSDPPacketView packet) {
+		long now = System.nanoTime();
+		purge(now);
+
+		Bucket relay = null;
+		if (relayRate > 0) {
+			relay = bucket(relayBuckets, Integer.valueOf(packet.getGiaddr()),
+					relayBurst, now, Integer.MAX_VALUE);
+			if (!relay.take(relayRate, relayBurst, now)) {
+				limitedRelays.incrementAndGet();
+				return false;
+			}
+		}
+		if (clientRate > 0) {
+			Bucket client = bucket(clientBuckets, Long.valueOf(packet
+					.getChaddrKey()), clientBurst, now, MAX_CLIENTS);
+			if (client == null || !client.take(clientRate, clientBurst, now)) {
+				if (relay != null) {
+					relay.giveBack(relayBurst);
+				}
+				limitedClients.incrementAndGet();
+				return false;
+			}
+		}
+		admitted.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * @return the bucket of the key, a new full one if it has none, or null
+	 *         if it has none and there are maxBuckets already.
+	 */
+	private static <K> Bucket bucket(ConcurrentMap<K, Bucket> buckets, K key,
+			double burst, long now, int maxBuckets) {
+		Bucket bucket = buckets.get(key);
+		if (bucket == null) {
+			if (buckets.size() >= maxBuckets) {
+				return null;
+			}
+			Bucket newBucket = new Bucket(burst, now);
+			bucket = buckets.putIfAbsent(key, newBucket);
+			if (bucket == null) {
+				bucket = newBucket;
+			}
+		}
+		return bucket;
+	}
+
+	/**
+	 * Removes full buckets, they are recreated full on the next request.
+	 */
+	private void purge(long now) {
+		long next = nextPurge.get();
+		if (now - next < 0
+				|| !nextPurge.compareAndSet(next, now + PURGE_INTERVAL)) {
+			return;
+		}
+		for (Iterator<Bucket> it = clientBuckets.values().iterator(); it
+				.hasNext();) {
+			if (it.next().isFull(clientRate, clientBurst, now)) {
+				it.remove();
+			}
+		}
+		for (Iterator<Bucket> it = relayBuckets.values().iterator(); it
+				.hasNext();) {
+			if (it.next().isFull(relayRate, relayBurst, now)) {
+				it.remove();
+			}
+		}
+	}
+
+	public long getAdmitted() {
+		return admitted.get();
+	}
+
+	public long getLimitedClients() {
+		return limitedClients.get();
+	}
+
+	public long getLimitedRelays() {
+		return limitedRelays.get();
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "@" + hashCode() + "[clientRate="
+				+ clientRate + ",clientBurst=" + clientBurst + ",relayRate="
+				+ relayRate + ",relayBurst=" + relayBurst + ",clients="
+				+ clientBuckets.size() + ",relays=" + relayBuckets.size()
+				+ ",admitted=" + getAdmitted() + ",limitedClients="
+				+ getLimitedClients() + ",limitedRelays="
+				+ getLimitedRelays() + "]";
+	}
+}
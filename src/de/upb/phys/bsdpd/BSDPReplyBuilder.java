@@ -0,0 +1,163 @@
+/*
+ *    BSDPServer - Implements Apple's Boot Service Discover Protocol
+ *     in Java. "jbsdpd"
+ *    Copyright (C) 2015  Jan-Philipp Hülshoff <github@bklosr.de>
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package de.upb.phys.bsdpd;
+
+import java.io.UnsupportedEncodingException;
+
+import de.upb.phys.bsdpd.bsdppackets.BSDPOption;
+import de.upb.phys.bsdpd.bsdppackets.DHCPOption;
+import edu.bucknell.net.JDHCP.DHCPMessage;
+
+/**
+ * Builds the reply to a {@link BSDPRequest}.
+ * 
+ * The builder copies the client fields of the request and sets the options
+ * every reply carries, so only the BSDP specific options are left to add. The
+ * reply is confined to the thread building it until {@link #build()} hands it
+ * out; it is only encoded afterwards and must not be changed any more.
+ * 
+ * <pre>
+ * BSDPMessage reply = new BSDPReplyBuilder(request, identity).bsdpOption(
+ * 		new BSDPoMessageType(TYPES.LIST)).build();
+ * </pre>
+ * 
+ * @author jph
+ * 
+ */
+public class BSDPReplyBuilder {
+
+	/** Option 53 of every reply, shared and never modified. */
+	private static final byte[] MESSAGE_TYPE_ACK = { DHCPMessage.ACK };
+	/** Option 60 of every reply, shared and never modified. */
+	private static final byte[] VENDOR_CLASS;
+
+	static {
+		try {
+			VENDOR_CLASS = "AAPLBSDPC".getBytes("US-ASCII");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private BSDPMessage reply;
+	private final BSDPMessagePool messages;
+
+	/**
+	 * @param identity
+	 *            identity of the server on the network of the request
+	 */
+	public BSDPReplyBuilder(BSDPRequest request, BSDPServerIdentity identity) {
+		this(request, identity, null);
+	}
+
+	/**
+	 * @param identity
+	 *            identity of the server on the network of the request
+	 * @param messages
+	 *            pool the reply is taken from, null to allocate it. The reply
+	 *            should be released to it after it is encoded.
+	 */
+	public BSDPReplyBuilder(BSDPRequest request, BSDPServerIdentity identity,
+			BSDPMessagePool messages) {
+		this.messages = messages;
+		reply = messages != null ? messages.acquire() : new BSDPMessage();
+		reply.setDestination(request.getReplyDestination().getAddress());
+		reply.setPort(request.getReplyPort());
+		reply.setOp((byte) 0x2);
+		reply.setHtype(request.getHtype());
+		reply.setHlen(request.getHlen());
+		reply.setHops(request.getHops());
+		reply.setXid(request.getXid());
+		reply.setSecs(request.getSecs());
+		reply.setFlags(request.getFlags());
+		reply.setCiaddr(request.getRawCiaddr());
+		// yiaddr stays zero.
+		reply.setSiaddr(identity.getEncodedAddress());
+		reply.setGiaddr(request.getRawGiaddr());
+		reply.setChaddr(request.getRawChaddr());
+
+		reply.setOption((byte) 53, MESSAGE_TYPE_ACK);
+		reply.setOption((byte) 54, identity.getEncodedAddress());
+		reply.setOption((byte) 60, VENDOR_CLASS);
+	}
+
+	private BSDPMessage reply() {
+		if (reply == null) {
+			throw new IllegalStateException("The reply is already built.");
+		}
+		return reply;
+	}
+
+	public BSDPReplyBuilder serverName(String serverName) {
+		reply().setServerName(serverName);
+		return this;
+	}
+
+	public BSDPReplyBuilder filename(String filename) {
+		reply().setFilename(filename);
+		return this;
+	}
+
+	/**
+	 * @see BSDPMessage#setMaxMessageSize(int)
+	 */
+	public BSDPReplyBuilder maxMessageSize(int maxMessageSize) {
+		reply().setMaxMessageSize(maxMessageSize);
+		return this;
+	}
+
+	public BSDPReplyBuilder dhcpOption(DHCPOption option) {
+		reply().setDHCPOption(option);
+		return this;
+	}
+
+	public BSDPReplyBuilder bsdpOption(BSDPOption option) {
+		reply().setBSDPOption(option);
+		return this;
+	}
+
+	/**
+	 * @see BSDPMessage#getFreeBSDPOptionSpace()
+	 */
+	public int getFreeBSDPOptionSpace() {
+		return reply().getFreeBSDPOptionSpace();
+	}
+
+	/**
+	 * @return the reply. The builder cannot be used any more.
+	 */
+	public BSDPMessage build() {
+		BSDPMessage built = reply();
+		reply = null;
+		return built;
+	}
+
+	/**
+	 * Drops the reply without building it. A reply taken from a pool is
+	 * released to it. The builder cannot be used any more.
+	 */
+	public void discard() {
+		BSDPMessage discarded = reply();
+		reply = null;
+		if (messages != null) {
+			messages.release(discarded);
+		}
+	}
+}
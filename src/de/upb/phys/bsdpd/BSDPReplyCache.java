@@ -0,0 +1,290 @@
+/*
+ *    BSDPServer - Implements Apple's Boot Service Discover Protocol
+ *     in Java. "jbsdpd"
+ *    Copyright (C) 2015  Jan-Philipp Hülshoff <github@bklosr.de>
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package de.upb.phys.bsdpd;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.upb.phys.bsdpd.bsdppackets.BSDPoMessageType.TYPES;
+
+/**
+ * Remembers the encoded replies to recent requests.
+ *
+ * The Mac firmware retransmits a request with the same transaction id if the
+ * answer is slow. A retransmission is answered with the cached replies by the
+ * receiving thread, without parsing it or running the handler (and its prefs
+ * writes) again. A request is recorded as pending when it is looked up the
+ * first time, so retransmissions arriving while it is still queued or handled
+ * are dropped instead of being handled a second time. Entries expire after a
+ * fixed time and the oldest entry is evicted if the cache is full.
+ *
+ * @author jph
+ *
+ */
+public class BSDPReplyCache {
+
+	/**
+	 * One encoded reply and where to send it.
+	 */
+	public static class Reply {
+		private final byte[] datagram;
+		private final InetSocketAddress destination;
+
+		public Reply(byte[] datagram, InetSocketAddress destination) {
+			this.datagram = datagram;
+			this.destination = destination;
+		}
+
+		/**
+		 * @return the encoded reply. Shared, it must not be modified.
+		 */
+		public byte[] getDatagram() {
+			return datagram;
+		}
+
+		public InetSocketAddress getDestination() {
+			return destination;
+		}
+	}
+
+	/**
+	 * Identifies a request and its retransmissions.
+	 */
+	private static class Key {
+		private final byte[] chaddr;
+		private final int xid;
+		private final TYPES type;
+
+		private Key(byte[] chaddr, int xid, TYPES type) {
+			this.chaddr = chaddr;
+			this.xid = xid;
+			this.type = type;
+		}
+
+		@Override
+		public int hashCode() {
+			return (Arrays.hashCode(chaddr) * 31 + xid) * 31 + type.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return xid == other.xid && type == other.type
+					&& Arrays.equals(chaddr, other.chaddr);
+		}
+	}
+
+	private static class Entry {
+		private final List<Reply> replies;
+		private final long expires;
+
+		private Entry(List<Reply> replies, long expires) {
+			this.replies = replies;
+			this.expires = expires;
+		}
+	}
+
+	/** Replies of a request which is still being handled. */
+	private static final List<Reply> PENDING = Collections
+			.unmodifiableList(new ArrayList<Reply>(0));
+
+	private final int maxEntries;
+	private final long timeToLive;
+	private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong pendingHits = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * @param maxEntries
+	 *            maximum number of cached requests
+	 * @param timeToLive
+	 *            time in ms a retransmission is answered from the cache
+	 */
+	public BSDPReplyCache(int maxEntries, long timeToLive) {
+		if (maxEntries < 1) {
+			throw new IllegalArgumentException(
+					"The cache needs room for at least one entry.");
+		}
+		this.maxEntries = maxEntries;
+		this.timeToLive = timeToLive;
+	}
+
+	/**
+	 * Looks up the replies to a request. If there are none, the request is
+	 * recorded as pending until {@link #put(BSDPRequest, List)} or
+	 * {@link #cancel(BSDPRequest)} is called for it.
+	 * 
+	 * @return the cached replies to the request; an empty list if the request
+	 *         is still being handled, the retransmission is to be dropped; or
+	 *         null if the request has to be handled.
+	 */
+	public List<Reply> get(BSDPPacketView request) {
+		Key key = createKey(request);
+		if (key == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		long now = System.currentTimeMillis();
+		synchronized (entries) {
+			Entry entry = entries.get(key);
+			if (entry != null && entry.expires > now) {
+				if (entry.replies == PENDING) {
+					pendingHits.incrementAndGet();
+				} else {
+					hits.incrementAndGet();
+				}
+				return entry.replies;
+			}
+			put(key, new Entry(PENDING, now + timeToLive), now);
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Remembers the replies to a request.
+	 */
+	public void put(BSDPRequest request, List<Reply> replies) {
+		Key key = createKey(request);
+		if (key == null) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		Entry entry = new Entry(Collections.unmodifiableList(replies), now
+				+ timeToLive);
+		synchronized (entries) {
+			put(key, entry, now);
+		}
+	}
+
+	/**
+	 * Forgets a pending request, e.g. because it was dropped or could not be
+	 * answered, so its retransmissions are handled again. Cached replies are
+	 * kept.
+	 */
+	public void cancel(BSDPRequest request) {
+		cancel(createKey(request));
+	}
+
+	/**
+	 * Like {@link #cancel(BSDPRequest)} for a request which was not decoded.
+	 */
+	public void cancel(BSDPPacketView request) {
+		cancel(createKey(request));
+	}
+
+	private void cancel(Key key) {
+		if (key == null) {
+			return;
+		}
+		synchronized (entries) {
+			Entry entry = entries.get(key);
+			if (entry != null && entry.replies == PENDING) {
+				entries.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Must be called while holding the lock on {@link #entries}.
+	 */
+	private void put(Key key, Entry entry, long now) {
+		// Insertion order is expiry order, so expired entries are in front.
+		Iterator<Entry> it = entries.values().iterator();
+		while (it.hasNext() && it.next().expires <= now) {
+			it.remove();
+		}
+		entries.remove(key);
+		entries.put(key, entry);
+		it = entries.values().iterator();
+		while (entries.size() > maxEntries) {
+			it.next();
+			it.remove();
+			evictions.incrementAndGet();
+		}
+	}
+
+	private static Key createKey(BSDPRequest request) {
+		TYPES type = request.getBSDPMessageType();
+		if (type == null) {
+			return null;
+		}
+		byte[] chaddr = request.getRawChaddr();
+		int hlen = Math.max(0, Math.min(request.getHlen(), chaddr.length));
+		return new Key(Arrays.copyOf(chaddr, hlen), request.getXid(), type);
+	}
+
+	private static Key createKey(BSDPPacketView request) {
+		TYPES type = TYPES.valueOf((byte) request.getBSDPMessageType());
+		if (type == null) {
+			return null;
+		}
+		return new Key(request.getChaddr(), request.getXid(), type);
+	}
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return number of retransmissions dropped while their request was
+	 *         handled.
+	 */
+	public long getPendingHits() {
+		return pendingHits.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "@" + hashCode() + "[maxEntries="
+				+ maxEntries + ",timeToLive=" + timeToLive + ",size=" + size()
+				+ ",hits=" + getHits() + ",misses=" + getMisses()
+				+ ",pendingHits=" + getPendingHits() + ",evictions=" + getEvictions() + "]";
+	}
+}
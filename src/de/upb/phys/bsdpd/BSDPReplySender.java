@@ -0,0 +1,269 @@
+/*
+ *    BSDPServer - Implements Apple's Boot Service Discover Protocol
+ *     in Java. "jbsdpd"
+ *    Copyright (C) 2015  Jan-Philipp Hülshoff <github@bklosr.de>
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package de.upb.phys.bsdpd;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import de.upb.phys.bsdpd.transport.BSDPBufferPool;
+
+/**
+ * Sends the encoded replies on a thread of its own.
+ *
+ * The handlers only put the replies into a bounded queue, so neither they nor
+ * the receiving threads wait for the socket. The sender takes the replies in
+ * batches and hands each batch to the transport in one call. Alternatively it
+ * can keep a minimum gap between two datagrams, so the packets of a long LIST
+ * answer do not leave as one burst.
+ *
+ * @author jph
+ *
+ */
+public class BSDPReplySender {
+
+	private static final Logger l = Logger.getLogger("bsdpd");
+
+	/**
+	 * An encoded reply and the listener to send it with.
+	 */
+	private static class Reply {
+		private final BSDPListener listener;
+		private final ByteBuffer datagram;
+		private final InetSocketAddress destination;
+		private final BSDPBufferPool pool;
+
+		private Reply(BSDPListener listener, ByteBuffer datagram,
+				InetSocketAddress destination, BSDPBufferPool pool) {
+			this.listener = listener;
+			this.datagram = datagram;
+			this.destination = destination;
+			this.pool = pool;
+		}
+	}
+
+	private final BlockingQueue<Reply> queue;
+	private final int batchSize;
+	private final long pacingNanos;
+	private final Thread senderThread;
+	private volatile boolean running = true;
+	private long nextSendNanos;
+	private final ByteBuffer[] datagrams;
+	private final InetSocketAddress[] destinations;
+	private final BSDPBufferPool[] pools;
+
+	private final AtomicLong submitted = new AtomicLong();
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong maxQueueDepth = new AtomicLong();
+
+	/**
+	 * @param queueCapacity
+	 *            maximum number of replies waiting to be sent
+	 * @param batchSize
+	 *            maximum number of replies taken from the queue at once
+	 * @param pacingMicros
+	 *            minimum time between two datagrams in µs, 0 for none
+	 */
+	public BSDPReplySender(int queueCapacity, int batchSize, long pacingMicros) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("Batch size must be at least 1.");
+		}
+		this.queue = new ArrayBlockingQueue<Reply>(queueCapacity);
+		this.batchSize = batchSize;
+		this.pacingNanos = pacingMicros * 1000;
+		this.datagrams = new ByteBuffer[batchSize];
+		this.destinations = new InetSocketAddress[batchSize];
+		this.pools = new BSDPBufferPool[batchSize];
+
+		senderThread = new Thread(new Runnable() {
+			public void run() {
+				work();
+			}
+		}, "BSDP Reply Sender");
+		senderThread.setDaemon(true);
+	}
+
+	public void start() {
+		senderThread.start();
+	}
+
+	/**
+	 * Queues a reply. Never blocks.
+	 *
+	 * @param pool
+	 *            pool the buffer is returned to after sending; null if the
+	 *            buffer is not pooled
+	 * @return false if the queue is full and the reply was dropped.
+	 */
+	public boolean submit(BSDPListener listener, ByteBuffer datagram,
+			InetSocketAddress destination, BSDPBufferPool pool) {
+		submitted.incrementAndGet();
+		if (!running
+				|| !queue.offer(new Reply(listener, datagram, destination,
+						pool))) {
+			dropped.incrementAndGet();
+			if (pool != null) {
+				pool.release(datagram);
+			}
+			l.log(Level.FINE, " ~> Reply queue full, dropped a reply to "
+					+ destination + ".");
+			return false;
+		}
+
+		long depth = queue.size();
+		long max = maxQueueDepth.get();
+		while (depth > max && !maxQueueDepth.compareAndSet(max, depth)) {
+			max = maxQueueDepth.get();
+		}
+		return true;
+	}
+
+	private void work() {
+		List<Reply> batch = new ArrayList<Reply>(batchSize);
+		while (running) {
+			try {
+				batch.add(queue.take());
+			} catch (InterruptedException e) {
+				continue;
+			}
+			queue.drainTo(batch, batchSize - 1);
+			transmit(batch);
+			batch.clear();
+		}
+		// Send what was queued before the shutdown.
+		while (queue.drainTo(batch, batchSize) > 0) {
+			transmit(batch);
+			batch.clear();
+		}
+	}
+
+	private void transmit(List<Reply> batch) {
+		if (batch.isEmpty()) {
+			return;
+		}
+		batches.incrementAndGet();
+		if (pacingNanos > 0) {
+			for (Reply reply : batch) {
+				long wait = nextSendNanos - System.nanoTime();
+				if (wait > 0) {
+					LockSupport.parkNanos(wait);
+				}
+				nextSendNanos = System.nanoTime() + pacingNanos;
+				datagrams[0] = reply.datagram;
+				destinations[0] = reply.destination;
+				pools[0] = reply.pool;
+				transmit(reply.listener, 1);
+			}
+			return;
+		}
+		// Consecutive replies of the same listener go out in one call.
+		int count = 0;
+		BSDPListener listener = batch.get(0).listener;
+		for (Reply reply : batch) {
+			if (reply.listener != listener) {
+				transmit(listener, count);
+				listener = reply.listener;
+				count = 0;
+			}
+			datagrams[count] = reply.datagram;
+			destinations[count] = reply.destination;
+			pools[count] = reply.pool;
+			count++;
+		}
+		transmit(listener, count);
+	}
+
+	private void transmit(BSDPListener listener, int count) {
+		int sentNow = listener.transmit(datagrams, destinations, count);
+		sent.addAndGet(sentNow);
+		errors.addAndGet(count - sentNow);
+		for (int i = 0; i < count; i++) {
+			if (pools[i] != null) {
+				pools[i].release(datagrams[i]);
+			}
+		}
+		Arrays.fill(pools, 0, count, null);
+		Arrays.fill(datagrams, 0, count, null);
+		Arrays.fill(destinations, 0, count, null);
+	}
+
+	/**
+	 * Stops the sender thread after the queued replies are sent. Replies
+	 * submitted afterwards are dropped.
+	 */
+	public void shutdown() {
+		running = false;
+		senderThread.interrupt();
+		try {
+			senderThread.join(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	public long getMaxQueueDepth() {
+		return maxQueueDepth.get();
+	}
+
+	public long getSubmitted() {
+		return submitted.get();
+	}
+
+	public long getSent() {
+		return sent.get();
+	}
+
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	public long getErrors() {
+		return errors.get();
+	}
+
+	public long getBatches() {
+		return batches.get();
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "@" + hashCode() + "[batchSize="
+				+ batchSize + ",pacingNanos=" + pacingNanos + ",queueDepth="
+				+ getQueueDepth() + ",maxQueueDepth=" + getMaxQueueDepth()
+				+ ",submitted=" + getSubmitted() + ",sent=" + getSent()
+				+ ",batches=" + getBatches() + ",dropped=" + getDropped()
+				+ ",errors=" + getErrors() + "]";
+	}
+}
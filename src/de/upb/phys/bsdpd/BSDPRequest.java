@@ -0,0 +1,314 @@
+/*
+ *    BSDPServer - Implements Apple's Boot Service Discover Protocol
+ *     in Java. "jbsdpd"
+ *    Copyright (C) 2015  Jan-Philipp Hülshoff <github@bklosr.de>
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package de.upb.phys.bsdpd;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.List;
+
+import de.upb.phys.bsdpd.bsdppackets.BSDPoBootImageAttributeFilterList;
+import de.upb.phys.bsdpd.bsdppackets.BSDPoMessageType;
+import de.upb.phys.bsdpd.bsdppackets.BSDPoReplyPort;
+import de.upb.phys.bsdpd.bsdppackets.BSDPoSelectedBootImageId;
+import de.upb.phys.bsdpd.bsdppackets.BSDPoBootImageAttributeFilterList.BootImageFilter;
+import de.upb.phys.bsdpd.bsdppackets.BSDPoMessageType.TYPES;
+import de.upb.phys.bsdpd.imageDB.BootImage;
+import de.upb.phys.bsdpd.imageDB.MacAddress;
+import edu.bucknell.net.JDHCP.DHCPMessage;
+import edu.bucknell.net.JDHCP.OptionTable;
+
+/**
+ * Received BSDP request.
+ * 
+ * All fields and options the server looks at are read from the decoded
+ * {@link BSDPMessage} once, when the request is created. A request cannot be
+ * changed afterwards, so the handler threads share it without locks. Public
+ * getters of arrays return copies; the classes of this package building the
+ * replies read the arrays without copying them through the package private
+ * raw getters and must not change them.
+ * 
+ * @author jph
+ * 
+ */
+public final class BSDPRequest {
+
+	private static final byte OPTION_MESSAGETYPE = 53;
+	private static final byte OPTION_MAXMESSAGESIZE = 57;
+	private static final byte OPTION_VENDORCLASS = 60;
+
+	private final BSDPListener listener;
+	private final byte htype;
+	private final byte hlen;
+	private final byte hops;
+	private final int xid;
+	private final short secs;
+	private final short flags;
+	private final byte[] ciaddr;
+	private final byte[] giaddr;
+	private final byte[] chaddr;
+	private final long macAddress;
+
+	private final int messageType;
+	private final int maxMessageSize;
+	private final BSDPVendorClass vendorClass;
+	private final boolean bsdp;
+	private final TYPES bsdpMessageType;
+	private final int replyPort;
+	private final InetSocketAddress replyDestination;
+	private final byte[] imageAttributesFilter;
+	private final BootImage selectedBootImage;
+
+	/**
+	 * @param message
+	 *            the decoded request, it is not kept
+	 * @param listener
+	 *            listener the request was received on, null if it was
+	 *            created locally
+	 */
+	public BSDPRequest(BSDPMessage message, BSDPListener listener) {
+		this.listener = listener;
+		htype = message.getHtype();
+		hlen = message.getHlen();
+		hops = message.getHops();
+		xid = message.getXid();
+		secs = message.getSecs();
+		flags = message.getFlags();
+		ciaddr = message.getCiaddr().clone();
+		giaddr = message.getGiaddr().clone();
+		chaddr = message.getChaddr().clone();
+		macAddress = MacAddress.valueOf(chaddr);
+
+		// Read in place, neither copying the values nor changing the table.
+		OptionTable options = message.getOptionTable();
+		messageType = options.length(OPTION_MESSAGETYPE) == 1 ? options
+				.getUnsigned(OPTION_MESSAGETYPE) : -1;
+		maxMessageSize = options.length(OPTION_MAXMESSAGESIZE) == 2 ? options
+				.getUnsigned(OPTION_MAXMESSAGESIZE) : 0;
+		vendorClass = options.contains(OPTION_VENDORCLASS) ? BSDPVendorClass
+				.valueOf(options.array(OPTION_VENDORCLASS), options
+						.offset(OPTION_VENDORCLASS), options
+						.length(OPTION_VENDORCLASS)) : null;
+
+		bsdp = message.IsBSDPOptSet(BSDPMessage.BSDP_OPTION_VERSION);
+		BSDPoMessageType typeOption = (BSDPoMessageType) message
+				.getBDSPOption(BSDPMessage.BSDP_OPTION_MESSAGETYPE);
+		bsdpMessageType = typeOption == null ? null : typeOption.getType();
+		BSDPoReplyPort replyPortOption = (BSDPoReplyPort) message
+				.getBDSPOption(BSDPMessage.BSDP_OPTION_REPLYPORT);
+		replyPort = replyPortOption == null ? DHCPMessage.CLIENT_PORT
+				: replyPortOption.getReplyPort();
+		try {
+			replyDestination = new InetSocketAddress(InetAddress
+					.getByAddress(ciaddr), replyPort);
+		} catch (UnknownHostException e) {
+			// ciaddr always has four bytes.
+			throw new IllegalStateException(e);
+		}
+		BSDPoBootImageAttributeFilterList filterOption = (BSDPoBootImageAttributeFilterList) message
+				.getBDSPOption(BSDPMessage.BSDP_OPTION_IMAGEATTRIBUTESFILTER);
+		imageAttributesFilter = filterOption == null ? null : filterOption
+				.getEncodedData();
+		BSDPoSelectedBootImageId selectedOption = (BSDPoSelectedBootImageId) message
+				.getBDSPOption(BSDPMessage.BSDP_OPTION_SELECTEDBOOTIMAGEID);
+		selectedBootImage = selectedOption == null ? null : selectedOption
+				.getSelectedBootImageId();
+	}
+
+	/**
+	 * @return the listener this request was received on or null if it was
+	 *         created locally.
+	 */
+	public BSDPListener getListener() {
+		return listener;
+	}
+
+	public byte getHtype() {
+		return htype;
+	}
+
+	public byte getHlen() {
+		return hlen;
+	}
+
+	public byte getHops() {
+		return hops;
+	}
+
+	public int getXid() {
+		return xid;
+	}
+
+	public short getSecs() {
+		return secs;
+	}
+
+	public short getFlags() {
+		return flags;
+	}
+
+	public byte[] getCiaddr() {
+		return ciaddr.clone();
+	}
+
+	public byte[] getGiaddr() {
+		return giaddr.clone();
+	}
+
+	public byte[] getChaddr() {
+		return chaddr.clone();
+	}
+
+	/**
+	 * @return the client IP address, not copied. It must not be changed.
+	 */
+	byte[] getRawCiaddr() {
+		return ciaddr;
+	}
+
+	/**
+	 * @return the relay agent IP address, not copied. It must not be changed.
+	 */
+	byte[] getRawGiaddr() {
+		return giaddr;
+	}
+
+	/**
+	 * @return the client hardware address, not copied. It must not be
+	 *         changed.
+	 */
+	byte[] getRawChaddr() {
+		return chaddr;
+	}
+
+	/**
+	 * @return the first six bytes of the client hardware address, see
+	 *         {@link MacAddress}.
+	 */
+	public long getMacAddress() {
+		return macAddress;
+	}
+
+	/**
+	 * @return the DHCP message type (option 53) or -1 if it is not present.
+	 */
+	public int getMessageType() {
+		return messageType;
+	}
+
+	/**
+	 * @return the maximum DHCP message size of the client (option 57) or 0 if
+	 *         it is not present.
+	 */
+	public int getMaxMessageSize() {
+		return maxMessageSize;
+	}
+
+	/**
+	 * @return the parsed vendor class identifier (option 60) or null if it is
+	 *         not present.
+	 */
+	public BSDPVendorClass getVendorClass() {
+		return vendorClass;
+	}
+
+	/**
+	 * @return true if the request carries a BSDP version.
+	 */
+	public boolean isBSDP() {
+		return bsdp;
+	}
+
+	/**
+	 * @return the BSDP message type or null if it is not present or unknown.
+	 */
+	public TYPES getBSDPMessageType() {
+		return bsdpMessageType;
+	}
+
+	/**
+	 * @return the port to send the replies to.
+	 */
+	public int getReplyPort() {
+		return replyPort;
+	}
+
+	/**
+	 * @return the address and port to send the replies to, the client IP
+	 *         address and the reply port.
+	 */
+	public InetSocketAddress getReplyDestination() {
+		return replyDestination;
+	}
+
+	/**
+	 * @return the encoded image attributes filter list or null if it is not
+	 *         present.
+	 */
+	public byte[] getImageAttributesFilter() {
+		return imageAttributesFilter == null ? null : imageAttributesFilter
+				.clone();
+	}
+
+	/**
+	 * @return the encoded image attributes filter list, not copied, or null if
+	 *         it is not present. It must not be changed.
+	 */
+	byte[] getRawImageAttributesFilter() {
+		return imageAttributesFilter;
+	}
+
+	/**
+	 * @return the filters of the image attributes filter list, decoded for
+	 *         each call, or null if it is not present.
+	 */
+	public List<BootImageFilter> getImageFilters() {
+		if (imageAttributesFilter == null) {
+			return null;
+		}
+		BSDPoBootImageAttributeFilterList filterList = new BSDPoBootImageAttributeFilterList();
+		filterList.setEncodedData(imageAttributesFilter);
+		return filterList.listFilters();
+	}
+
+	/**
+	 * @return the selected boot image or null if none is selected.
+	 */
+	public BootImage getSelectedBootImage() {
+		return selectedBootImage;
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "@" + hashCode() + "[xid=" + xid
+				+ ",ciaddr=" + DHCPMessage.ipaddrToString(ciaddr) + ",giaddr="
+				+ DHCPMessage.ipaddrToString(giaddr) + ",chaddr="
+				+ Arrays.toString(chaddr) + ",messageType=" + messageType
+				+ ",vendorClass="
+				+ (vendorClass == null ? null : vendorClass.getName())
+				+ ",bsdp=" + bsdp
+				+ ",bsdpMessageType=" + bsdpMessageType + ",replyPort="
+				+ replyPort + ",maxMessageSize=" + maxMessageSize
+				+ ",imageAttributesFilter="
+				+ Arrays.toString(imageAttributesFilter)
+				+ ",selectedBootImage=" + selectedBootImage + "]";
+	}
+}
@@ -0,0 +1,48 @@
+/*
+ *    BSDPServer - Implements Apple's Boot Service Discover Protocol
+ *     in Java. "jbsdpd"
+ *    Copyright (C) 2015  Jan-Philipp Hülshoff <github@bklosr.de>
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package de.upb.phys.bsdpd;
+
+/**
+ * Decides on which thread a decoded request is handled.
+ * 
+ * @author jph
+ * 
+ */
+public interface BSDPRequestDispatcher {
+
+	/**
+	 * Callback doing the actual work for one request.
+	 */
+	public static interface RequestHandler {
+		public void handle(BSDPRequest request);
+	}
+
+	/**
+	 * Hands a request over for handling.
+	 * 
+	 * @return false if a request was dropped because of overload.
+	 */
+	public boolean submit(BSDPRequest request) throws InterruptedException;
+
+	/**
+	 * Stops handling. Requests not yet handled may be discarded.
+	 */
+	public void shutdown();
+}
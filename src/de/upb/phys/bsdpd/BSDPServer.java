@@ -20,22 +20,27 @@
 package de.upb.phys.bsdpd;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import de.upb.phys.bsdpd.BSDPRequestDispatcher.RequestHandler;
 import de.upb.phys.bsdpd.bsdppackets.BSDPOption;
-import de.upb.phys.bsdpd.bsdppackets.BSDPoBootImageAttributeFilterList;
 import de.upb.phys.bsdpd.bsdppackets.BSDPoBootImageList;
 import de.upb.phys.bsdpd.bsdppackets.BSDPoDefaultBootImageId;
 import de.upb.phys.bsdpd.bsdppackets.BSDPoMessageType;
-import de.upb.phys.bsdpd.bsdppackets.BSDPoReplyPort;
 import de.upb.phys.bsdpd.bsdppackets.BSDPoSelectedBootImageId;
-import de.upb.phys.bsdpd.bsdppackets.BSDPoServerId;
 import de.upb.phys.bsdpd.bsdppackets.BSDPoServerPriority;
 import de.upb.phys.bsdpd.bsdppackets.DHCPOption;
 import de.upb.phys.bsdpd.bsdppackets.BSDPoBootImageAttributeFilterList.BootImageFilter;
@@ -43,13 +48,77 @@ import de.upb.phys.bsdpd.bsdppackets.BSDPoMessageType.TYPES;
 import de.upb.phys.bsdpd.imageDB.BootImage;
 import de.upb.phys.bsdpd.imageDB.BootImageDatabase;
 import de.upb.phys.bsdpd.imageDB.BootImage.ARCH;
+import de.upb.phys.bsdpd.transport.BSDPBufferPool;
+import de.upb.phys.bsdpd.transport.BSDPTransport;
+import de.upb.phys.bsdpd.transport.MMsgDatagramTransport;
+import de.upb.phys.bsdpd.transport.NIODatagramTransport;
 import edu.bucknell.net.JDHCP.DHCPMessage;
-import edu.bucknell.net.JDHCP.DHCPSocket;
+import edu.bucknell.net.JDHCP.OptionTable;
 
 public class BSDPServer {
 
+	/**
+	 * Threads the requests are handled on.
+	 */
+	public static enum EXECUTION {
+		/** Receive and handle on one thread. */
+		SINGLE_THREAD,
+		/** Handle on the threads of a {@link BSDPWorkerPool}. */
+		WORKER_POOL,
+		/** Handle every request on its own virtual thread (Java 21). */
+		VIRTUAL_THREADS
+	}
+
+	/**
+	 * Socket implementation of the listeners.
+	 */
+	public static enum TRANSPORT {
+		/** One system call per datagram, {@link NIODatagramTransport}. */
+		NIO,
+		/**
+		 * Batches of datagrams per system call, {@link MMsgDatagramTransport}
+		 * (Linux, Java 21 or later).
+		 */
+		MMSG
+	}
+
 	private static BSDPServer server;
-	private boolean running = true;
+	private volatile boolean running = true;
+	private final List<BSDPListener> listeners = new CopyOnWriteArrayList<BSDPListener>();
+	private final List<Shard> shards = new CopyOnWriteArrayList<Shard>();
+	private BSDPRateLimiter rateLimiter = null;
+	/** Names of the images not offered because of a too long description. */
+	private final Set<String> tooLongImages = Collections
+			.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private BSDPMessagePool replyMessages = new BSDPMessagePool(
+			REPLY_MESSAGES);
+	private volatile BSDPServerIdentities serverIdentities = null;
+
+	/**
+	 * Interval for checking the addresses of the network interfaces in ms.
+	 */
+	private static final long INTERFACE_REFRESH_INTERVAL = 30000;
+	/**
+	 * Number of free reply buffers kept for reuse.
+	 */
+	private static final int REPLY_BUFFERS = 256;
+	/**
+	 * Number of free reply messages kept for reuse by each handling thread,
+	 * enough for a LIST answer of several replies.
+	 */
+	private static final int REPLY_MESSAGES = 16;
+	/**
+	 * Length of a boot image list entry with a one character description.
+	 */
+	private static final int MIN_LIST_ENTRY_LENGTH = 6;
+	/**
+	 * Smallest maximum message size a client may send (RFC 2132).
+	 */
+	private static final int MIN_MAX_MESSAGE_SIZE = 576;
+	/**
+	 * IP and UDP headers counted by the maximum message size.
+	 */
+	private static final int IP_UDP_HEADER_LENGTH = 28;
 	private Thread bsdpdThread = null;
 
 	private static final Logger l = Logger.getLogger("bsdpd");
@@ -58,12 +127,22 @@ public class BSDPServer {
 
 	}
 
-	private List<BSDPMessage> handleBSDPMessage(BSDPMessage bsdpMessage) {
-		switch (bsdpMessage.getOption((byte) 0x35)[0]) { // DHCP Message Type
+	private BSDPServerIdentity getServerIdentity(BSDPRequest request) {
+		return request.getListener() != null ? request.getListener()
+				.getServerIdentity(request) : serverIdentities.select(request
+				.getRawGiaddr(), request.getRawCiaddr());
+	}
+
+	private List<BSDPMessage> handleBSDPMessage(BSDPRequest request) {
+		BSDPServerIdentity identity = getServerIdentity(request);
+		TYPES bsdpMessageType = request.getBSDPMessageType();
+		if (bsdpMessageType == null) {
+			return new LinkedList<BSDPMessage>();
+		}
+
+		switch (request.getMessageType()) { // DHCP Message Type
 		case 5:// ACK
-			switch (((BSDPoMessageType) bsdpMessage
-					.getBDSPOption(BSDPMessage.BSDP_OPTION_MESSAGETYPE))
-					.getType()) { // BSDP Message Type
+			switch (bsdpMessageType) { // BSDP Message Type
 			case LIST:// LIST
 				break;
 			case SELECT:// SELECT
@@ -73,13 +152,11 @@ public class BSDPServer {
 			}
 			break;
 		case 8:// INFORM
-			switch (((BSDPoMessageType) bsdpMessage
-					.getBDSPOption(BSDPMessage.BSDP_OPTION_MESSAGETYPE))
-					.getType()) { // BSDP Message Type
+			switch (bsdpMessageType) { // BSDP Message Type
 			case LIST:// LIST
-				return answerInformList(bsdpMessage);
+				return answerInformList(request, identity);
 			case SELECT:// SELECT
-				return answerInformSelect(bsdpMessage);
+				return answerInformSelect(request, identity);
 			case FAILED:// FAILED
 				break;
 			}
@@ -88,354 +165,611 @@ public class BSDPServer {
 		return new LinkedList<BSDPMessage>();
 	}
 
-	private List<BSDPMessage> answerInformList(BSDPMessage bsdpMessage) {
+	private List<BSDPMessage> answerInformList(BSDPRequest request,
+			BSDPServerIdentity identity) {
 		List<BSDPMessage> answerPackages = new LinkedList<BSDPMessage>();
 
-		String[] vendorclass = new String(bsdpMessage.getOption((byte) 60))
-				.split("/");
-		if (vendorclass.length != 3) {
+		BSDPVendorClass vendorClass = request.getVendorClass();
+		if (vendorClass == null || vendorClass.getArch() == null) {
 			l.log(Level.INFO, " ~> vendorclass format not known.");
 			return null;
 		}
-		String vendor = vendorclass[0];
-		String architectureString = vendorclass[1];
-		ARCH arch = ARCH.valueOf(architectureString);
-		String systemIdentifier = vendorclass[2];
+		ARCH arch = vendorClass.getArch();
+		String systemIdentifier = vendorClass.getSystemIdentifier();
 
 		// Acquire information from database...
-		List<BootImage> bootImagesToSend = new LinkedList<BootImage>();
-		if (bsdpMessage
-				.IsBSDPOptSet(BSDPMessage.BSDP_OPTION_IMAGEATTRIBUTESFILTER)) {
-			BSDPoBootImageAttributeFilterList filterList = (BSDPoBootImageAttributeFilterList) bsdpMessage
-					.getBDSPOption(BSDPMessage.BSDP_OPTION_IMAGEATTRIBUTESFILTER);
-
-			for (BootImageFilter filter : filterList.listFilters()) {
-				List<BootImage> filteredBootImages = BootImageDatabase.bootImageDB
-						.findBootableImages(arch, systemIdentifier, filter);
-				bootImagesToSend.addAll(filteredBootImages);
-			}
-		} else {
-			bootImagesToSend = BootImageDatabase.bootImageDB
-					.findBootableImages(arch, systemIdentifier);
-		}
-
-		String macAddress = macAddressToString(bsdpMessage.getChaddr());
+		List<BootImageFilter> filters = request.getImageFilters();
+		// The list is emptied while the replies are packed.
+		List<BootImage> bootImagesToSend = new LinkedList<BootImage>(
+				filters != null ? BootImageDatabase.bootImageDB
+						.findBootableImages(arch, systemIdentifier, filters)
+						: BootImageDatabase.bootImageDB.findBootableImages(
+								arch, systemIdentifier));
+
+		long macAddress = request.getMacAddress();
 		BootImage defaultBootImage = BootImageDatabase.bootImageDB
 				.getLastSelectedImage(macAddress, arch, systemIdentifier);
-
-		byte[] senderAddress = bsdpMessage.getCiaddr();
-
-		BSDPoReplyPort replyPortOption = ((BSDPoReplyPort) bsdpMessage
-				.getBDSPOption(BSDPMessage.BSDP_OPTION_REPLYPORT));
-		int answerPort = replyPortOption == null ? DHCPMessage.CLIENT_PORT
-				: replyPortOption.getReplyPort();
-
-		// Counter for placing the BootImage records.
-		int bootImageListPos = 0;
+		int maxMessageSize = getLongOptionsMessageSize(request);
 
 		/*
 		 * Construct packet with: - BSDP Boot Image List Path - BSDP Default Boot Image - BSDP Server Identifier
 		 */
 		{
-			BSDPMessage answerMessage1 = new BSDPMessage();
-			answerMessage1.setDestinationHost(DHCPMessage
-					.ipaddrToString(senderAddress));
-			answerMessage1.setPort(answerPort);// Set replyport/answerport
-			answerMessage1.setOp((byte) 0x2);
-			answerMessage1.setHtype(bsdpMessage.getHtype());
-			answerMessage1.setHlen(bsdpMessage.getHlen());
-			answerMessage1.setHops(bsdpMessage.getHops());
-			answerMessage1.setXid(bsdpMessage.getXid());
-			answerMessage1.setSecs(bsdpMessage.getSecs());
-			answerMessage1.setFlags(bsdpMessage.getFlags());
-			answerMessage1.setCiaddr(bsdpMessage.getCiaddr());
-			answerMessage1.setYiaddr(new byte[4]);
-			answerMessage1.setSiaddr(new BSDPoServerId().getId().getAddress());
-			answerMessage1.setGiaddr(bsdpMessage.getGiaddr());
-			answerMessage1.setChaddr(bsdpMessage.getChaddr());
-
-			answerMessage1.setOption((byte) 53, new byte[] { DHCPMessage.ACK });
-			answerMessage1.setOption((byte) 54, new BSDPoServerId().getId()
-					.getAddress());
-			try {
-				answerMessage1.setOption((byte) 60, new String("AAPLBSDPC")
-						.getBytes("US-ASCII"));
-			} catch (UnsupportedEncodingException e) {
-				throw new IllegalStateException(e);
-			}
-
-			answerMessage1.setBSDPOption(new BSDPoMessageType(TYPES.LIST));// Set BSDP Message Type to LIST
-			answerMessage1.setBSDPOption(new BSDPoServerPriority(500));
-			answerMessage1.setBSDPOption(new BSDPoServerId());
+			BSDPReplyBuilder answerMessage1 = new BSDPReplyBuilder(request,
+					identity, replyMessages).maxMessageSize(maxMessageSize)
+					.bsdpOption(new BSDPoMessageType(TYPES.LIST)) // Set BSDP Message Type to LIST
+					.bsdpOption(new BSDPoServerPriority(500)).bsdpOption(
+							identity.getServerIdOption());
 
-			BSDPoBootImageList bootImagesSent = new BSDPoBootImageList();
 			if (defaultBootImage != null) {
-				answerMessage1.setBSDPOption(new BSDPoDefaultBootImageId(
+				answerMessage1.bsdpOption(new BSDPoDefaultBootImageId(
 						defaultBootImage)); // BSDP Default Boot Image ID (Section 3.4.2)
-				bootImagesSent.addBootImage(defaultBootImage, defaultBootImage
-						.getDescription());
+				// The default image is listed first.
 				bootImagesToSend.remove(defaultBootImage);
+				bootImagesToSend.add(0, defaultBootImage);
 			}
 
-			int i = 0;
-			for (; i < 1 && i + bootImageListPos < bootImagesToSend.size(); i++) {
-				bootImagesSent.addBootImage(bootImagesToSend
-						.get(bootImageListPos + i), bootImagesToSend.get(
-						bootImageListPos + i).getDescription());
-			}
-
+			BSDPoBootImageList bootImagesSent = new BSDPoBootImageList();
+			packBootImages(answerMessage1, bootImagesSent, bootImagesToSend);
 			if (bootImagesSent.listBootImages().size() != 0) {
-				answerMessage1.setBSDPOption(bootImagesSent);
+				answerMessage1.bsdpOption(bootImagesSent);
 			}
-			bootImageListPos += i;
 
-			answerPackages.add(answerMessage1);
+			answerPackages.add(answerMessage1.build());
 		}
 
-		// Send all other BootImages in another packet with 2 images per Packet...
-		while (bootImageListPos < bootImagesToSend.size()) {
-			BSDPMessage answerMessage2 = new BSDPMessage();
-			answerMessage2.setDestinationHost(DHCPMessage
-					.ipaddrToString(senderAddress));
-			answerMessage2.setPort(answerPort);// Set replyport/answerport
-			answerMessage2.setOp((byte) 0x2);
-			answerMessage2.setHtype(bsdpMessage.getHtype());
-			answerMessage2.setHlen(bsdpMessage.getHlen());
-			answerMessage2.setHops(bsdpMessage.getHops());
-			answerMessage2.setXid(bsdpMessage.getXid());
-			answerMessage2.setSecs(bsdpMessage.getSecs());
-			answerMessage2.setFlags(bsdpMessage.getFlags());
-			answerMessage2.setCiaddr(bsdpMessage.getCiaddr());
-			answerMessage2.setYiaddr(new byte[4]);
-			answerMessage2.setSiaddr(new BSDPoServerId().getId().getAddress());
-			answerMessage2.setGiaddr(bsdpMessage.getGiaddr());
-			answerMessage2.setChaddr(bsdpMessage.getChaddr());
-
-			answerMessage2.setOption((byte) 53, new byte[] { DHCPMessage.ACK });
-			answerMessage2.setOption((byte) 54, new BSDPoServerId().getId()
-					.getAddress());
-			try {
-				answerMessage2.setOption((byte) 60, new String("AAPLBSDPC")
-						.getBytes("US-ASCII"));
-			} catch (UnsupportedEncodingException e) {
-				throw new IllegalStateException(e);
-			}
-
-			answerMessage2.setCiaddr(bsdpMessage.getCiaddr());
-			answerMessage2.setXid(bsdpMessage.getXid());
-			answerMessage2.setBSDPOption(new BSDPoMessageType(TYPES.LIST));// Set BSDP Message Type to LIST
-			answerMessage2.setBSDPOption(new BSDPoServerId());
+		// Send all other BootImages in as few packets as possible...
+		while (!bootImagesToSend.isEmpty()) {
+			BSDPReplyBuilder answerMessage2 = new BSDPReplyBuilder(request,
+					identity, replyMessages).maxMessageSize(maxMessageSize)
+					.bsdpOption(new BSDPoMessageType(TYPES.LIST)) // Set BSDP Message Type to LIST
+					.bsdpOption(identity.getServerIdOption());
 
 			BSDPoBootImageList bootImageList2 = new BSDPoBootImageList();
-			int i = 0;
-			for (; i < 2 && i + bootImageListPos < bootImagesToSend.size(); i++) {
-				bootImageList2.addBootImage(bootImagesToSend
-						.get(bootImageListPos + i), bootImagesToSend.get(
-						bootImageListPos + i).getDescription());
-			}
-			bootImageListPos += i;
-			answerMessage2.setBSDPOption(bootImageList2);
-			answerPackages.add(answerMessage2);
+			packBootImages(answerMessage2, bootImageList2, bootImagesToSend);
+			if (bootImageList2.listBootImages().size() == 0) {
+				answerMessage2.discard();
+				String name = bootImagesToSend.remove(0).getName();
+				// Warned once, not for every LIST request.
+				l.log(tooLongImages.add(name) ? Level.WARNING : Level.FINE,
+						"The description of image {0} is too long for a "
+								+ "LIST reply. Not offering it.", name);
+				continue;
+			}
+			answerPackages.add(answerMessage2.bsdpOption(bootImageList2)
+					.build());
 		}
 
 		return answerPackages;
 	}
 
-	private List<BSDPMessage> answerInformSelect(BSDPMessage bsdpMessage) {
-		String[] vendorclass = new String(bsdpMessage.getOption((byte) 60))
-				.split("/");
-		if (vendorclass.length != 3) {
+	/**
+	 * Moves the images fitting into the BSDP options of the reply from the
+	 * list of images to send into the boot image list. An image too long for
+	 * the remaining space is skipped, so a shorter one after it may still
+	 * fill the reply up. The images keep their order.
+	 */
+	private static void packBootImages(BSDPReplyBuilder reply,
+			BSDPoBootImageList list, List<BootImage> images) {
+		// The list option itself needs a code and a length byte, or several
+		// of them if it is split.
+		int space = reply.getFreeBSDPOptionSpace();
+		int listLength = list.getEncodedLength();
+		for (Iterator<BootImage> it = images.iterator(); it.hasNext()
+				&& OptionTable.encodedLength(listLength
+						+ MIN_LIST_ENTRY_LENGTH) <= space;) {
+			BootImage image = it.next();
+			byte[] entry = image.getBSDPEncodedListEntry();
+			if (entry == null) {
+				// Description too long, never fits.
+				continue;
+			}
+			int length = entry.length;
+			if (OptionTable.encodedLength(listLength + length) <= space) {
+				list.addBootImage(image);
+				listLength += length;
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * @return maximum size of the LIST replies to the request if they may
+	 *         carry long options, otherwise 0.
+	 */
+	private static int getLongOptionsMessageSize(BSDPRequest request) {
+		if (!BSDPServerConfig.serverConfig.isLongOptions()) {
+			return 0;
+		}
+		int size = request.getMaxMessageSize();
+		if (size < MIN_MAX_MESSAGE_SIZE) {
+			return 0;
+		}
+		return Math.min(size, BSDPTransport.PACKET_SIZE) - IP_UDP_HEADER_LENGTH;
+	}
+
+	private List<BSDPMessage> answerInformSelect(BSDPRequest request,
+			BSDPServerIdentity identity) {
+		BSDPVendorClass vendorClass = request.getVendorClass();
+		if (vendorClass == null || vendorClass.getArch() == null) {
 			l.log(Level.INFO, " ~> vendorclass format not known.");
 			return null;
 		}
-		String vendor = vendorclass[0];
-		String architectureString = vendorclass[1];
-		ARCH arch = ARCH.valueOf(architectureString);
-		String systemIdentifier = vendorclass[2];
+		ARCH arch = vendorClass.getArch();
+		String systemIdentifier = vendorClass.getSystemIdentifier();
 
 		// Acquire information from database...
 		List<BootImage> bootImages = BootImageDatabase.bootImageDB
 				.findBootableImages(arch, systemIdentifier);
-		BootImage selectedImage = ((BSDPoSelectedBootImageId) bsdpMessage
-				.getBDSPOption(BSDPMessage.BSDP_OPTION_SELECTEDBOOTIMAGEID))
-				.getSelectedBootImageId();
+		BootImage selectedImage = request.getSelectedBootImage();
 		for (BootImage image : bootImages) {
 			if (image.getIndex() == selectedImage.getIndex()) {
-				return answerInformSelectACK(bsdpMessage);
+				return answerInformSelectACK(request, identity);
 			}
 		}
-		return answerInformSelectFAILED(bsdpMessage);
+		return answerInformSelectFAILED(request, identity);
 	}
 
-	private List<BSDPMessage> answerInformSelectACK(BSDPMessage bsdpMessage) {
+	private List<BSDPMessage> answerInformSelectACK(BSDPRequest request,
+			BSDPServerIdentity identity) {
 		List<BSDPMessage> answerMessages = new LinkedList<BSDPMessage>();
-		BSDPoReplyPort replyPortOption = ((BSDPoReplyPort) bsdpMessage
-				.getBDSPOption(BSDPMessage.BSDP_OPTION_REPLYPORT));
-		int answerPort = replyPortOption == null ? DHCPMessage.CLIENT_PORT
-				: replyPortOption.getReplyPort();
-
-		String[] vendorclass = new String(bsdpMessage.getOption((byte) 60))
-				.split("/");
-		if (vendorclass.length != 3) {
+
+		BSDPVendorClass vendorClass = request.getVendorClass();
+		if (vendorClass == null || vendorClass.getArch() == null) {
 			l.log(Level.INFO, " ~> vendorclass format not known.");
 			return null;
 		}
-		String vendor = vendorclass[0];
-		String architectureString = vendorclass[1];
-		ARCH arch = ARCH.valueOf(architectureString);
-		String systemIdentifier = vendorclass[2];
+		ARCH arch = vendorClass.getArch();
+		String systemIdentifier = vendorClass.getSystemIdentifier();
 
 		// Save settings in the database...
-		String macAddress = macAddressToString(bsdpMessage.getChaddr());
-		BootImage selectedImage = ((BSDPoSelectedBootImageId) bsdpMessage
-				.getBDSPOption(BSDPMessage.BSDP_OPTION_SELECTEDBOOTIMAGEID))
-				.getSelectedBootImageId();
+		long macAddress = request.getMacAddress();
+		BootImage selectedImage = request.getSelectedBootImage();
 		BootImageDatabase.bootImageDB.setLastSelectedImage(macAddress,
 				selectedImage.getIndex());
 
-		BSDPMessage answerMessage1 = new BSDPMessage();
-		{
-			answerMessage1.setDestinationHost(DHCPMessage
-					.ipaddrToString(bsdpMessage.getCiaddr()));
-			answerMessage1.setPort(answerPort);// Set replyport/answerport
-			answerMessage1.setOp((byte) 0x2);
-			answerMessage1.setHtype(bsdpMessage.getHtype());
-			answerMessage1.setHlen(bsdpMessage.getHlen());
-			answerMessage1.setHops(bsdpMessage.getHops());
-			answerMessage1.setXid(bsdpMessage.getXid());
-			answerMessage1.setSecs(bsdpMessage.getSecs());
-			answerMessage1.setFlags(bsdpMessage.getFlags());
-			answerMessage1.setCiaddr(bsdpMessage.getCiaddr());
-			answerMessage1.setYiaddr(new byte[4]);
-			answerMessage1.setSiaddr(new BSDPoServerId().getId().getAddress());
-			answerMessage1.setGiaddr(bsdpMessage.getGiaddr());
-			answerMessage1.setChaddr(bsdpMessage.getChaddr());
-			answerMessage1.setServerName(BootImageDatabase.bootImageDB
-					.getBootServerName(selectedImage));
-			answerMessage1.setFilename(BootImageDatabase.bootImageDB
-					.getBootServerFile(selectedImage, arch));
-
-			answerMessage1.setOption((byte) 53, new byte[] { DHCPMessage.ACK });
-			answerMessage1.setOption((byte) 54, new BSDPoServerId().getId()
-					.getAddress());
-			try {
-				answerMessage1.setOption((byte) 60, new String("AAPLBSDPC")
-						.getBytes("US-ASCII"));
-			} catch (UnsupportedEncodingException e) {
-				throw new IllegalStateException(e);
-			}
-			for (DHCPOption option : BootImageDatabase.bootImageDB
-					.generateExtraDHCPBootOptions(selectedImage, macAddress)) {
-				answerMessage1.setDHCPOption(option);
-			}
+		BSDPReplyBuilder answerMessage1 = new BSDPReplyBuilder(request,
+				identity, replyMessages).serverName(
+				BootImageDatabase.bootImageDB.getBootServerName(selectedImage))
+				.filename(
+						BootImageDatabase.bootImageDB.getBootServerFile(
+								selectedImage, arch));
+		for (DHCPOption option : BootImageDatabase.bootImageDB
+				.generateExtraDHCPBootOptions(selectedImage, macAddress)) {
+			answerMessage1.dhcpOption(option);
+		}
 
-			answerMessage1.setBSDPOption(new BSDPoMessageType(TYPES.SELECT));// Set BSDP Message Type to LIST
-			answerMessage1
-					.setBSDPOption(bsdpMessage
-							.getBDSPOption(BSDPMessage.BSDP_OPTION_SELECTEDBOOTIMAGEID));
-			for (BSDPOption option : BootImageDatabase.bootImageDB
-					.generateExtraBDSPBootOptions(selectedImage, macAddress)) {
-				answerMessage1.setBSDPOption(option);
-			}
+		answerMessage1.bsdpOption(new BSDPoMessageType(TYPES.SELECT));// Set BSDP Message Type to SELECT
+		answerMessage1.bsdpOption(new BSDPoSelectedBootImageId(selectedImage));
+		for (BSDPOption option : BootImageDatabase.bootImageDB
+				.generateExtraBDSPBootOptions(selectedImage, macAddress)) {
+			answerMessage1.bsdpOption(option);
 		}
-		answerMessages.add(answerMessage1);
+		answerMessages.add(answerMessage1.build());
 
 		return answerMessages;
 	}
 
-	private List<BSDPMessage> answerInformSelectFAILED(BSDPMessage bsdpMessage) {
+	private List<BSDPMessage> answerInformSelectFAILED(BSDPRequest request,
+			BSDPServerIdentity identity) {
 		List<BSDPMessage> answerMessages = new LinkedList<BSDPMessage>();
-		BSDPoReplyPort replyPortOption = ((BSDPoReplyPort) bsdpMessage
-				.getBDSPOption(BSDPMessage.BSDP_OPTION_REPLYPORT));
-		int answerPort = replyPortOption == null ? DHCPMessage.CLIENT_PORT
-				: replyPortOption.getReplyPort();
+		answerMessages.add(new BSDPReplyBuilder(request, identity,
+				replyMessages).bsdpOption(new BSDPoMessageType(TYPES.FAILED))
+				.build());
+		return answerMessages;
+	}
 
-		BSDPMessage answerMessage1 = new BSDPMessage();
-		{
-			answerMessage1.setDestinationHost(DHCPMessage
-					.ipaddrToString(bsdpMessage.getCiaddr()));
-			answerMessage1.setPort(answerPort);// Set replyport/answerport
-			answerMessage1.setOp((byte) 0x2);
-			answerMessage1.setHtype(bsdpMessage.getHtype());
-			answerMessage1.setHlen(bsdpMessage.getHlen());
-			answerMessage1.setHops(bsdpMessage.getHops());
-			answerMessage1.setXid(bsdpMessage.getXid());
-			answerMessage1.setSecs(bsdpMessage.getSecs());
-			answerMessage1.setFlags(bsdpMessage.getFlags());
-			answerMessage1.setCiaddr(bsdpMessage.getCiaddr());
-			answerMessage1.setYiaddr(new byte[4]);
-			answerMessage1.setSiaddr(new BSDPoServerId().getId().getAddress());
-			answerMessage1.setGiaddr(bsdpMessage.getGiaddr());
-			answerMessage1.setChaddr(bsdpMessage.getChaddr());
-
-			answerMessage1.setOption((byte) 53, new byte[] { DHCPMessage.ACK });
-			answerMessage1.setOption((byte) 54, new BSDPoServerId().getId()
-					.getAddress());
-			try {
-				answerMessage1.setOption((byte) 60, new String("AAPLBSDPC")
-						.getBytes("US-ASCII"));
-			} catch (UnsupportedEncodingException e) {
-				throw new IllegalStateException(e);
+	/**
+	 * Request path of one or more listeners: the dispatcher with its queue, the
+	 * reply sender, the reply cache, the LIST templates and the reply buffers.
+	 * Without sharding all listeners share one. With SO_REUSEPORT shards every
+	 * listener gets its own, so the shards do not contend for the locks of a
+	 * shared queue or cache. The kernel sends the requests of a client to the
+	 * same shard, so its retransmissions still find the cached replies.
+	 */
+	private final class Shard {
+		private final String name;
+		private final RequestHandler handler = new RequestHandler() {
+			public void handle(BSDPRequest request) {
+				try {
+					handleReceivedMessage(request, Shard.this);
+				} finally {
+					// No-op if the replies were cached.
+					if (replyCache != null) {
+						replyCache.cancel(request);
+					}
+				}
 			}
+		};
+		private final BSDPRequestDispatcher dispatcher;
+		private final BSDPReplySender replySender;
+		private final BSDPReplyCache replyCache;
+		private final BSDPListTemplates listTemplates;
+		private final BSDPBufferPool replyBuffers = new BSDPBufferPool(
+				REPLY_BUFFERS);
+
+		private Shard(String name, BSDPServerConfig config) {
+			this.name = name;
+			dispatcher = createDispatcher(config, handler);
+			replySender = createReplySender(config);
+			replyCache = config.getReplyCacheSize() > 0 ? new BSDPReplyCache(
+					config.getReplyCacheSize(), config.getReplyCacheTTL())
+					: null;
+			listTemplates = config.getListTemplates() > 0 ? new BSDPListTemplates(
+					config.getListTemplates())
+					: null;
+		}
 
-			answerMessage1.setBSDPOption(new BSDPoMessageType(TYPES.FAILED));// Set BSDP Message Type to LIST
-			answerMessages.add(answerMessage1);
+		private BSDPListener createListener(String name,
+				BSDPTransport transport, String interfaceName,
+				BSDPServerConfig config) {
+			return new BSDPListener(name, transport, serverIdentities,
+					interfaceName, dispatcher, handler, replySender, config
+							.getReceiveBatchSize(), rateLimiter, replyCache);
 		}
 
-		return answerMessages;
+		/**
+		 * Stops handling requests and flushes the queued replies.
+		 */
+		private void shutdown() {
+			if (dispatcher != null) {
+				dispatcher.shutdown();
+				l.log(Level.INFO, name + ": Dispatcher statistics: "
+						+ dispatcher.toString());
+			}
+			if (replyCache != null) {
+				l.log(Level.INFO, name + ": Reply cache statistics: "
+						+ replyCache.toString());
+			}
+			if (listTemplates != null) {
+				l.log(Level.INFO, name + ": LIST template statistics: "
+						+ listTemplates.toString());
+			}
+			if (replySender != null) {
+				replySender.shutdown();
+				l.log(Level.INFO, name + ": Reply sender statistics: "
+						+ replySender.toString());
+			}
+			l.log(Level.INFO, name + ": Reply buffer statistics: "
+					+ replyBuffers.toString());
+		}
 	}
 
-	private void mainLoop() throws SocketException {
+	private void mainLoop() throws IOException {
 		l.log(Level.FINE, "In Main loop");
-		DHCPSocket mySocket = new DHCPSocket(DHCPMessage.SERVER_PORT); // create socket
-		l.log(Level.INFO, "Receiving...");
-		while (running) {
-			BSDPMessage bsdpMessage = new BSDPMessage();
-			if (mySocket.receive(bsdpMessage)) {
+		final BSDPServerConfig config = BSDPServerConfig.serverConfig;
+		if (config.getClientRate() > 0 || config.getRelayRate() > 0) {
+			rateLimiter = new BSDPRateLimiter(config.getClientRate(), config
+					.getClientBurst(), config.getRelayRate(), config
+					.getRelayBurst());
+		}
+		serverIdentities = new BSDPServerIdentities(config.getInterfaces());
+		Timer interfaceMonitor = new Timer("BSDP Interface Monitor", true);
+		interfaceMonitor.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				if (serverIdentities.refresh()) {
+					rebindInterfaceListeners(config);
+				}
+			}
+		}, INTERFACE_REFRESH_INTERVAL, INTERFACE_REFRESH_INTERVAL);
+		BootImageDatabase.bootImageDB.startWatching();
+		try {
+			int shardCount = config.getListenerShards();
+			if (shardCount > 1
+					&& !NIODatagramTransport.isReusePortSupported()) {
+				l.log(Level.WARNING, "SO_REUSEPORT is not supported on this "
+						+ "platform. Using a single listener.");
+				shardCount = 1;
+			}
+			Shard shard = null;
+			// Broadcasts only reach sockets bound to the wildcard address.
+			for (int i = 0; i < shardCount; i++) {
+				String name = "Listener " + i;
+				if (shard == null || shardCount > 1) {
+					shard = new Shard(name, config);
+					shards.add(shard);
+				}
+				BSDPTransport transport = createTransport(config,
+						new InetSocketAddress(DHCPMessage.SERVER_PORT),
+						shardCount > 1); // create socket
+				listeners.add(shard.createListener(name, transport, null,
+						config));
+			}
+			// Unicast requests to an interface address get their own listener.
+			// Listeners follow address changes of their interface, but an
+			// interface without an IPv4 address at startup gets none until
+			// the server is restarted; the wildcard listeners still answer its
+			// broadcasts.
+			for (String interfaceName : config.getInterfaces()) {
+				BSDPServerIdentity identity = serverIdentities
+						.get(interfaceName);
+				if (identity == null) {
+					continue;
+				}
+				String name = "Listener " + interfaceName;
+				if (shardCount > 1) {
+					shard = new Shard(name, config);
+					shards.add(shard);
+				}
+				BSDPTransport transport = createTransport(config,
+						new InetSocketAddress(identity.getAddress(),
+								DHCPMessage.SERVER_PORT), false);
+				listeners.add(shard.createListener(name, transport,
+						interfaceName, config));
+			}
+			if (shard.dispatcher instanceof BSDPVirtualThreadDispatcher) {
+				// Every virtual thread handles a single request only.
+				replyMessages = new BSDPMessagePool(0);
+			}
+			if (!running) {
+				// stopMainLoop was called while the listeners were created.
+				for (BSDPListener listener : listeners) {
+					listener.stop();
+				}
+			}
+
+			// The first listener runs on this thread, the others on their own.
+			List<Thread> listenerThreads = new LinkedList<Thread>();
+			for (BSDPListener listener : listeners.subList(1, listeners
+					.size())) {
+				Thread listenerThread = new Thread(listener, "BSDP "
+						+ listener.getName());
+				listenerThread.setDaemon(true);
+				listenerThread.start();
+				listenerThreads.add(listenerThread);
+			}
+			listeners.get(0).run();
+			for (Thread listenerThread : listenerThreads) {
 				try {
-					l.log(Level.INFO, "--> " + bsdpMessage.toString());
-					if (bsdpMessage
-							.IsBSDPOptSet(BSDPMessage.BSDP_OPTION_VERSION)) {
-						l.log(Level.INFO, " ~> Got a BSDP Packet handling...");
-						List<BSDPMessage> bsdpAnswers = handleBSDPMessage(bsdpMessage);
-						if (bsdpAnswers != null && bsdpAnswers.size() != 0) {
-							for (BSDPMessage bsdpAnswer : bsdpAnswers) {
-								if (bsdpAnswer != null) {
-									try {
-										mySocket.send(bsdpAnswer);
-										l.log(Level.INFO, "<-- "
-												+ bsdpAnswer.toString());
-									} catch (IOException e) {
-										l.log(Level.INFO,
-												" ~> Couldn't send packet.");
-										e.printStackTrace();
-									}
-								}
+					listenerThread.join();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		} finally {
+			interfaceMonitor.cancel();
+			BootImageDatabase.bootImageDB.stopWatching();
+			// Flushes the queued replies, so the sockets are closed after it.
+			for (Shard shard : shards) {
+				shard.shutdown();
+			}
+			if (rateLimiter != null) {
+				l.log(Level.INFO, "Rate limiter statistics: "
+						+ rateLimiter.toString());
+			}
+			l.log(Level.INFO, "Reply message statistics: "
+					+ replyMessages.toString());
+			l.log(Level.INFO, "Vendor class statistics: hits="
+					+ BSDPVendorClass.getHits() + ",misses="
+					+ BSDPVendorClass.getMisses());
+			for (BSDPListener listener : listeners) {
+				listener.close();
+				l.log(Level.INFO, "Listener statistics: "
+						+ listener.toString());
+			}
+		}
+	}
+
+	/**
+	 * Binds the listeners of interfaces whose address changed to the new
+	 * address.
+	 */
+	private void rebindInterfaceListeners(BSDPServerConfig config) {
+		for (BSDPListener listener : listeners) {
+			if (listener.getInterfaceName() == null) {
+				continue;
+			}
+			BSDPServerIdentity identity = serverIdentities.get(listener
+					.getInterfaceName());
+			if (identity == null
+					|| identity.getAddress().equals(
+							listener.getLocalAddress().getAddress())) {
+				continue;
+			}
+			try {
+				listener.rebind(createTransport(config, new InetSocketAddress(
+						identity.getAddress(), DHCPMessage.SERVER_PORT), false));
+			} catch (IOException e) {
+				l.log(Level.WARNING, listener.getName()
+						+ ": Could not bind to " + identity.getAddress()
+						+ ".", e);
+			}
+		}
+	}
+
+	private BSDPReplySender createReplySender(BSDPServerConfig config) {
+		if (config.getReplyQueueCapacity() == 0) {
+			l.log(Level.INFO, "Sending replies on the handling thread.");
+			return null;
+		}
+		l.log(Level.INFO, "Sending replies on the reply sender thread "
+				+ "(batch size " + config.getReplyBatchSize() + ", pacing "
+				+ config.getReplyPacing() + "us).");
+		BSDPReplySender sender = new BSDPReplySender(config
+				.getReplyQueueCapacity(), config.getReplyBatchSize(), config
+				.getReplyPacing());
+		sender.start();
+		return sender;
+	}
+
+	private BSDPTransport createTransport(BSDPServerConfig config,
+			InetSocketAddress localAddress, boolean reusePort)
+			throws IOException {
+		if (config.getTransport() == TRANSPORT.MMSG) {
+			if (MMsgDatagramTransport.isAvailable()) {
+				l.log(Level.INFO, "Using recvmmsg/sendmmsg on " + localAddress
+						+ ".");
+				return new MMsgDatagramTransport(localAddress, reusePort);
+			}
+			l.log(Level.WARNING, "recvmmsg/sendmmsg cannot be used with this "
+					+ "platform or Java runtime. Using NIO instead.");
+		}
+		return new NIODatagramTransport(localAddress, reusePort);
+	}
+
+	private BSDPRequestDispatcher createDispatcher(BSDPServerConfig config,
+			RequestHandler handler) {
+		switch (config.getExecutionMode()) {
+		case VIRTUAL_THREADS:
+			if (BSDPVirtualThreadDispatcher.isAvailable()) {
+				l.log(Level.INFO, "Handling requests on virtual threads.");
+				return new BSDPVirtualThreadDispatcher(config
+						.getQueueCapacity(), handler);
+			}
+			l.log(Level.WARNING, "Virtual threads are not supported by this "
+					+ "Java runtime. Using the worker pool instead.");
+			// fall through
+		case WORKER_POOL:
+			if (config.getWorkerThreads() > 0) {
+				l.log(Level.INFO, "Handling requests on "
+						+ config.getWorkerThreads() + " worker threads.");
+				BSDPWorkerPool pool = new BSDPWorkerPool(config
+						.getWorkerThreads(), config.getQueueCapacity(), config
+						.getOverflowPolicy(), handler);
+				pool.start();
+				return pool;
+			}
+			// fall through
+		case SINGLE_THREAD:
+		default:
+			l.log(Level.INFO, "Handling requests on the receiving thread.");
+			return null;
+		}
+	}
+
+	private void handleReceivedMessage(BSDPRequest request, Shard shard) {
+		if (l.isLoggable(Level.INFO)) {
+			l.log(Level.INFO, "--> " + request.toString());
+		}
+		if (request.isBSDP()) {
+			BSDPListener listener = request.getListener();
+			BSDPReplyCache replyCache = shard.replyCache;
+			BSDPListTemplates listTemplates = shard.listTemplates;
+			BSDPBufferPool replyBuffers = shard.replyBuffers;
+			l.log(Level.INFO, " ~> Got a BSDP Packet handling...");
+			// Read before the replies are built, so replies built from
+			// images changed meanwhile are not kept as templates.
+			long generation = BootImageDatabase.bootImageDB.getGeneration();
+			BSDPListTemplates.Key templateKey = null;
+			if (listTemplates != null) {
+				templateKey = createListTemplateKey(request);
+				List<byte[]> templates = templateKey == null ? null
+						: listTemplates.get(templateKey, generation);
+				if (templates != null) {
+					sendFromTemplates(request, templates, shard);
+					return;
+				}
+			}
+			List<BSDPMessage> bsdpAnswers = handleBSDPMessage(request);
+			if (bsdpAnswers != null && bsdpAnswers.size() != 0) {
+				List<BSDPReplyCache.Reply> replies = new ArrayList<BSDPReplyCache.Reply>(
+						bsdpAnswers.size());
+				// Every reply is built for the client of the request.
+				InetSocketAddress destination = request.getReplyDestination();
+				for (BSDPMessage bsdpAnswer : bsdpAnswers) {
+					if (bsdpAnswer != null) {
+						try {
+							ByteBuffer datagram = replyBuffers.acquire();
+							bsdpAnswer.externalize(datagram);
+							datagram.flip();
+							if (replyCache != null || templateKey != null) {
+								byte[] encoded = new byte[datagram.remaining()];
+								datagram.duplicate().get(encoded);
+								replies.add(new BSDPReplyCache.Reply(encoded,
+										destination));
+							}
+							listener.send(datagram, destination, replyBuffers);
+							if (l.isLoggable(Level.INFO)) {
+								l.log(Level.INFO, "<-- " + bsdpAnswer.toString());
 							}
-						} else {
-							l.log(Level.INFO, " ~> Couldn't handle packet.");
+						} catch (IOException e) {
+							l.log(Level.INFO, " ~> Couldn't send packet.");
+							e.printStackTrace();
+						} finally {
+							replyMessages.release(bsdpAnswer);
 						}
 					}
-				} catch (Exception e) {
-					l.log(Level.SEVERE, "Error while handling receive!");
-					e.printStackTrace();
+				}
+				if (replies.size() == bsdpAnswers.size()) {
+					if (replyCache != null) {
+						replyCache.put(request, replies);
+					}
+					if (templateKey != null) {
+						List<byte[]> templates = new ArrayList<byte[]>(replies
+								.size());
+						for (BSDPReplyCache.Reply reply : replies) {
+							templates.add(reply.getDatagram());
+						}
+						listTemplates.put(templateKey, generation, templates);
+					}
 				}
 			} else {
-				l.log(Level.FINEST, "Timeout!");
+				l.log(Level.INFO, " ~> Couldn't handle packet.");
 			}
 		}
 	}
 
-	private static String macAddressToString(byte[] addr) {
-		String ret = "[";
-		for (byte b : addr) {
-			ret += Integer.toHexString((0xFF & b)) + ":";
+	/**
+	 * @return the key of the LIST templates for the request or null if it is
+	 *         no LIST request the templates can be used for.
+	 */
+	private BSDPListTemplates.Key createListTemplateKey(BSDPRequest request) {
+		BSDPVendorClass vendorClass = request.getVendorClass();
+		if (request.getMessageType() != DHCPMessage.INFORM
+				|| request.getBSDPMessageType() != TYPES.LIST
+				|| vendorClass == null || vendorClass.getArch() == null) {
+			return null;
+		}
+		ARCH arch = vendorClass.getArch();
+		String systemIdentifier = vendorClass.getSystemIdentifier();
+		BootImage defaultBootImage = BootImageDatabase.bootImageDB
+				.getLastSelectedImage(request.getMacAddress(), arch,
+						systemIdentifier);
+		return new BSDPListTemplates.Key(getServerIdentity(request), arch,
+				systemIdentifier, request.getRawImageAttributesFilter(),
+				defaultBootImage, getLongOptionsMessageSize(request));
+	}
+
+	/**
+	 * Answers a LIST request with the replies of its templates.
+	 */
+	private void sendFromTemplates(BSDPRequest request,
+			List<byte[]> templates, Shard shard) {
+		BSDPListener listener = request.getListener();
+		BSDPReplyCache replyCache = shard.replyCache;
+		BSDPBufferPool replyBuffers = shard.replyBuffers;
+		List<BSDPReplyCache.Reply> replies = new ArrayList<BSDPReplyCache.Reply>(
+				templates.size());
+		try {
+			InetSocketAddress destination = request.getReplyDestination();
+			for (byte[] template : templates) {
+				ByteBuffer datagram = replyBuffers.acquire();
+				BSDPListTemplates.writeReply(datagram, template, request);
+				datagram.flip();
+				if (replyCache != null) {
+					byte[] encoded = new byte[datagram.remaining()];
+					datagram.duplicate().get(encoded);
+					replies.add(new BSDPReplyCache.Reply(encoded, destination));
+				}
+				listener.send(datagram, destination, replyBuffers);
+			}
+			if (l.isLoggable(Level.INFO)) {
+				l.log(Level.INFO, "<-- " + templates.size()
+						+ " LIST replies from templates to " + destination
+						+ ".");
+			}
+			if (replyCache != null) {
+				replyCache.put(request, replies);
+			}
+		} catch (IOException e) {
+			l.log(Level.INFO, " ~> Couldn't send packet.");
+			e.printStackTrace();
 		}
-		return ret.substring(0, ret.length() - 1) + "]";
 	}
 
 	public static void startMainLoop() throws ClassNotFoundException,
-			SocketException, SocketTimeoutException {
+			IOException {
 		l.log(Level.INFO, "Starting bsdpd...");
 		server = new BSDPServer();
 		l.log(Level.FINE, "Setting running flag...");
@@ -455,7 +789,9 @@ public class BSDPServer {
 
 	public static void stopMainLoop() {
 		BSDPServer.server.running = false;
-		BSDPServer.server.bsdpdThread.interrupt();
+		for (BSDPListener listener : BSDPServer.server.listeners) {
+			listener.stop();
+		}
 	}
 
 }
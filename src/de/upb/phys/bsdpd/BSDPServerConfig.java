@@ -0,0 +1,371 @@
+/*
+ *    BSDPServer - Implements Apple's Boot Service Discover Protocol
+ *     in Java. "jbsdpd"
+ *    Copyright (C) 2015  Jan-Philipp Hülshoff <github@bklosr.de>
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package de.upb.phys.bsdpd;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.prefs.Preferences;
+
+import de.upb.phys.bsdpd.BSDPServer.EXECUTION;
+import de.upb.phys.bsdpd.BSDPServer.TRANSPORT;
+import de.upb.phys.bsdpd.BSDPWorkerPool.OVERFLOW;
+
+/**
+ * Settings of the network and request handling part of the BSDP-Server. Like
+ * the settings of the BootImageDatabase they are saved across restarts.
+ *
+ * @author jph
+ *
+ */
+public class BSDPServerConfig {
+
+	public static final BSDPServerConfig serverConfig = new BSDPServerConfig();
+
+	private final Preferences prefs;
+
+	private List<String> interfaces;
+	private int listenerShards;
+	private int receiveBatchSize;
+	private TRANSPORT transport;
+	private EXECUTION executionMode;
+	private int workerThreads;
+	private int queueCapacity;
+	private OVERFLOW overflowPolicy;
+	private int replyQueueCapacity;
+	private int replyBatchSize;
+	private long replyPacing;
+	private int replyCacheSize;
+	private long replyCacheTTL;
+	private int listTemplates;
+	private boolean longOptions;
+	private int clientRate;
+	private int clientBurst;
+	private int relayRate;
+	private int relayBurst;
+
+	public BSDPServerConfig() {
+		prefs = Preferences.userNodeForPackage(BSDPServerConfig.class);
+
+		interfaces = parseInterfaces(prefs.get("interfaces", ""));
+		listenerShards = prefs.getInt("listenerShards", 1);
+		receiveBatchSize = prefs.getInt("receiveBatchSize", 16);
+		transport = TRANSPORT.valueOf(prefs.get("transport", TRANSPORT.NIO
+				.toString()));
+		executionMode = EXECUTION.valueOf(prefs.get("executionMode",
+				EXECUTION.WORKER_POOL.toString()));
+		workerThreads = prefs.getInt("workerThreads", Runtime.getRuntime()
+				.availableProcessors());
+		queueCapacity = prefs.getInt("queueCapacity", 256);
+		overflowPolicy = OVERFLOW.valueOf(prefs.get("overflowPolicy",
+				OVERFLOW.DROP_OLDEST.toString()));
+		replyQueueCapacity = prefs.getInt("replyQueueCapacity", 1024);
+		replyBatchSize = prefs.getInt("replyBatchSize", 32);
+		replyPacing = prefs.getLong("replyPacing", 0);
+		replyCacheSize = prefs.getInt("replyCacheSize", 1024);
+		replyCacheTTL = prefs.getLong("replyCacheTTL", 4000);
+		listTemplates = prefs.getInt("listTemplates", 256);
+		longOptions = prefs.getBoolean("longOptions", false);
+		clientRate = prefs.getInt("clientRate", 5);
+		clientBurst = prefs.getInt("clientBurst", 10);
+		relayRate = prefs.getInt("relayRate", 1000);
+		relayBurst = prefs.getInt("relayBurst", 2000);
+	}
+
+	/**
+	 * @return names of the network interfaces to answer on. Empty for all
+	 *         interfaces.
+	 */
+	public List<String> getInterfaces() {
+		return interfaces;
+	}
+
+	/**
+	 * @param interfaces
+	 *            comma separated names of network interfaces, empty for all
+	 */
+	public void setInterfaces(String interfaces) {
+		prefs.put("interfaces", interfaces);
+		this.interfaces = parseInterfaces(interfaces);
+	}
+
+	private static List<String> parseInterfaces(String interfaces) {
+		if (interfaces.trim().length() == 0) {
+			return Collections.emptyList();
+		}
+		String[] names = interfaces.trim().split("\\s*,\\s*");
+		return Collections.unmodifiableList(Arrays.asList(names));
+	}
+
+	public int getListenerShards() {
+		return listenerShards;
+	}
+
+	public void setListenerShards(int listenerShards) {
+		if (listenerShards < 1) {
+			throw new IllegalArgumentException(
+					"At least one listener is needed.");
+		}
+		prefs.putInt("listenerShards", listenerShards);
+		this.listenerShards = listenerShards;
+	}
+
+	/**
+	 * @return maximum number of datagrams a listener reads at once.
+	 */
+	public int getReceiveBatchSize() {
+		return receiveBatchSize;
+	}
+
+	public void setReceiveBatchSize(int receiveBatchSize) {
+		if (receiveBatchSize < 1) {
+			throw new IllegalArgumentException(
+					"Receive batch size must be at least 1.");
+		}
+		prefs.putInt("receiveBatchSize", receiveBatchSize);
+		this.receiveBatchSize = receiveBatchSize;
+	}
+
+	public TRANSPORT getTransport() {
+		return transport;
+	}
+
+	public void setTransport(TRANSPORT transport) {
+		prefs.put("transport", transport.toString());
+		this.transport = transport;
+	}
+
+	public EXECUTION getExecutionMode() {
+		return executionMode;
+	}
+
+	public void setExecutionMode(EXECUTION executionMode) {
+		prefs.put("executionMode", executionMode.toString());
+		this.executionMode = executionMode;
+	}
+
+	public int getWorkerThreads() {
+		return workerThreads;
+	}
+
+	public void setWorkerThreads(int workerThreads) {
+		if (workerThreads < 0) {
+			throw new IllegalArgumentException(
+					"Number of worker threads must not be negative.");
+		}
+		prefs.putInt("workerThreads", workerThreads);
+		this.workerThreads = workerThreads;
+	}
+
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	public void setQueueCapacity(int queueCapacity) {
+		if (queueCapacity < 1) {
+			throw new IllegalArgumentException(
+					"Queue capacity must be at least 1.");
+		}
+		prefs.putInt("queueCapacity", queueCapacity);
+		this.queueCapacity = queueCapacity;
+	}
+
+	public OVERFLOW getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	public void setOverflowPolicy(OVERFLOW overflowPolicy) {
+		prefs.put("overflowPolicy", overflowPolicy.toString());
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	/**
+	 * @return maximum number of replies waiting for the reply sender. 0 if
+	 *         the replies are sent on the handling thread.
+	 */
+	public int getReplyQueueCapacity() {
+		return replyQueueCapacity;
+	}
+
+	public void setReplyQueueCapacity(int replyQueueCapacity) {
+		if (replyQueueCapacity < 0) {
+			throw new IllegalArgumentException(
+					"Reply queue capacity must not be negative.");
+		}
+		prefs.putInt("replyQueueCapacity", replyQueueCapacity);
+		this.replyQueueCapacity = replyQueueCapacity;
+	}
+
+	public int getReplyBatchSize() {
+		return replyBatchSize;
+	}
+
+	public void setReplyBatchSize(int replyBatchSize) {
+		if (replyBatchSize < 1) {
+			throw new IllegalArgumentException(
+					"Reply batch size must be at least 1.");
+		}
+		prefs.putInt("replyBatchSize", replyBatchSize);
+		this.replyBatchSize = replyBatchSize;
+	}
+
+	/**
+	 * @return minimum time between two replies in µs, 0 for no pacing.
+	 */
+	public long getReplyPacing() {
+		return replyPacing;
+	}
+
+	public void setReplyPacing(long replyPacing) {
+		if (replyPacing < 0) {
+			throw new IllegalArgumentException(
+					"Reply pacing must not be negative.");
+		}
+		prefs.putLong("replyPacing", replyPacing);
+		this.replyPacing = replyPacing;
+	}
+
+	/**
+	 * @return maximum number of requests whose replies are kept for
+	 *         retransmissions. 0 disables the reply cache.
+	 */
+	public int getReplyCacheSize() {
+		return replyCacheSize;
+	}
+
+	public void setReplyCacheSize(int replyCacheSize) {
+		if (replyCacheSize < 0) {
+			throw new IllegalArgumentException(
+					"Reply cache size must not be negative.");
+		}
+		prefs.putInt("replyCacheSize", replyCacheSize);
+		this.replyCacheSize = replyCacheSize;
+	}
+
+	/**
+	 * @return time in ms the replies to a request are kept.
+	 */
+	public long getReplyCacheTTL() {
+		return replyCacheTTL;
+	}
+
+	public void setReplyCacheTTL(long replyCacheTTL) {
+		if (replyCacheTTL < 0) {
+			throw new IllegalArgumentException(
+					"Reply cache time must not be negative.");
+		}
+		prefs.putLong("replyCacheTTL", replyCacheTTL);
+		this.replyCacheTTL = replyCacheTTL;
+	}
+
+	/**
+	 * @return maximum number of encoded LIST replies kept as templates. 0
+	 *         disables the templates.
+	 */
+	public int getListTemplates() {
+		return listTemplates;
+	}
+
+	public void setListTemplates(int listTemplates) {
+		if (listTemplates < 0) {
+			throw new IllegalArgumentException(
+					"Number of LIST templates must not be negative.");
+		}
+		prefs.putInt("listTemplates", listTemplates);
+		this.listTemplates = listTemplates;
+	}
+
+	/**
+	 * @return true if LIST replies may carry more than 255 bytes of BSDP
+	 *         options, split as described by RFC 3396. Only used for clients
+	 *         sending a maximum message size (option 57).
+	 */
+	public boolean isLongOptions() {
+		return longOptions;
+	}
+
+	public void setLongOptions(boolean longOptions) {
+		prefs.putBoolean("longOptions", longOptions);
+		this.longOptions = longOptions;
+	}
+
+	/**
+	 * @return requests per second a single client may send. 0 for no limit.
+	 */
+	public int getClientRate() {
+		return clientRate;
+	}
+
+	public void setClientRate(int clientRate) {
+		if (clientRate < 0) {
+			throw new IllegalArgumentException(
+					"Rate limit must not be negative.");
+		}
+		prefs.putInt("clientRate", clientRate);
+		this.clientRate = clientRate;
+	}
+
+	/**
+	 * @return requests a single client may send at once.
+	 */
+	public int getClientBurst() {
+		return clientBurst;
+	}
+
+	public void setClientBurst(int clientBurst) {
+		if (clientBurst < 1) {
+			throw new IllegalArgumentException("Burst must be at least 1.");
+		}
+		prefs.putInt("clientBurst", clientBurst);
+		this.clientBurst = clientBurst;
+	}
+
+	/**
+	 * @return requests per second that may arrive through one relay
+	 *         (giaddr). 0 for no limit.
+	 */
+	public int getRelayRate() {
+		return relayRate;
+	}
+
+	public void setRelayRate(int relayRate) {
+		if (relayRate < 0) {
+			throw new IllegalArgumentException(
+					"Rate limit must not be negative.");
+		}
+		prefs.putInt("relayRate", relayRate);
+		this.relayRate = relayRate;
+	}
+
+	/**
+	 * @return requests that may arrive through one relay at once.
+	 */
+	public int getRelayBurst() {
+		return relayBurst;
+	}
+
+	public void setRelayBurst(int relayBurst) {
+		if (relayBurst < 1) {
+			throw new IllegalArgumentException("Burst must be at least 1.");
+		}
+		prefs.putInt("relayBurst", relayBurst);
+		this.relayBurst = relayBurst;
+	}
+}
@@ -0,0 +1,191 @@
+/*
+ *    BSDPServer - Implements Apple's Boot Service Discover Protocol
+ *     in Java. "jbsdpd"
+ *    Copyright (C) 2015  Jan-Philipp Hülshoff <github@bklosr.de>
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package de.upb.phys.bsdpd;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Server identities of the network interfaces the BSDP-Server answers on.
+ * 
+ * The identities are read once and only replaced by {@link #refresh()} if the
+ * addresses of the interfaces changed. Lookups never block and never resolve
+ * anything.
+ * 
+ * @author jph
+ * 
+ */
+public class BSDPServerIdentities {
+
+	private static final Logger l = Logger.getLogger("bsdpd");
+
+	private final List<String> interfaceNames;
+	private volatile BSDPServerIdentity[] identities = new BSDPServerIdentity[0];
+	private volatile BSDPServerIdentity defaultIdentity;
+
+	/**
+	 * @param interfaceNames
+	 *            names of the interfaces to use. If empty, all interfaces that
+	 *            are up and not the loopback interface are used.
+	 */
+	public BSDPServerIdentities(List<String> interfaceNames) {
+		this.interfaceNames = Collections
+				.unmodifiableList(new ArrayList<String>(interfaceNames));
+		refresh();
+	}
+
+	/**
+	 * Reads the addresses of the interfaces again.
+	 * 
+	 * @return true if the identities changed.
+	 */
+	public synchronized boolean refresh() {
+		BSDPServerIdentity[] current;
+		try {
+			current = readIdentities();
+		} catch (SocketException e) {
+			l.log(Level.WARNING, "Could not read the network interfaces.", e);
+			return false;
+		}
+		if (Arrays.equals(current, identities) && defaultIdentity != null) {
+			return false;
+		}
+		identities = current;
+		defaultIdentity = current.length > 0 ? current[0]
+				: createLocalHostIdentity();
+		l.log(Level.INFO, "Server identities: " + Arrays.toString(current)
+				+ ", default: " + defaultIdentity);
+		return true;
+	}
+
+	private BSDPServerIdentity[] readIdentities() throws SocketException {
+		List<BSDPServerIdentity> found = new ArrayList<BSDPServerIdentity>();
+		Enumeration<NetworkInterface> interfaces = NetworkInterface
+				.getNetworkInterfaces();
+		while (interfaces != null && interfaces.hasMoreElements()) {
+			NetworkInterface networkInterface = interfaces.nextElement();
+			if (interfaceNames.isEmpty()) {
+				if (networkInterface.isLoopback() || !networkInterface.isUp()) {
+					continue;
+				}
+			} else if (!interfaceNames.contains(networkInterface.getName())) {
+				continue;
+			}
+			for (InterfaceAddress address : networkInterface
+					.getInterfaceAddresses()) {
+				if (address.getAddress() instanceof Inet4Address) {
+					found.add(new BSDPServerIdentity(
+							networkInterface.getName(), (Inet4Address) address
+									.getAddress(), address
+									.getNetworkPrefixLength()));
+					break;
+				}
+			}
+		}
+		for (String name : interfaceNames) {
+			boolean present = false;
+			for (BSDPServerIdentity identity : found) {
+				present |= name.equals(identity.getInterfaceName());
+			}
+			if (!present) {
+				l.log(Level.WARNING, "Interface " + name
+						+ " has no IPv4 address or does not exist.");
+			}
+		}
+		return found.toArray(new BSDPServerIdentity[found.size()]);
+	}
+
+	private static BSDPServerIdentity createLocalHostIdentity() {
+		try {
+			InetAddress localHost = InetAddress.getLocalHost();
+			if (localHost instanceof Inet4Address) {
+				return new BSDPServerIdentity(null, (Inet4Address) localHost, 0);
+			}
+		} catch (UnknownHostException e) {
+			l.log(Level.WARNING, "Could not resolve the local host.", e);
+		}
+		try {
+			return new BSDPServerIdentity(null, (Inet4Address) InetAddress
+					.getByAddress(new byte[4]), 0);
+		} catch (UnknownHostException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return the identity of the named interface or null.
+	 */
+	public BSDPServerIdentity get(String interfaceName) {
+		for (BSDPServerIdentity identity : identities) {
+			if (interfaceName.equals(identity.getInterfaceName())) {
+				return identity;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Finds the identity of the interface in the subnet of the relay agent
+	 * (giaddr) or, if the request was not relayed, of the client (ciaddr).
+	 * 
+	 * @return the matching identity or the default identity.
+	 */
+	public BSDPServerIdentity select(byte[] giaddr, byte[] ciaddr) {
+		byte[] clientAddress = isZero(giaddr) ? ciaddr : giaddr;
+		for (BSDPServerIdentity identity : identities) {
+			if (identity.contains(clientAddress)) {
+				return identity;
+			}
+		}
+		return defaultIdentity;
+	}
+
+	public BSDPServerIdentity getDefault() {
+		return defaultIdentity;
+	}
+
+	public List<BSDPServerIdentity> list() {
+		return Collections.unmodifiableList(Arrays.asList(identities));
+	}
+
+	public List<String> getInterfaceNames() {
+		return interfaceNames;
+	}
+
+	private static boolean isZero(byte[] address) {
+		for (byte b : address) {
+			if (b != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
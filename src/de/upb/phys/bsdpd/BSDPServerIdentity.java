@@ -0,0 +1,147 @@
+/*
+ *    BSDPServer - Implements Apple's Boot Service Discover Protocol
+ *     in Java. "jbsdpd"
+ *    Copyright (C) 2015  Jan-Philipp Hülshoff <github@bklosr.de>
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package de.upb.phys.bsdpd;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+
+import de.upb.phys.bsdpd.bsdppackets.BSDPoServerId;
+
+/**
+ * Immutable server identifier of one network interface. The address is
+ * encoded once, so building a reply does not need any resolver calls.
+ * 
+ * @author jph
+ * 
+ */
+public final class BSDPServerIdentity {
+
+	private final String interfaceName;
+	private final InetAddress address;
+	private final byte[] encodedAddress;
+	private final int network;
+	private final int netmask;
+	private final BSDPoServerId serverIdOption;
+
+	/**
+	 * @param interfaceName
+	 *            name of the network interface, null if unknown
+	 * @param address
+	 *            IPv4 address of the server on this interface
+	 * @param prefixLength
+	 *            length of the network prefix of the address
+	 */
+	public BSDPServerIdentity(String interfaceName, Inet4Address address,
+			int prefixLength) {
+		this.interfaceName = interfaceName;
+		this.address = address;
+		this.encodedAddress = address.getAddress();
+		this.netmask = prefixLength <= 0 ? 0 : -1 << (32 - Math.min(
+				prefixLength, 32));
+		this.network = toInt(encodedAddress) & netmask;
+		this.serverIdOption = new EncodedServerId(address, encodedAddress);
+	}
+
+	/**
+	 * @return true if the IPv4 address is in the subnet of this interface.
+	 */
+	public boolean contains(byte[] ipv4Address) {
+		return netmask != 0 && (toInt(ipv4Address) & netmask) == network;
+	}
+
+	public String getInterfaceName() {
+		return interfaceName;
+	}
+
+	public InetAddress getAddress() {
+		return address;
+	}
+
+	/**
+	 * @return the encoded IPv4 address. The array is shared and must not be
+	 *         modified.
+	 */
+	public byte[] getEncodedAddress() {
+		return encodedAddress;
+	}
+
+	/**
+	 * @return the BSDP Server Identifier option for this address. It is shared
+	 *         and cannot be modified.
+	 */
+	public BSDPoServerId getServerIdOption() {
+		return serverIdOption;
+	}
+
+	/**
+	 * Server Identifier option returning the pre-encoded address of the
+	 * identity instead of encoding it for every reply.
+	 */
+	private static final class EncodedServerId extends BSDPoServerId {
+
+		private final byte[] encodedData;
+
+		EncodedServerId(InetAddress id, byte[] encodedData) {
+			super(id);
+			this.encodedData = encodedData;
+		}
+
+		@Override
+		public byte[] getEncodedData() {
+			return encodedData;
+		}
+
+		@Override
+		public void setEncodedData(byte[] encodedData) {
+			throw new UnsupportedOperationException(
+					"The server identifier of an interface is immutable");
+		}
+	}
+
+	private static int toInt(byte[] ipv4Address) {
+		return ((ipv4Address[0] & 0xFF) << 24)
+				| ((ipv4Address[1] & 0xFF) << 16)
+				| ((ipv4Address[2] & 0xFF) << 8) | (ipv4Address[3] & 0xFF);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof BSDPServerIdentity)) {
+			return false;
+		}
+		BSDPServerIdentity other = (BSDPServerIdentity) obj;
+		return address.equals(other.address) && netmask == other.netmask
+				&& (interfaceName == null ? other.interfaceName == null
+						: interfaceName.equals(other.interfaceName));
+	}
+
+	@Override
+	public int hashCode() {
+		return address.hashCode() ^ netmask;
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "@" + hashCode()
+				+ "[interfaceName=" + interfaceName + ",address="
+				+ address.getHostAddress() + ",netmask="
+				+ Integer.bitCount(netmask) + "]";
+	}
+}
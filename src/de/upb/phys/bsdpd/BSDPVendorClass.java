@@ -0,0 +1,196 @@
+/*
+ *    BSDPServer - Implements Apple's Boot Service Discover Protocol
+ *     in Java. "jbsdpd"
+ *    Copyright (C) 2015  Jan-Philipp Hülshoff <github@bklosr.de>
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package de.upb.phys.bsdpd;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import de.upb.phys.bsdpd.imageDB.BootImage.ARCH;
+
+/**
+ * Parsed vendor class identifier (option 60) of a BSDP client, e.g.
+ * <code>AAPLBSDPC/i386/MacBookPro8,1</code>.
+ * 
+ * A fleet only has a few hundred distinct vendor classes, so the parsed
+ * classes are cached by their raw bytes. {@link #valueOf(byte[])} hashes and
+ * compares the bytes only; the string is split and the architecture looked
+ * up once per distinct class. The cache has a fixed number of slots, a class
+ * displaced from its slot is parsed again on its next request.
+ * 
+ * @author jph
+ * 
+ */
+public final class BSDPVendorClass {
+
+	/** Number of cache slots, a power of two. */
+	private static final int CACHE_SIZE = 1024;
+	/** Slots looked at for a class, starting at the one of its hash. */
+	private static final int PROBES = 4;
+
+	private static final AtomicReferenceArray<BSDPVendorClass> cache = new AtomicReferenceArray<BSDPVendorClass>(
+			CACHE_SIZE);
+
+	private static final AtomicLong hits = new AtomicLong();
+	private static final AtomicLong misses = new AtomicLong();
+
+	private final byte[] encoded;
+	private final int hash;
+	private final String name;
+	private final ARCH arch;
+	private final String systemIdentifier;
+
+	private BSDPVendorClass(byte[] encoded, int hash) {
+		this.encoded = encoded;
+		this.hash = hash;
+		this.name = new String(encoded);
+
+		ARCH parsedArch = null;
+		String parsedSystemIdentifier = null;
+		int first = indexOf(encoded, 0);
+		int second = first < 0 ? -1 : indexOf(encoded, first + 1);
+		if (second >= 0 && indexOf(encoded, second + 1) < 0) {
+			try {
+				parsedArch = ARCH.valueOf(name.substring(first + 1, second));
+				parsedSystemIdentifier = name.substring(second + 1);
+			} catch (IllegalArgumentException e) {
+				// Unknown architecture.
+			}
+		}
+		this.arch = parsedArch;
+		this.systemIdentifier = parsedSystemIdentifier;
+	}
+
+	private static int indexOf(byte[] encoded, int from) {
+		for (int i = from; i < encoded.length; i++) {
+			if (encoded[i] == '/') {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @param encoded
+	 *            value of option 60, it is not kept
+	 * @return the parsed vendor class, shared by all requests with the same
+	 *         value.
+	 */
+	public static BSDPVendorClass valueOf(byte[] encoded) {
+		return valueOf(encoded, 0, encoded.length);
+	}
+
+	/**
+	 * Like {@link #valueOf(byte[])} for the value between offset and
+	 * offset + length of the array, e.g. in the parsed packet. The bytes are
+	 * only copied for a class not in the cache.
+	 */
+	public static BSDPVendorClass valueOf(byte[] data, int offset, int length) {
+		int hash = hashCode(data, offset, length);
+		int slot = hash & (CACHE_SIZE - 1);
+		for (int i = 0; i < PROBES; i++) {
+			BSDPVendorClass vendorClass = cache.get((slot + i)
+					& (CACHE_SIZE - 1));
+			if (vendorClass == null) {
+				break;
+			}
+			if (vendorClass.hash == hash
+					&& equals(vendorClass.encoded, data, offset, length)) {
+				hits.incrementAndGet();
+				return vendorClass;
+			}
+		}
+		misses.incrementAndGet();
+		BSDPVendorClass vendorClass = new BSDPVendorClass(Arrays.copyOfRange(
+				data, offset, offset + length), hash);
+		for (int i = 0; i < PROBES; i++) {
+			if (cache.compareAndSet((slot + i) & (CACHE_SIZE - 1), null,
+					vendorClass)) {
+				return vendorClass;
+			}
+		}
+		// All probed slots are taken, the class displaces the first one.
+		cache.set(slot, vendorClass);
+		return vendorClass;
+	}
+
+	/**
+	 * @return {@link Arrays#hashCode(byte[])} of the range
+	 */
+	private static int hashCode(byte[] data, int offset, int length) {
+		int hash = 1;
+		for (int i = offset; i < offset + length; i++) {
+			hash = 31 * hash + data[i];
+		}
+		return hash;
+	}
+
+	private static boolean equals(byte[] encoded, byte[] data, int offset,
+			int length) {
+		if (encoded.length != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (encoded[i] != data[offset + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the vendor class as a string.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the architecture or null if the vendor class does not have the
+	 *         form vendor/architecture/systemIdentifier with a known
+	 *         architecture.
+	 */
+	public ARCH getArch() {
+		return arch;
+	}
+
+	/**
+	 * @return the system identifier, e.g. MacBookPro8,1, or null if the
+	 *         architecture is null.
+	 */
+	public String getSystemIdentifier() {
+		return systemIdentifier;
+	}
+
+	public static long getHits() {
+		return hits.get();
+	}
+
+	public static long getMisses() {
+		return misses.get();
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "@" + hashCode() + "[name=" + name
+				+ ",arch=" + arch + ",systemIdentifier=" + systemIdentifier
+				+ "]";
+	}
+}
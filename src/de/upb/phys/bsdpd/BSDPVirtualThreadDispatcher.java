@@ -0,0 +1,155 @@
+/*
+ *    BSDPServer - Implements Apple's Boot Service Discover Protocol
+ *     in Java. "jbsdpd"
+ *    Copyright (C) 2015  Jan-Philipp Hülshoff <github@bklosr.de>
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package de.upb.phys.bsdpd;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Handles every request on its own virtual thread, so blocking calls in the
+ * handlers (prefs writes, mkdir of the shadow directory) do not occupy a
+ * platform thread.
+ * 
+ * Virtual threads need Java 21. The executor is looked up by reflection so
+ * the server still builds and runs on older runtimes; use
+ * {@link #isAvailable()} before creating an instance.
+ * 
+ * The number of requests in flight is limited. If the limit is reached the new
+ * request is dropped.
+ * 
+ * @author jph
+ * 
+ */
+public class BSDPVirtualThreadDispatcher implements BSDPRequestDispatcher {
+
+	private static final Logger l = Logger.getLogger("bsdpd");
+
+	private final ExecutorService executor;
+	private final Semaphore inFlight;
+	private final RequestHandler handler;
+
+	private final AtomicLong submitted = new AtomicLong();
+	private final AtomicLong handled = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	public BSDPVirtualThreadDispatcher(int maxInFlight, RequestHandler handler) {
+		this.executor = createVirtualThreadExecutor();
+		if (executor == null) {
+			throw new IllegalStateException(
+					"Virtual threads are not supported by this Java runtime.");
+		}
+		this.inFlight = new Semaphore(maxInFlight);
+		this.handler = handler;
+	}
+
+	/**
+	 * @return true if the running Java runtime supports virtual threads.
+	 */
+	public static boolean isAvailable() {
+		ExecutorService executor = createVirtualThreadExecutor();
+		if (executor == null) {
+			return false;
+		}
+		executor.shutdown();
+		return true;
+	}
+
+	private static ExecutorService createVirtualThreadExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod(
+					"newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	@Override
+	public boolean submit(final BSDPRequest request) {
+		submitted.incrementAndGet();
+		if (!inFlight.tryAcquire()) {
+			drop(request);
+			l.log(Level.FINE, " ~> Too many requests in flight, dropped one.");
+			return false;
+		}
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						handler.handle(request);
+					} catch (Exception e) {
+						l.log(Level.SEVERE, "Error while handling request!");
+						e.printStackTrace();
+					} finally {
+						handled.incrementAndGet();
+						inFlight.release();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			inFlight.release();
+			drop(request);
+			return false;
+		}
+		return true;
+	}
+
+	private void drop(BSDPRequest request) {
+		dropped.incrementAndGet();
+		if (request.getListener() != null) {
+			request.getListener().requestDropped(request);
+		}
+	}
+
+	@Override
+	public void shutdown() {
+		executor.shutdown();
+		try {
+			executor.awaitTermination(1, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public long getSubmitted() {
+		return submitted.get();
+	}
+
+	public long getHandled() {
+		return handled.get();
+	}
+
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "@" + hashCode() + "[inFlight="
+				+ (submitted.get() - handled.get() - dropped.get())
+				+ ",submitted=" + getSubmitted() + ",handled=" + getHandled()
+				+ ",dropped=" + getDropped() + "]";
+	}
+}
@@ -0,0 +1,204 @@
+/*
+ *    BSDPServer - Implements Apple's Boot Service Discover Protocol
+ *     in Java. "jbsdpd"
+ *    Copyright (C) 2015  Jan-Philipp Hülshoff <github@bklosr.de>
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package de.upb.phys.bsdpd;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded queue of decoded requests served by a fixed number of handler
+ * threads. The receiving thread only enqueues, so a slow handler (prefs
+ * writes, shadow directories, ...) does not stall the socket.
+ *
+ * @author jph
+ *
+ */
+public class BSDPWorkerPool implements BSDPRequestDispatcher {
+
+	/**
+	 * What to do with a request if the queue is full.
+	 */
+	public static enum OVERFLOW {
+		/** The receiving thread waits until there is space in the queue. */
+		BLOCK,
+		/** The new request is dropped. */
+		DROP_NEWEST,
+		/** The oldest queued request is dropped to make room. */
+		DROP_OLDEST
+	}
+
+	private static final Logger l = Logger.getLogger("bsdpd");
+
+	private final BlockingQueue<BSDPRequest> queue;
+	private final OVERFLOW overflowPolicy;
+	private final RequestHandler handler;
+	private final Thread[] workers;
+	private volatile boolean running = true;
+
+	private final AtomicLong submitted = new AtomicLong();
+	private final AtomicLong handled = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong maxQueueDepth = new AtomicLong();
+
+	public BSDPWorkerPool(int workerThreads, int queueCapacity,
+			OVERFLOW overflowPolicy, RequestHandler handler) {
+		if (workerThreads < 1) {
+			throw new IllegalArgumentException(
+					"At least one worker thread is needed.");
+		}
+		this.queue = new ArrayBlockingQueue<BSDPRequest>(queueCapacity);
+		this.overflowPolicy = overflowPolicy;
+		this.handler = handler;
+
+		workers = new Thread[workerThreads];
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new Thread(new Runnable() {
+				public void run() {
+					work();
+				}
+			}, "BSDP Handler Thread " + i);
+			workers[i].setDaemon(true);
+		}
+	}
+
+	public void start() {
+		for (Thread worker : workers) {
+			worker.start();
+		}
+	}
+
+	private void drop(BSDPRequest request) {
+		dropped.incrementAndGet();
+		if (request.getListener() != null) {
+			request.getListener().requestDropped(request);
+		}
+	}
+
+	/**
+	 * Hands a request to the handler threads.
+	 *
+	 * @return false if the request (or another queued one) was dropped.
+	 */
+	@Override
+	public boolean submit(BSDPRequest request) throws InterruptedException {
+		submitted.incrementAndGet();
+		boolean accepted = true;
+		switch (overflowPolicy) {
+		case BLOCK:
+			queue.put(request);
+			break;
+		case DROP_NEWEST:
+			if (!queue.offer(request)) {
+				accepted = false;
+				drop(request);
+			}
+			break;
+		case DROP_OLDEST:
+			while (!queue.offer(request)) {
+				BSDPRequest oldest = queue.poll();
+				if (oldest != null) {
+					accepted = false;
+					drop(oldest);
+				}
+			}
+			break;
+		}
+		if (!accepted) {
+			l.log(Level.FINE, " ~> Request queue full, dropped a request.");
+		}
+
+		long depth = queue.size();
+		long max = maxQueueDepth.get();
+		while (depth > max && !maxQueueDepth.compareAndSet(max, depth)) {
+			max = maxQueueDepth.get();
+		}
+		return accepted;
+	}
+
+	private void work() {
+		while (running) {
+			BSDPRequest request;
+			try {
+				request = queue.take();
+			} catch (InterruptedException e) {
+				continue;
+			}
+			try {
+				handler.handle(request);
+			} catch (Exception e) {
+				l.log(Level.SEVERE, "Error while handling request!");
+				e.printStackTrace();
+			}
+			handled.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Stops the handler threads. Queued requests are discarded.
+	 */
+	@Override
+	public void shutdown() {
+		running = false;
+		for (Thread worker : workers) {
+			worker.interrupt();
+		}
+		for (Thread worker : workers) {
+			try {
+				worker.join(1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		queue.clear();
+	}
+
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	public long getMaxQueueDepth() {
+		return maxQueueDepth.get();
+	}
+
+	public long getSubmitted() {
+		return submitted.get();
+	}
+
+	public long getHandled() {
+		return handled.get();
+	}
+
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "@" + hashCode() + "[workers="
+				+ workers.length + ",overflowPolicy=" + overflowPolicy
+				+ ",queueDepth=" + getQueueDepth() + ",maxQueueDepth="
+				+ getMaxQueueDepth() + ",submitted=" + getSubmitted()
+				+ ",handled=" + getHandled() + ",dropped=" + getDropped()
+				+ "]";
+	}
+}
@@ -19,51 +19,115 @@
  */
 package de.upb.phys.bsdpd.bsdppackets;
 
-import java.util.HashMap;
-
+/**
+ * Base class of the BSDP options in option 43. The objects of a received
+ * option are created by a factory from a table indexed by the option number.
+ */
 public abstract class BSDPOption {
 
-	public static void init() {
-		String[] options = new String[] { "MessageType", "Version", "ServerId", "ServerPriority", "ReplyPort", "BootImageListPath", "DefaultBootImageId",
-				"SelectedBootImageId", "BootImageList", "Netboot1Firmware", "BootImageAttributeFilterList" };
+	/**
+	 * Creates empty option objects of one option number.
+	 */
+	private interface Factory {
+		BSDPOption create();
+	}
+
+	private static final Factory[] factories = new Factory[256];
 
-		for (String s : options) {
-			String classLoad = BSDPOption.class.getPackage().getName() + ".BSDPo" + s;
-			// System.err.println("Loading " + classLoad + "...");
-			try {
-				Class.forName(classLoad);
-			} catch (ClassNotFoundException e) {
-				e.printStackTrace();
+	static {
+		register(BSDPoMessageType.NO, new Factory() {
+			public BSDPOption create() {
+				return new BSDPoMessageType();
 			}
-		}
+		});
+		register(BSDPoVersion.NO, new Factory() {
+			public BSDPOption create() {
+				return new BSDPoVersion();
+			}
+		});
+		register(BSDPoServerId.NO, new Factory() {
+			public BSDPOption create() {
+				return new BSDPoServerId();
+			}
+		});
+		register(BSDPoServerPriority.NO, new Factory() {
+			public BSDPOption create() {
+				return new BSDPoServerPriority();
+			}
+		});
+		register(BSDPoReplyPort.NO, new Factory() {
+			public BSDPOption create() {
+				return new BSDPoReplyPort();
+			}
+		});
+		register(BSDPoBootImageListPath.NO, new Factory() {
+			public BSDPOption create() {
+				return new BSDPoBootImageListPath();
+			}
+		});
+		register(BSDPoDefaultBootImageId.NO, new Factory() {
+			public BSDPOption create() {
+				return new BSDPoDefaultBootImageId();
+			}
+		});
+		register(BSDPoSelectedBootImageId.NO, new Factory() {
+			public BSDPOption create() {
+				return new BSDPoSelectedBootImageId();
+			}
+		});
+		register(BSDPoBootImageList.NO, new Factory() {
+			public BSDPOption create() {
+				return new BSDPoBootImageList();
+			}
+		});
+		register(BSDPoNetboot1Firmware.NO, new Factory() {
+			public BSDPOption create() {
+				return new BSDPoNetboot1Firmware();
+			}
+		});
+		register(BSDPoBootImageAttributeFilterList.NO, new Factory() {
+			public BSDPOption create() {
+				return new BSDPoBootImageAttributeFilterList();
+			}
+		});
+		register(BSDPoShadowMountPath.NO, new Factory() {
+			public BSDPOption create() {
+				return new BSDPoShadowMountPath();
+			}
+		});
+		register(BSDPoShadowFilePath.NO, new Factory() {
+			public BSDPOption create() {
+				return new BSDPoShadowFilePath();
+			}
+		});
+		register(BSDPoMachineName.NO, new Factory() {
+			public BSDPOption create() {
+				return new BSDPoMachineName();
+			}
+		});
 	}
 
-	protected static void registerMessageType(int option, Class<? extends BSDPOption> c) {
-		if (bsdpOptionPacketHandlers.containsValue(c)) {
-			throw new IllegalStateException("Class " + c + " is already registered.");
+	private static void register(int option, Factory factory) {
+		if (factories[option & 0xFF] != null) {
+			throw new IllegalStateException("Option " + (option & 0xFF)
+					+ " is already registered.");
 		}
-		bsdpOptionPacketHandlers.put(option, c);
+		factories[option & 0xFF] = factory;
 	}
 
+	/**
+	 * @return the decoded option or null if the option number is unknown.
+	 */
 	public static BSDPOption createBSDPOptionInstance(int option, byte[] encodedData) {
-		if (bsdpOptionPacketHandlers.containsKey(option)) {
-			Class<? extends BSDPOption> optionClass = bsdpOptionPacketHandlers.get(option);
-			try {
-				BSDPOption optionObject = optionClass.newInstance();
-				optionObject.setEncodedData(encodedData);
-				return optionObject;
-			} catch (InstantiationException e) {
-				throw new IllegalStateException(e);
-			} catch (IllegalAccessException e) {
-				throw new IllegalStateException(e);
-			}
-
-		} else
+		Factory factory = factories[option & 0xFF];
+		if (factory == null) {
 			return null;
+		}
+		BSDPOption optionObject = factory.create();
+		optionObject.setEncodedData(encodedData);
+		return optionObject;
 	}
 
-	private static HashMap<Integer, Class<? extends BSDPOption>> bsdpOptionPacketHandlers = new HashMap<Integer, Class<? extends BSDPOption>>();
-
 	public BSDPOption() {
 		super();
 	}
@@ -36,10 +36,6 @@ public class BSDPoBootImageAttributeFilterList extends BSDPOption {
 
 	public static final int NO = 11;
 
-	static {
-		registerMessageType(NO, BSDPoBootImageAttributeFilterList.class);
-	}
-
 	private final LinkedList<BootImageFilter> filters;
 
 	public BSDPoBootImageAttributeFilterList() {
@@ -20,9 +20,9 @@
 package de.upb.phys.bsdpd.bsdppackets;
 
 import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Map.Entry;
+import java.util.LinkedHashMap;
 
 import de.upb.phys.bsdpd.imageDB.BootImage;
 
@@ -36,62 +36,72 @@ public class BSDPoBootImageList extends BSDPOption {
 
 	public static final int NO = 9;
 
-	static {
-		registerMessageType(NO, BSDPoBootImageList.class);
-	}
-
 	private final HashMap<BootImage, String> bootImageList;
+	/** Encoded list entries in the order the images were added. */
+	private final LinkedHashMap<BootImage, byte[]> encodedEntries;
+	private int encodedLength;
 
 	public BSDPoBootImageList() {
-		bootImageList = new HashMap<BootImage, String>();
+		bootImageList = new LinkedHashMap<BootImage, String>();
+		encodedEntries = new LinkedHashMap<BootImage, byte[]>();
+	}
+
+	/**
+	 * Adds an image with its own description. Uses the list entry encoded
+	 * when the image was loaded.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if the description is too long to be listed
+	 */
+	public void addBootImage(BootImage id) {
+		addBootImage(id, id.getDescription());
 	}
 
 	public void addBootImage(BootImage id, String description) {
-		try {
-			if (description.getBytes("UTF-8").length > 254) {
-				throw new IllegalArgumentException("Description too long.");
-			}
-		} catch (UnsupportedEncodingException e) {
-			throw new IllegalStateException("Java does not support UTF-8!?", e);
+		byte[] entry = null;
+		if (description.equals(id.getDescription())) {
+			entry = id.getBSDPEncodedListEntry();
+		}
+		if (entry == null) {
+			// Throws if the description is too long.
+			entry = BootImage.encodeListEntry(id.getBSDPEncodedData(),
+					description);
 		}
+		addBootImage(id, description, entry);
+	}
+
+	private void addBootImage(BootImage id, String description, byte[] entry) {
+		byte[] replaced = encodedEntries.put(id, entry);
+		if (replaced != null) {
+			encodedLength -= replaced.length;
+		}
+		encodedLength += entry.length;
 		bootImageList.put(id, description);
 	}
 
+	/**
+	 * @return number of bytes of the encoded list
+	 */
+	public int getEncodedLength() {
+		return encodedLength;
+	}
+
 	@Override
 	public byte[] getEncodedData() {
-		LinkedList<Byte> listOfBytesReturn = new LinkedList<Byte>();
-
-		for (Entry<BootImage, String> e : bootImageList.entrySet()) {
-			// Write out bootImageId
-			for (byte b : e.getKey().getBSDPEncodedData()) {
-				listOfBytesReturn.add(b);
-			}
-
-			// Convert string...
-			byte[] bytesString;
-			try {
-				bytesString = e.getValue().getBytes("UTF-8");
-			} catch (UnsupportedEncodingException e1) {
-				throw new IllegalStateException(
-						"Java does not support UTF-8!?", e1);
-			}
-			listOfBytesReturn.add((byte) bytesString.length);
-			for (byte b : bytesString) {
-				listOfBytesReturn.add(b);
-			}
-		}
-
-		byte[] bytesReturn = new byte[listOfBytesReturn.size()];
-		for (int i = 0; i < bytesReturn.length; i++) {
-			bytesReturn[i] = listOfBytesReturn.get(i);
+		byte[] bytesReturn = new byte[encodedLength];
+		int pos = 0;
+		for (byte[] entry : encodedEntries.values()) {
+			System.arraycopy(entry, 0, bytesReturn, pos, entry.length);
+			pos += entry.length;
 		}
-
 		return bytesReturn;
 	}
 
 	@Override
 	public void setEncodedData(byte[] encodedData) {
 		bootImageList.clear();
+		encodedEntries.clear();
+		encodedLength = 0;
 		int pos = 0;
 		while (pos < encodedData.length) {
 			byte[] bootImageIdBytes = new byte[4];
@@ -103,7 +113,7 @@ public class BSDPoBootImageList extends BSDPOption {
 					.setBSDPEncodedData(bootImageIdBytes);
 			pos += 4;
 
-			int lengthString = encodedData[pos];
+			int lengthString = encodedData[pos] & 0xFF;
 			pos++;
 
 			String bootImageDescription = null;
@@ -116,7 +126,8 @@ public class BSDPoBootImageList extends BSDPOption {
 			}
 			pos += lengthString;
 
-			bootImageList.put(bootImageId, bootImageDescription);
+			addBootImage(bootImageId, bootImageDescription, Arrays.copyOfRange(
+					encodedData, pos - lengthString - 5, pos));
 
 			if (encodedData.length - pos < 6 && encodedData.length - pos > 0) {
 				throw new IllegalArgumentException(
@@ -31,10 +31,6 @@ public class BSDPoBootImageListPath extends BSDPOption {
 
 	public static final int NO = 6;
 
-	static {
-		registerMessageType(NO, BSDPoBootImageListPath.class);
-	}
-
 	private String bootImageListPath;
 
 	public BSDPoBootImageListPath() {
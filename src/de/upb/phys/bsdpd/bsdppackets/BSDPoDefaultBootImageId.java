@@ -25,10 +25,6 @@ public class BSDPoDefaultBootImageId extends BSDPOption {
 
 	public static final int NO = 7;
 
-	static {
-		registerMessageType(NO, BSDPoDefaultBootImageId.class);
-	}
-
 	private BootImage defaultBootImageId;
 
 	public BSDPoDefaultBootImageId() {
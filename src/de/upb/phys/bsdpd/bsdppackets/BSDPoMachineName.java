@@ -31,10 +31,6 @@ public class BSDPoMachineName extends BSDPOption {
 
 	public static final byte NO = (byte) 0x82;
 
-	static {
-		registerMessageType(NO, BSDPoMachineName.class);
-	}
-
 	private String machineName;
 
 	public BSDPoMachineName() {
@@ -23,10 +23,6 @@ public class BSDPoMessageType extends BSDPOption {
 
 	public static final int NO = 1;
 
-	static {
-		registerMessageType(NO, BSDPoMessageType.class);
-	}
-
 	public static enum TYPES {
 		LIST(1), SELECT(2), FAILED(3);
 
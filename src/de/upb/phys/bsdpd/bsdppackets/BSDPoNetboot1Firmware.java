@@ -29,10 +29,6 @@ public class BSDPoNetboot1Firmware extends BSDPOption {
 
 	public static final int NO = 10;
 
-	static {
-		registerMessageType(NO, BSDPoNetboot1Firmware.class);
-	}
-
 	public BSDPoNetboot1Firmware() {
 	}
 
@@ -23,10 +23,6 @@ public class BSDPoReplyPort extends BSDPOption {
 
 	public static final int NO = 5;
 
-	static {
-		registerMessageType(NO, BSDPoReplyPort.class);
-	}
-
 	private int replyPort;
 
 	public BSDPoReplyPort() {
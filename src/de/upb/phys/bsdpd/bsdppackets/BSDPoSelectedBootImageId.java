@@ -25,10 +25,6 @@ public class BSDPoSelectedBootImageId extends BSDPOption {
 
 	public static final int NO = 8;
 
-	static {
-		registerMessageType(NO, BSDPoSelectedBootImageId.class);
-	}
-
 	private BootImage selectedBootImageId;
 
 	public BSDPoSelectedBootImageId() {
@@ -25,18 +25,14 @@ import java.net.UnknownHostException;
 public class BSDPoServerId extends BSDPOption {
 
 	public static final int NO = 3;
-	static {
-		registerMessageType(NO, BSDPoServerId.class);
-	}
-
 	private InetAddress id;
 
 	public BSDPoServerId() {
-		try {
-			id = InetAddress.getLocalHost();
-		} catch (UnknownHostException e) {
-			throw new IllegalStateException(e);
-		}
+		id = null;
+	}
+
+	public BSDPoServerId(InetAddress id) {
+		this.id = id;
 	}
 
 	@Override
@@ -23,10 +23,6 @@ public class BSDPoServerPriority extends BSDPOption {
 
 	public static final int NO = 4;
 
-	static {
-		registerMessageType(NO, BSDPoServerPriority.class);
-	}
-
 	private int priority;
 
 	public BSDPoServerPriority() {
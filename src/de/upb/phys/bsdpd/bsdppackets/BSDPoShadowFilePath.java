@@ -38,10 +38,6 @@ public class BSDPoShadowFilePath extends BSDPOption {
 
 	public static final byte NO = (byte) 0x81;
 
-	static {
-		registerMessageType(NO, BSDPoShadowFilePath.class);
-	}
-
 	private String shadowFilePath;
 
 	public BSDPoShadowFilePath() {
@@ -39,10 +39,6 @@ public class BSDPoShadowMountPath extends BSDPOption {
 
 	public static final byte NO = (byte) 0x80;
 
-	static {
-		registerMessageType(NO, BSDPoShadowMountPath.class);
-	}
-
 	private String shadowMountPath;
 
 	public BSDPoShadowMountPath() {
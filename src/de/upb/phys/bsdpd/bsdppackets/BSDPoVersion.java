@@ -23,10 +23,6 @@ public class BSDPoVersion extends BSDPOption {
 
 	public static final int NO = 2;
 
-	static {
-		registerMessageType(NO, BSDPoVersion.class);
-	}
-
 	private byte versionMajor;
 	private byte versionMinor;
 
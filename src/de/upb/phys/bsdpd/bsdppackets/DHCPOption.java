@@ -19,50 +19,55 @@
  */
 package de.upb.phys.bsdpd.bsdppackets;
 
-import java.util.HashMap;
-
+/**
+ * Base class of the DHCP options. The objects of a received option are created by
+ * a factory from a table indexed by the option number.
+ */
 public abstract class DHCPOption {
 
-	public static void init() {
-		String[] options = new String[] { "RootPath" };
+	/**
+	 * Creates empty option objects of one option number.
+	 */
+	private interface Factory {
+		DHCPOption create();
+	}
 
-		for (String s : options) {
-			String classLoad = DHCPOption.class.getPackage().getName() + ".DHCPo" + s;
-			// System.err.println("Loading " + classLoad + "...");
-			try {
-				Class.forName(classLoad);
-			} catch (ClassNotFoundException e) {
-				e.printStackTrace();
+	private static final Factory[] factories = new Factory[256];
+
+	static {
+		register(DHCPoRootPath.NO, new Factory() {
+			public DHCPOption create() {
+				return new DHCPoRootPath();
 			}
-		}
+		});
+		register(DHCPoTFTPServer.NO, new Factory() {
+			public DHCPOption create() {
+				return new DHCPoTFTPServer();
+			}
+		});
 	}
 
-	protected static void registerMessageType(int option, Class<? extends DHCPOption> c) {
-		if (dhcpOptionPacketHandlers.containsValue(c)) {
-			throw new IllegalStateException("Class " + c + " is already registered.");
+	private static void register(int option, Factory factory) {
+		if (factories[option & 0xFF] != null) {
+			throw new IllegalStateException("Option " + (option & 0xFF)
+					+ " is already registered.");
 		}
-		dhcpOptionPacketHandlers.put(option, c);
+		factories[option & 0xFF] = factory;
 	}
 
+	/**
+	 * @return the decoded option or null if the option number is unknown.
+	 */
 	public static DHCPOption createBSDPOptionInstance(int option, byte[] encodedData) {
-		if (dhcpOptionPacketHandlers.containsKey(option)) {
-			Class<? extends DHCPOption> optionClass = dhcpOptionPacketHandlers.get(option);
-			try {
-				DHCPOption optionObject = optionClass.newInstance();
-				optionObject.setEncodedData(encodedData);
-				return optionObject;
-			} catch (InstantiationException e) {
-				throw new IllegalStateException(e);
-			} catch (IllegalAccessException e) {
-				throw new IllegalStateException(e);
-			}
-
-		} else
+		Factory factory = factories[option & 0xFF];
+		if (factory == null) {
 			return null;
+		}
+		DHCPOption optionObject = factory.create();
+		optionObject.setEncodedData(encodedData);
+		return optionObject;
 	}
 
-	private static HashMap<Integer, Class<? extends DHCPOption>> dhcpOptionPacketHandlers = new HashMap<Integer, Class<? extends DHCPOption>>();
-
 	public DHCPOption() {
 		super();
 	}
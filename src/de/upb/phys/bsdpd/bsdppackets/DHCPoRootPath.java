@@ -31,10 +31,6 @@ public class DHCPoRootPath extends DHCPOption {
 
 	public static final int NO = 17;
 
-	static {
-		registerMessageType(NO, DHCPoRootPath.class);
-	}
-
 	private String rootPath;
 
 	public DHCPoRootPath() {
@@ -31,10 +31,6 @@ public class DHCPoTFTPServer extends DHCPOption {
 
 	public static final int NO = 66;
 
-	static {
-		registerMessageType(NO, DHCPoTFTPServer.class);
-	}
-
 	private String tftpServerName;
 
 	public DHCPoTFTPServer() {
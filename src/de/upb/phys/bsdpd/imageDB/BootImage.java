@@ -20,9 +20,13 @@
 package de.upb.phys.bsdpd.imageDB;
 
 import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
-import java.util.LinkedList;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
 import java.util.Vector;
 import java.util.logging.Logger;
 
@@ -78,12 +82,18 @@ public class BootImage {
 		}
 	}
 
+	/** Longest description a list entry can hold. */
+	private static final int MAX_DESCRIPTION_LENGTH = 254;
+	/** Marks an image whose description is too long to be listed. */
+	private static final byte[] NO_LIST_ENTRY = new byte[0];
+
 	private final Logger l;
-	private final List<ARCH> supportedArchitectures;
+	private final EnumSet<ARCH> supportedArchitectures;
 	private String bootFile;
 	private String description;
-	private final List<String> disabledSystemIdentifiers;
-	private final List<String> enabledSystemIdentifiers;
+	/** Ids of the system identifiers, see {@link SystemIdentifiers}. */
+	private final BitSet disabledSystemIdentifiers;
+	private final BitSet enabledSystemIdentifiers;
 	private int index;
 	private boolean isDefault;
 	private boolean isEnabled;
@@ -95,19 +105,22 @@ public class BootImage {
 	private boolean supportsDiskless;
 	private TYPE type;
 	private String osVersion;
+	/** Encoded boot image id and list entry, null until needed. */
+	private volatile byte[] encodedId;
+	private volatile byte[] encodedListEntry;
 
 	public BootImage(File bootImageInfoPlist) throws PlistReaderException {
 		l = Logger.getLogger("bsdpd");
 		AbstractReader reader = PlistFactory.createReader();
 		PlistProperties props = reader.parse(bootImageInfoPlist);
 
-		supportedArchitectures = new LinkedList<ARCH>();
+		supportedArchitectures = EnumSet.noneOf(ARCH.class);
 		for (Object o : ((Vector<?>) props.getProperty("Architectures"))) {
 			supportedArchitectures.add(ARCH.valueOf((String) o));
 		}
 		bootFile = (String) props.getProperty("BootFile");
-		enabledSystemIdentifiers = new LinkedList<String>();
-		disabledSystemIdentifiers = new LinkedList<String>();
+		enabledSystemIdentifiers = new BitSet();
+		disabledSystemIdentifiers = new BitSet();
 		for (Object o : ((Vector<?>) props
 				.getProperty("EnabledSystemIdentifiers"))) {
 			addEnabledSystemIdentifier((String) o);
@@ -138,11 +151,11 @@ public class BootImage {
 	private BootImage() {
 		super();
 		l = Logger.getLogger("bsdpd");
-		supportedArchitectures = null;
+		supportedArchitectures = EnumSet.noneOf(ARCH.class);
 		bootFile = "";
 		description = "";
-		disabledSystemIdentifiers = new LinkedList<String>();
-		enabledSystemIdentifiers = new LinkedList<String>();
+		disabledSystemIdentifiers = new BitSet();
+		enabledSystemIdentifiers = new BitSet();
 		index = 0;
 		isDefault = false;
 		isEnabled = false;
@@ -156,15 +169,74 @@ public class BootImage {
 		osVersion = "";
 	}
 
+	/**
+	 * @return the 4 byte boot image id. Shared, it must not be modified.
+	 */
 	public byte[] getBSDPEncodedData() {
-		byte[] data = new byte[4];
-		data[0] = kind.calcByte0(isInstall);
-		data[1] = 0x00;
-		data[2] = (byte) ((index >> 8) & 0xFF);
-		data[3] = (byte) (index & 0xFF);
+		byte[] data = encodedId;
+		if (data == null) {
+			data = new byte[4];
+			data[0] = kind.calcByte0(isInstall);
+			data[1] = 0x00;
+			data[2] = (byte) ((index >> 8) & 0xFF);
+			data[3] = (byte) (index & 0xFF);
+			encodedId = data;
+		}
 		return data;
 	}
 
+	/**
+	 * The entry of this image in a boot image list: boot image id, length of
+	 * the description and the UTF-8 encoded description. The database encodes
+	 * it when the image is loaded.
+	 * 
+	 * @return the encoded entry, null if the description is too long to be
+	 *         listed. Shared, it must not be modified.
+	 */
+	public byte[] getBSDPEncodedListEntry() {
+		byte[] entry = encodedListEntry;
+		if (entry == null) {
+			byte[] descriptionBytes = encodeDescription(getDescription());
+			entry = descriptionBytes.length > MAX_DESCRIPTION_LENGTH ? NO_LIST_ENTRY
+					: encodeListEntry(getBSDPEncodedData(), descriptionBytes);
+			encodedListEntry = entry;
+		}
+		return entry != NO_LIST_ENTRY ? entry : null;
+	}
+
+	/**
+	 * @return a boot image list entry with the id and the description.
+	 */
+	public static byte[] encodeListEntry(byte[] id, String description) {
+		byte[] descriptionBytes = encodeDescription(description);
+		if (descriptionBytes.length > MAX_DESCRIPTION_LENGTH) {
+			throw new IllegalArgumentException("Description too long.");
+		}
+		return encodeListEntry(id, descriptionBytes);
+	}
+
+	private static byte[] encodeDescription(String description) {
+		try {
+			return description.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException("Java does not support UTF-8!?", e);
+		}
+	}
+
+	private static byte[] encodeListEntry(byte[] id, byte[] descriptionBytes) {
+		byte[] entry = new byte[id.length + 1 + descriptionBytes.length];
+		System.arraycopy(id, 0, entry, 0, id.length);
+		entry[id.length] = (byte) descriptionBytes.length;
+		System.arraycopy(descriptionBytes, 0, entry, id.length + 1,
+				descriptionBytes.length);
+		return entry;
+	}
+
+	private void clearEncodedData() {
+		encodedId = null;
+		encodedListEntry = null;
+	}
+
 	public static BootImage setBSDPEncodedData(byte[] data) {
 		if (data.length == 4) {
 			BootImage image = new BootImage();
@@ -196,6 +268,7 @@ public class BootImage {
 	public void setIndex(int index) {
 		if (index < 65535 && index >= 0) {
 			this.index = index;
+			clearEncodedData();
 		} else {
 			throw new IllegalArgumentException(
 					"Index for BootImageId must be between 0 and 65535");
@@ -220,6 +293,7 @@ public class BootImage {
 
 	public void setDescription(String description) {
 		this.description = description;
+		clearEncodedData();
 	}
 
 	public boolean isDefault() {
@@ -244,6 +318,7 @@ public class BootImage {
 
 	public void setInstall(boolean isInstall) {
 		this.isInstall = isInstall;
+		clearEncodedData();
 	}
 
 	public KIND getKind() {
@@ -252,6 +327,7 @@ public class BootImage {
 
 	public void setKind(KIND kind) {
 		this.kind = kind;
+		clearEncodedData();
 	}
 
 	public String getLanguage() {
@@ -268,6 +344,7 @@ public class BootImage {
 
 	public void setName(String name) {
 		this.name = name;
+		clearEncodedData();
 	}
 
 	public String getRootPath() {
@@ -302,45 +379,62 @@ public class BootImage {
 		this.osVersion = osVersion;
 	}
 
-	public List<ARCH> listSupportedArchitectures() {
-		return Collections.unmodifiableList(supportedArchitectures);
+	public Set<ARCH> listSupportedArchitectures() {
+		return Collections.unmodifiableSet(supportedArchitectures);
 	}
 
 	public void addSupportedArchitecture(ARCH architecture) {
-		if (!supportedArchitectures.contains(architecture)) {
-			supportedArchitectures.add(architecture);
-		}
+		supportedArchitectures.add(architecture);
 	}
 
 	public List<String> listDisabledSystemIdentifiers() {
-		return Collections.unmodifiableList(disabledSystemIdentifiers);
+		return toList(disabledSystemIdentifiers);
 	}
 
 	public void addDisabledSystemIdentifier(String systemIdentifier) {
-		if (!disabledSystemIdentifiers.contains(systemIdentifier)) {
-			disabledSystemIdentifiers.add(systemIdentifier);
-		}
-		enabledSystemIdentifiers.remove(systemIdentifier);
+		int id = SystemIdentifiers.intern(systemIdentifier);
+		disabledSystemIdentifiers.set(id);
+		enabledSystemIdentifiers.clear(id);
 	}
 
+	/**
+	 * @return the system identifiers the image is enabled for, in the order
+	 *         of their ids.
+	 */
 	public List<String> listEnabledSystemIdentifiers() {
-		return Collections.unmodifiableList(enabledSystemIdentifiers);
+		return toList(enabledSystemIdentifiers);
+	}
+
+	/**
+	 * @return the ids of the system identifiers the image is enabled for, see
+	 *         {@link SystemIdentifiers}. Must not be modified.
+	 */
+	BitSet getEnabledSystemIdentifierIds() {
+		return enabledSystemIdentifiers;
 	}
 
 	public void addEnabledSystemIdentifier(String systemIdentifier) {
-		if (!enabledSystemIdentifiers.contains(systemIdentifier)) {
-			enabledSystemIdentifiers.add(systemIdentifier);
-		}
-		disabledSystemIdentifiers.remove(systemIdentifier);
+		int id = SystemIdentifiers.intern(systemIdentifier);
+		enabledSystemIdentifiers.set(id);
+		disabledSystemIdentifiers.clear(id);
 	}
 
 	public void removeSystemIdentifer(String systemIdentifier) {
-		if (disabledSystemIdentifiers.contains(systemIdentifier)) {
-			disabledSystemIdentifiers.remove(systemIdentifier);
+		int id = SystemIdentifiers.idOf(systemIdentifier);
+		if (id >= 0) {
+			disabledSystemIdentifiers.clear(id);
+			enabledSystemIdentifiers.clear(id);
 		}
-		if (enabledSystemIdentifiers.contains(systemIdentifier)) {
-			enabledSystemIdentifiers.remove(systemIdentifier);
+	}
+
+	private static List<String> toList(BitSet systemIdentifierIds) {
+		List<String> list = new ArrayList<String>(systemIdentifierIds
+				.cardinality());
+		for (int id = systemIdentifierIds.nextSetBit(0); id >= 0; id = systemIdentifierIds
+				.nextSetBit(id + 1)) {
+			list.add(SystemIdentifiers.get(id));
 		}
+		return Collections.unmodifiableList(list);
 	}
 
 	@Override
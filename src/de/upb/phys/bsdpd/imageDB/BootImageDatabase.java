@@ -21,6 +21,7 @@ package de.upb.phys.bsdpd.imageDB;
 
 import java.io.File;
 import java.io.FileFilter;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.Collections;
@@ -28,6 +29,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.prefs.BackingStoreException;
 import java.util.prefs.Preferences;
 
 import de.upb.phys.bsdpd.bsdppackets.BSDPOption;
@@ -44,6 +46,9 @@ public class BootImageDatabase {
 
 	public static final BootImageDatabase bootImageDB = new BootImageDatabase();
 
+	/** Prefix of the preferences of a client, followed by its MAC address. */
+	private static final String CLIENT_SETTINGS = "pcSetting.";
+
 	private String bootServerName;
 	private String bootServerPath;
 	private String httpServerURL;
@@ -53,18 +58,22 @@ public class BootImageDatabase {
 	private String nfsServerURL;
 	private String bootImageLocation;
 	private boolean sanityChecks;
+	private boolean watchImages;
 	private final Logger l;
 
-	private final List<BootImage> bootImages;
 	private final Preferences prefs;
+	private final SelectedImageTable selectedImages = new SelectedImageTable();
+	/** The images and their indexes, replaced as a whole when they change. */
+	private volatile BootImageIndex index = new BootImageIndex(Collections
+			.<BootImage> emptyList());
+	private volatile long generation;
+	private BootImageWatcher watcher;
 
 	public BootImageDatabase() {
 		prefs = Preferences.userNodeForPackage(BootImageDatabase.class);
 		l = Logger.getLogger("bsdpd");
 		l.setLevel(Level.parse(prefs.get("logLevel", "ALL")));
 
-		bootImages = new LinkedList<BootImage>();
-
 		String myIp = "";
 		try {
 			// String myFqdn =
@@ -85,6 +94,7 @@ public class BootImageDatabase {
 		nfsServerURL = prefs.get("nfsServerURL", "nfs:" + myIp
 				+ ":/local/system/NetBootSP0");
 		sanityChecks = prefs.getBoolean("sanityChecks", true);
+		watchImages = prefs.getBoolean("watchImages", true);
 		bootImageLocation = prefs.get("bootImageLocation",
 				"/srv/netboot/NetbootSP0");
 
@@ -93,18 +103,35 @@ public class BootImageDatabase {
 				+ bootServerPath + ",httpServerURL=" + httpServerURL
 				+ ",afpServerURL=" + afpServerURL + ",bootImageLocation="
 				+ bootImageLocation + ",sanityChecks=" + sanityChecks
-				+ ",shadowMountPath=" + shadowMountPath);
+				+ ",shadowMountPath=" + shadowMountPath + ",watchImages="
+				+ watchImages);
+
+		loadSelectedImages();
 
+		List<BootImage> bootImages = loadImages();
+		index = new BootImageIndex(bootImages != null ? bootImages
+				: Collections.<BootImage> emptyList());
+	}
+
+	/**
+	 * Reads the images from the bootImageLocation.
+	 * 
+	 * @return the images which could be loaded, null if the location is
+	 *         missing, not a directory, cannot be read or contains no image
+	 *         directories.
+	 */
+	private List<BootImage> loadImages() {
+		List<BootImage> bootImages = new LinkedList<BootImage>();
 		l.log(Level.INFO, "Loading Boot Images from disk...");
 		// Loading
 		File bootImageDir = new File(bootImageLocation);
 		if (!bootImageDir.exists()) {
 			l.log(Level.SEVERE, "bootImageLocation does not exist!");
-			return;
+			return null;
 		}
 		if (!bootImageDir.isDirectory()) {
 			l.log(Level.SEVERE, "bootImageLocation is not a Directory!");
-			return;
+			return null;
 		}
 
 		// find directories with Images...
@@ -114,6 +141,15 @@ public class BootImageDatabase {
 				return pathname.isDirectory();
 			}
 		});
+		if (imageDirectories == null) {
+			// Vanished or unmounted after the check above.
+			l.log(Level.SEVERE, "bootImageLocation cannot be read!");
+			return null;
+		}
+		if (imageDirectories.length == 0) {
+			l.log(Level.WARNING, "bootImageLocation contains no images.");
+			return null;
+		}
 
 		// Test directories for NBImageInfo.plist
 		for (File imageDirectory : imageDirectories) {
@@ -174,6 +210,10 @@ public class BootImageDatabase {
 					}
 				}
 
+				// Encode the list entry once, LIST replies only copy it. An
+				// image with a too long description is still loaded, LIST
+				// replies leave it out.
+				image.getBSDPEncodedListEntry();
 				bootImages.add(image);
 				l.log(Level.INFO, "Image " + imageDirectory.getName()
 						+ "loaded.");
@@ -182,72 +222,160 @@ public class BootImageDatabase {
 				e.printStackTrace();
 			}
 		}
+		return bootImages;
 	}
 
-	public BootImage findDefaultImage(ARCH arch, String systemIdentifier) {
-		for (BootImage image : bootImages) {
-			if (image.listSupportedArchitectures().contains(arch)
-					&& image.listEnabledSystemIdentifiers().contains(
-							systemIdentifier) && image.isDefault()
-					&& image.isEnabled()) {
-				return image;
+	/**
+	 * Reads the images the clients selected last from the preferences.
+	 */
+	private void loadSelectedImages() {
+		try {
+			for (String key : prefs.keys()) {
+				if (!key.startsWith(CLIENT_SETTINGS)) {
+					continue;
+				}
+				// Keys with a suffix are other settings of the client.
+				long macAddress = MacAddress.parse(key
+						.substring(CLIENT_SETTINGS.length()));
+				if (macAddress != -1) {
+					selectedImages.put(macAddress, prefs.getInt(key, 0));
+				}
 			}
+		} catch (BackingStoreException e) {
+			l.log(Level.WARNING, "Could not read the images selected by the "
+					+ "clients. " + e.getMessage());
 		}
-		return null;
+		l.log(Level.INFO, "Selected images of " + selectedImages.size()
+				+ " clients loaded.");
+	}
+
+	/**
+	 * @return a number that changes whenever the images change. Replies built
+	 *         from the images are outdated when it differs.
+	 */
+	public long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Has to be called after images were added, removed or modified.
+	 */
+	public synchronized void imagesChanged() {
+		index = new BootImageIndex(index.getImages());
+		generation++;
+	}
+
+	/**
+	 * Reads the images from disk again and replaces the current ones at once.
+	 * Requests handled meanwhile are answered from the former images, they
+	 * never wait for the reload. If the location is missing, unreadable or
+	 * empty, e.g. while it is unmounted or replaced, the current images are
+	 * kept; removing the last image needs a restart.
+	 */
+	public void reloadImages() {
+		List<BootImage> bootImages = loadImages();
+		if (bootImages == null) {
+			l.log(Level.WARNING, "Keeping the " + index.getImages().size()
+					+ " boot images of generation " + generation + ".");
+			return;
+		}
+		BootImageIndex reloaded = new BootImageIndex(bootImages);
+		long reloadedGeneration;
+		synchronized (this) {
+			index = reloaded;
+			reloadedGeneration = ++generation;
+		}
+		l.log(Level.INFO, reloaded.getImages().size()
+				+ " boot images loaded, generation " + reloadedGeneration
+				+ ".");
 	}
 
-	public List<BootImage> findBootableImages(ARCH arch, String systemIdentifier) {
-		List<BootImage> list = new LinkedList<BootImage>();
-		for (BootImage image : bootImages) {
-			if (image.listSupportedArchitectures().contains(arch)
-					&& image.listEnabledSystemIdentifiers().contains(
-							systemIdentifier) && image.isEnabled()) {
-				list.add(image);
-			}
+	/**
+	 * Reloads the images whenever something below the bootImageLocation
+	 * changes, if watchImages is set.
+	 */
+	public synchronized void startWatching() {
+		if (!watchImages || watcher != null) {
+			return;
 		}
-		return list;
+		try {
+			watcher = new BootImageWatcher(this, new File(bootImageLocation));
+			watcher.start();
+		} catch (IOException e) {
+			l.log(Level.WARNING, "Cannot watch the bootImageLocation. "
+					+ e.getMessage());
+		}
+	}
+
+	public synchronized void stopWatching() {
+		if (watcher != null) {
+			watcher.stop();
+			watcher = null;
+		}
+	}
+
+	public BootImage findDefaultImage(ARCH arch, String systemIdentifier) {
+		return index.findDefaultImage(arch, systemIdentifier);
 	}
 
+	/**
+	 * @return the enabled images for the architecture and system identifier
+	 *         in load order, an unmodifiable list.
+	 */
+	public List<BootImage> findBootableImages(ARCH arch, String systemIdentifier) {
+		return index.findBootableImages(arch, systemIdentifier);
+	}
+
+	/**
+	 * @return the enabled images for the architecture and system identifier
+	 *         matching the filter, in load order.
+	 */
 	public List<BootImage> findBootableImages(ARCH arch,
 			String systemIdentifier, BootImageFilter filter) {
+		return findBootableImages(arch, systemIdentifier, Collections
+				.singletonList(filter));
+	}
+
+	/**
+	 * @return the enabled images for the architecture and system identifier
+	 *         matching any of the filters, in load order and each image once.
+	 */
+	public List<BootImage> findBootableImages(ARCH arch,
+			String systemIdentifier, List<BootImageFilter> filters) {
 		List<BootImage> list = new LinkedList<BootImage>();
-		for (BootImage image : bootImages) {
-			if (image.listSupportedArchitectures().contains(arch)
-					&& image.listEnabledSystemIdentifiers().contains(
-							systemIdentifier) && image.isEnabled()
-					&& image.isInstall() == filter.isInstall()
-					&& image.getKind() == filter.getKind()) {
-				list.add(image);
+		for (BootImage image : index.findBootableImages(arch,
+				systemIdentifier)) {
+			for (BootImageFilter filter : filters) {
+				if (image.isInstall() == filter.isInstall()
+						&& image.getKind() == filter.getKind()) {
+					list.add(image);
+					break;
+				}
 			}
 		}
 		return list;
 	}
 
 	public BootImage findImage(int index, KIND kind, boolean isInstall) {
-		for (BootImage image : bootImages) {
-			if (image.getIndex() == index && image.getKind().equals(kind)
-					&& image.isInstall() == isInstall) {
-				return image;
-			}
-		}
-		return null;
+		return this.index.findImage(index, kind, isInstall);
 	}
 
 	public BSDPOption[] generateExtraBDSPBootOptions(BootImage image,
-			String macAddress) {
+			long macAddress) {
 		if (image.isSupportsDiskless()) {
-			String readableMac = macToReadableFileSystemString(macAddress);
+			String readableMac = MacAddress.toFileSystemString(macAddress);
+			String clientSettings = CLIENT_SETTINGS
+					+ MacAddress.toString(macAddress);
 
 			// Set the shadow file path and shadow mount path option...
 			BSDPOption[] bsdpOptions = new BSDPOption[3];
-			bsdpOptions[0] = new BSDPoShadowFilePath(prefs.get("pcSetting."
-					+ macAddress + ".shadowFilePath", "mac-" + readableMac
-					+ "/ShadowFile"));
+			bsdpOptions[0] = new BSDPoShadowFilePath(prefs.get(clientSettings
+					+ ".shadowFilePath", "mac-" + readableMac + "/ShadowFile"));
 			//We need to create  the directory for the shadow file...
 			createShadowDirectory("mac-" + readableMac);
 
-			bsdpOptions[1] = new BSDPoShadowMountPath(prefs.get("pcSetting."
-					+ macAddress + ".shadowMountPath", shadowMountPath));
+			bsdpOptions[1] = new BSDPoShadowMountPath(prefs.get(clientSettings
+					+ ".shadowMountPath", shadowMountPath));
 			bsdpOptions[2] = new BSDPoMachineName("mac-" + readableMac);
 			return bsdpOptions;
 		} else {
@@ -278,7 +406,7 @@ public class BootImageDatabase {
 	}
 
 	public DHCPOption[] generateExtraDHCPBootOptions(BootImage image,
-			String macAddress) {
+			long macAddress) {
 		String rootPath = getRootPath(image);
 		if (rootPath != null) {
 			return new DHCPOption[] { new DHCPoRootPath(rootPath) };
@@ -319,19 +447,27 @@ public class BootImageDatabase {
 				+ image.getBootFile();
 	}
 
-	public void setLastSelectedImage(String macAddress, int imageIndex) {
-		prefs.putInt("pcSetting." + macAddress, imageIndex);
+	/**
+	 * @param macAddress
+	 *            see {@link MacAddress}
+	 */
+	public void setLastSelectedImage(long macAddress, int imageIndex) {
+		selectedImages.put(macAddress, imageIndex);
+		prefs.putInt(CLIENT_SETTINGS + MacAddress.toString(macAddress),
+				imageIndex);
 	}
 
-	public BootImage getLastSelectedImage(String macAddress, ARCH arch,
+	/**
+	 * @param macAddress
+	 *            see {@link MacAddress}
+	 */
+	public BootImage getLastSelectedImage(long macAddress, ARCH arch,
 			String systemIdentifer) {
 		BootImage defaultImage = findDefaultImage(arch, systemIdentifer);
-		int imageIndex = prefs.getInt("pcSetting." + macAddress, 0);
-		for (BootImage image : bootImages) {
-			if (image.listSupportedArchitectures().contains(arch)
-					&& image.listEnabledSystemIdentifiers().contains(
-							systemIdentifer) && image.isEnabled()
-					&& imageIndex == image.getIndex()) {
+		int imageIndex = selectedImages.get(macAddress);
+		for (BootImage image : index.findBootableImages(arch,
+				systemIdentifer)) {
+			if (imageIndex == image.getIndex()) {
 				defaultImage = image;
 			}
 		}
@@ -428,15 +564,16 @@ public class BootImageDatabase {
 		this.shadowMountPathLocal = shadowMountPathLocal;
 	}
 
-	public List<BootImage> listBootImages() {
-		return Collections.unmodifiableList(bootImages);
+	public boolean isWatchImages() {
+		return watchImages;
 	}
 
-	private static String macToReadableFileSystemString(String macAddress) {
-		macAddress = macAddress.replace(':', '-');
-		macAddress = macAddress.replaceAll("\\[", "");
-		macAddress = macAddress.replaceAll("\\]", "");
-		macAddress = macAddress.replaceAll("-0", "");
-		return macAddress;
+	public void setWatchImages(boolean watchImages) {
+		prefs.putBoolean("watchImages", watchImages);
+		this.watchImages = watchImages;
+	}
+
+	public List<BootImage> listBootImages() {
+		return index.getImages();
 	}
 }
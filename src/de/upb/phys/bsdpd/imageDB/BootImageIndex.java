@@ -0,0 +1,141 @@
+/*
+ *    BSDPServer - Implements Apple's Boot Service Discover Protocol
+ *     in Java. "jbsdpd"
+ *    Copyright (C) 2015  Jan-Philipp Hülshoff <github@bklosr.de>
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package de.upb.phys.bsdpd.imageDB;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.upb.phys.bsdpd.imageDB.BootImage.ARCH;
+import de.upb.phys.bsdpd.imageDB.BootImage.KIND;
+
+/**
+ * Immutable snapshot of the boot images and their indexes, built whenever the
+ * images change.
+ * 
+ * The queries of the {@link BootImageDatabase} are answered by map lookups
+ * instead of walking all images and their system identifier lists. The
+ * results keep the order the images were loaded in. The database publishes a
+ * new snapshot at once, so a query never sees a half updated one.
+ * 
+ * @author jph
+ * 
+ */
+final class BootImageIndex {
+
+	private final List<BootImage> images;
+	/** Enabled images by architecture and enabled system identifier. */
+	private final Map<ARCH, Map<String, List<BootImage>>> bootableImages = new EnumMap<ARCH, Map<String, List<BootImage>>>(
+			ARCH.class);
+	/** First enabled default image by architecture and system identifier. */
+	private final Map<ARCH, Map<String, BootImage>> defaultImages = new EnumMap<ARCH, Map<String, BootImage>>(
+			ARCH.class);
+	/** First image by boot image id, see {@link #idOf(int, KIND, boolean)}. */
+	private final Map<Integer, BootImage> imagesById = new HashMap<Integer, BootImage>();
+
+	BootImageIndex(List<BootImage> images) {
+		this.images = Collections.unmodifiableList(new ArrayList<BootImage>(
+				images));
+		for (ARCH arch : ARCH.values()) {
+			bootableImages.put(arch, new HashMap<String, List<BootImage>>());
+			defaultImages.put(arch, new HashMap<String, BootImage>());
+		}
+		for (BootImage image : images) {
+			Integer id = idOf(image.getIndex(), image.getKind(), image
+					.isInstall());
+			if (!imagesById.containsKey(id)) {
+				imagesById.put(id, image);
+			}
+			if (!image.isEnabled()) {
+				continue;
+			}
+			for (ARCH arch : image.listSupportedArchitectures()) {
+				Map<String, List<BootImage>> bySystemIdentifier = bootableImages
+						.get(arch);
+				Map<String, BootImage> defaults = defaultImages.get(arch);
+				BitSet ids = image.getEnabledSystemIdentifierIds();
+				for (int i = ids.nextSetBit(0); i >= 0; i = ids
+						.nextSetBit(i + 1)) {
+					String systemIdentifier = SystemIdentifiers.get(i);
+					List<BootImage> list = bySystemIdentifier
+							.get(systemIdentifier);
+					if (list == null) {
+						list = new ArrayList<BootImage>();
+						bySystemIdentifier.put(systemIdentifier, list);
+					}
+					list.add(image);
+					if (image.isDefault()
+							&& !defaults.containsKey(systemIdentifier)) {
+						defaults.put(systemIdentifier, image);
+					}
+				}
+			}
+		}
+		for (Map<String, List<BootImage>> bySystemIdentifier : bootableImages
+				.values()) {
+			for (Map.Entry<String, List<BootImage>> entry : bySystemIdentifier
+					.entrySet()) {
+				ArrayList<BootImage> list = (ArrayList<BootImage>) entry
+						.getValue();
+				list.trimToSize();
+				entry.setValue(Collections.unmodifiableList(list));
+			}
+		}
+	}
+
+	private static Integer idOf(int index, KIND kind, boolean install) {
+		return index << 8 | kind.ordinal() << 1 | (install ? 1 : 0);
+	}
+
+	/**
+	 * @return all images in load order, an unmodifiable list.
+	 */
+	List<BootImage> getImages() {
+		return images;
+	}
+
+	/**
+	 * @return the enabled images for the architecture and system identifier,
+	 *         an unmodifiable list shared by all callers.
+	 */
+	List<BootImage> findBootableImages(ARCH arch, String systemIdentifier) {
+		List<BootImage> images = bootableImages.get(arch).get(
+				systemIdentifier);
+		if (images == null) {
+			return Collections.emptyList();
+		}
+		return images;
+	}
+
+	BootImage findDefaultImage(ARCH arch, String systemIdentifier) {
+		return defaultImages.get(arch).get(systemIdentifier);
+	}
+
+	BootImage findImage(int index, KIND kind, boolean isInstall) {
+		if (kind == null) {
+			return null;
+		}
+		return imagesById.get(idOf(index, kind, isInstall));
+	}
+}
@@ -0,0 +1,250 @@
+/*
+ *    BSDPServer - Implements Apple's Boot Service Discover Protocol
+ *     in Java. "jbsdpd"
+ *    Copyright (C) 2015  Jan-Philipp Hülshoff <github@bklosr.de>
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package de.upb.phys.bsdpd.imageDB;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches the bootImageLocation and every directory below it and lets the
+ * {@link BootImageDatabase} reload the images when they change.
+ * 
+ * Copying an image takes a while, so the images are reloaded once no change
+ * was seen for {@link #SETTLE_MILLIS}. Every change below the location counts,
+ * also the boot file in the architecture directories and the disk image, so
+ * an image is not read while it is copied. A new directory is watched as soon
+ * as it is created. Reloading happens on the watcher thread, request handlers
+ * keep using the former images until the new ones are published.
+ * 
+ * The location itself is checked every {@link #ROOT_POLL_MILLIS}: when it was
+ * removed and created again or a file system was mounted on it, it is
+ * watched again and the images are reloaded.
+ * 
+ * @author jph
+ * 
+ */
+class BootImageWatcher implements Runnable {
+
+	private static final Logger l = Logger.getLogger("bsdpd");
+
+	/** Time without changes before the images are reloaded. */
+	private static final long SETTLE_MILLIS = 2000;
+	/** Interval of checking whether the location was replaced. */
+	private static final long ROOT_POLL_MILLIS = 5000;
+
+	private final BootImageDatabase db;
+	private final Path root;
+	private final WatchService watchService;
+	/** Watched directories, the root and all directories below it. */
+	private final Map<WatchKey, Path> directories = new HashMap<WatchKey, Path>();
+	private final Thread watcherThread;
+	/** Key of the location, invalid once the location is gone. */
+	private WatchKey rootKey;
+	/** File key of the watched location, changes when it is replaced. */
+	private Object rootFileKey;
+
+	/**
+	 * @throws IOException
+	 *             if the location cannot be watched
+	 */
+	BootImageWatcher(BootImageDatabase db, File bootImageLocation)
+			throws IOException {
+		this.db = db;
+		this.root = bootImageLocation.toPath();
+		this.watchService = root.getFileSystem().newWatchService();
+		try {
+			registerAll(root);
+		} catch (IOException e) {
+			watchService.close();
+			throw e;
+		}
+		watcherThread = new Thread(this, "BSDP Image Watcher");
+		watcherThread.setDaemon(true);
+	}
+
+	void start() {
+		watcherThread.start();
+	}
+
+	/**
+	 * Stops watching. A reload in progress is finished.
+	 */
+	void stop() {
+		try {
+			watchService.close();
+		} catch (IOException e) {
+			l.log(Level.WARNING, "Could not close the image watcher. "
+					+ e.getMessage());
+		}
+	}
+
+	private void register(Path directory) throws IOException {
+		WatchKey key = directory.register(watchService,
+				StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_DELETE,
+				StandardWatchEventKinds.ENTRY_MODIFY);
+		directories.put(key, directory);
+		if (directory.equals(root)) {
+			rootKey = key;
+			rootFileKey = readRootFileKey();
+		}
+	}
+
+	/**
+	 * @return the file key of the location, null if it is not available.
+	 */
+	private Object readRootFileKey() {
+		try {
+			return Files.readAttributes(root, BasicFileAttributes.class)
+					.fileKey();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Watches the location again if it was removed and created again or
+	 * something was mounted on it.
+	 * 
+	 * @return true if the location is watched again.
+	 */
+	private boolean watchReplacedRoot() {
+		if (!Files.isDirectory(root)) {
+			// Still gone.
+			return false;
+		}
+		Object fileKey = readRootFileKey();
+		if (rootKey != null && rootKey.isValid()
+				&& (fileKey == null || fileKey.equals(rootFileKey))) {
+			return false;
+		}
+		try {
+			registerAll(root);
+		} catch (IOException e) {
+			l.log(Level.WARNING, "Cannot watch " + root + ". "
+					+ e.getMessage());
+			return false;
+		}
+		l.log(Level.INFO, "Watching " + root + " again.");
+		return true;
+	}
+
+	/**
+	 * Watches a directory and all directories below it. Directories already
+	 * watched keep their key.
+	 */
+	private void registerAll(Path start) throws IOException {
+		Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path directory,
+					BasicFileAttributes attributes) throws IOException {
+				register(directory);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	@Override
+	public void run() {
+		l.log(Level.INFO, "Watching " + root + " for changed images.");
+		try {
+			while (true) {
+				WatchKey changedKey = watchService.poll(ROOT_POLL_MILLIS,
+						TimeUnit.MILLISECONDS);
+				if (changedKey != null ? !handleEvents(changedKey)
+						: !watchReplacedRoot()) {
+					continue;
+				}
+				// Wait until the changes settled.
+				WatchKey key;
+				while ((key = watchService.poll(SETTLE_MILLIS,
+						TimeUnit.MILLISECONDS)) != null) {
+					handleEvents(key);
+				}
+				l.log(Level.INFO, "Images in " + root
+						+ " changed, reloading them...");
+				try {
+					// Catches directories created before their parent was
+					// watched.
+					registerAll(root);
+				} catch (IOException e) {
+					l.log(Level.WARNING, "Cannot watch the new images. "
+							+ e.getMessage());
+				}
+				try {
+					db.reloadImages();
+				} catch (RuntimeException e) {
+					l.log(Level.WARNING, "Reloading the images failed.", e);
+				}
+			}
+		} catch (ClosedWatchServiceException e) {
+			// Stopped.
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		l.log(Level.INFO, "Stopped watching " + root + ".");
+	}
+
+	/**
+	 * Watches the directories created meanwhile.
+	 * 
+	 * @return true if there was an event.
+	 */
+	private boolean handleEvents(WatchKey key) {
+		Path directory = directories.get(key);
+		boolean changed = false;
+		for (WatchEvent<?> event : key.pollEvents()) {
+			changed = true;
+			if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+					&& directory != null) {
+				Path created = directory.resolve((Path) event.context());
+				if (Files.isDirectory(created, LinkOption.NOFOLLOW_LINKS)) {
+					try {
+						registerAll(created);
+					} catch (IOException e) {
+						l.log(Level.WARNING, "Cannot watch " + created + ". "
+								+ e.getMessage());
+					}
+				}
+			}
+		}
+		if (!key.reset()) {
+			// The directory is gone.
+			directories.remove(key);
+		}
+		return changed;
+	}
+}
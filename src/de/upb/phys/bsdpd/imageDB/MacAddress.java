@@ -0,0 +1,131 @@
+/*
+ *    BSDPServer - Implements Apple's Boot Service Discover Protocol
+ *     in Java. "jbsdpd"
+ *    Copyright (C) 2015  Jan-Philipp Hülshoff <github@bklosr.de>
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package de.upb.phys.bsdpd.imageDB;
+
+/**
+ * Hardware address of a client packed into the lower 48 bits of a long.
+ * 
+ * Only the first six bytes of the client hardware address field are used.
+ * The string forms are the ones the client settings were always stored
+ * under, so they are only built for the preferences, log messages and file
+ * names.
+ * 
+ * @author jph
+ * 
+ */
+public final class MacAddress {
+
+	/** Length of a MAC address in bytes. */
+	public static final int LENGTH = 6;
+	/** Length of the client hardware address field in bytes. */
+	private static final int CHADDR_LENGTH = 16;
+
+	private MacAddress() {
+	}
+
+	/**
+	 * @param chaddr
+	 *            client hardware address field of a request
+	 * @return the first six bytes of the field as a long.
+	 */
+	public static long valueOf(byte[] chaddr) {
+		long macAddress = 0;
+		for (int i = 0; i < LENGTH; i++) {
+			macAddress <<= 8;
+			if (i < chaddr.length) {
+				macAddress |= chaddr[i] & 0xFF;
+			}
+		}
+		return macAddress;
+	}
+
+	/**
+	 * @return the address as a string like
+	 *         <code>[0:1b:63:1:2:3:0:0:0:0:0:0:0:0:0:0]</code>, the whole
+	 *         hardware address field in hex without leading zeros. This is the
+	 *         form the client settings are stored under.
+	 */
+	public static String toString(long macAddress) {
+		StringBuilder sb = new StringBuilder(3 * CHADDR_LENGTH + 2);
+		sb.append('[');
+		for (int i = 0; i < CHADDR_LENGTH; i++) {
+			if (i > 0) {
+				sb.append(':');
+			}
+			sb.append(Integer.toHexString(byteAt(macAddress, i)));
+		}
+		return sb.append(']').toString();
+	}
+
+	/**
+	 * Parses the form of {@link #toString(long)}.
+	 * 
+	 * @return the address or -1 if the string is not of that form or the
+	 *         hardware address field is longer than six bytes.
+	 */
+	public static long parse(String string) {
+		if (!string.startsWith("[") || !string.endsWith("]")) {
+			return -1;
+		}
+		String[] bytes = string.substring(1, string.length() - 1).split(":");
+		if (bytes.length != CHADDR_LENGTH) {
+			return -1;
+		}
+		long macAddress = 0;
+		try {
+			for (int i = 0; i < CHADDR_LENGTH; i++) {
+				int b = Integer.parseInt(bytes[i], 16);
+				if (b < 0 || b > 0xFF || (i >= LENGTH && b != 0)) {
+					return -1;
+				}
+				if (i < LENGTH) {
+					macAddress = macAddress << 8 | b;
+				}
+			}
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+		return macAddress;
+	}
+
+	/**
+	 * @return the address as used in file and machine names, e.g.
+	 *         <code>0-1b-63-1-2-3</code>. Bytes after the first one are left
+	 *         out if they are zero.
+	 */
+	public static String toFileSystemString(long macAddress) {
+		StringBuilder sb = new StringBuilder(3 * LENGTH);
+		sb.append(Integer.toHexString(byteAt(macAddress, 0)));
+		for (int i = 1; i < LENGTH; i++) {
+			int b = byteAt(macAddress, i);
+			if (b != 0) {
+				sb.append('-').append(Integer.toHexString(b));
+			}
+		}
+		return sb.toString();
+	}
+
+	private static int byteAt(long macAddress, int index) {
+		if (index >= LENGTH) {
+			return 0;
+		}
+		return (int) (macAddress >>> (8 * (LENGTH - 1 - index))) & 0xFF;
+	}
+}
@@ -0,0 +1,100 @@
+/*
+ *    BSDPServer - Implements Apple's Boot Service Discover Protocol
+ *     in Java. "jbsdpd"
+ *    Copyright (C) 2015  Jan-Philipp Hülshoff <github@bklosr.de>
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package de.upb.phys.bsdpd.imageDB;
+
+import java.util.Arrays;
+
+/**
+ * Index of the image each client selected last, by MAC address.
+ * 
+ * The addresses are kept as primitive longs in an open addressed table, so a
+ * lookup neither formats the address nor boxes it.
+ * 
+ * @author jph
+ * 
+ */
+class SelectedImageTable {
+
+	/** Marks a free slot, no 48 bit address has all bits set. */
+	private static final long FREE = -1;
+
+	private long[] macAddresses = new long[64];
+	private int[] imageIndexes = new int[64];
+	private int size;
+
+	SelectedImageTable() {
+		Arrays.fill(macAddresses, FREE);
+	}
+
+	/**
+	 * @return the index of the image the client selected last or 0 if it did
+	 *         not select one yet.
+	 */
+	synchronized int get(long macAddress) {
+		int slot = slotOf(macAddresses, macAddress);
+		return macAddresses[slot] == FREE ? 0 : imageIndexes[slot];
+	}
+
+	synchronized void put(long macAddress, int imageIndex) {
+		int slot = slotOf(macAddresses, macAddress);
+		if (macAddresses[slot] == FREE) {
+			if (2 * (size + 1) > macAddresses.length) {
+				grow();
+				slot = slotOf(macAddresses, macAddress);
+			}
+			macAddresses[slot] = macAddress;
+			size++;
+		}
+		imageIndexes[slot] = imageIndex;
+	}
+
+	synchronized int size() {
+		return size;
+	}
+
+	private void grow() {
+		long[] oldMacAddresses = macAddresses;
+		int[] oldImageIndexes = imageIndexes;
+		macAddresses = new long[2 * oldMacAddresses.length];
+		imageIndexes = new int[macAddresses.length];
+		Arrays.fill(macAddresses, FREE);
+		for (int i = 0; i < oldMacAddresses.length; i++) {
+			if (oldMacAddresses[i] != FREE) {
+				int slot = slotOf(macAddresses, oldMacAddresses[i]);
+				macAddresses[slot] = oldMacAddresses[i];
+				imageIndexes[slot] = oldImageIndexes[i];
+			}
+		}
+	}
+
+	/**
+	 * @return the slot of the address or the free slot it belongs into.
+	 */
+	private static int slotOf(long[] macAddresses, long macAddress) {
+		int mask = macAddresses.length - 1;
+		// The vendor part of addresses is mostly equal, the hash mixes it.
+		long hash = macAddress * 0x9E3779B97F4A7C15L;
+		int slot = (int) (hash >>> 32) & mask;
+		while (macAddresses[slot] != FREE && macAddresses[slot] != macAddress) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+}
@@ -0,0 +1,94 @@
+/*
+ *    BSDPServer - Implements Apple's Boot Service Discover Protocol
+ *     in Java. "jbsdpd"
+ *    Copyright (C) 2015  Jan-Philipp Hülshoff <github@bklosr.de>
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package de.upb.phys.bsdpd.imageDB;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Interns the system identifiers (model identifiers, e.g. MacBookPro8,1) of
+ * the boot images to small dense ids. Identifiers sent by clients are not
+ * interned, they only look up the {@link BootImageIndex}.
+ * 
+ * Equal identifiers are the same string and have the same id, so the images
+ * keep the identifiers they are enabled or disabled for as bit sets. The
+ * {@link BootImageIndex} resolves them once when it is built, requests only
+ * look up the index. Ids are never reused.
+ * 
+ * @author jph
+ * 
+ */
+public final class SystemIdentifiers {
+
+	private static final Map<String, Integer> ids = new HashMap<String, Integer>();
+	private static final List<String> identifiers = new ArrayList<String>();
+
+	private SystemIdentifiers() {
+	}
+
+	/**
+	 * Interns an identifier of a boot image.
+	 * 
+	 * @return the id of the identifier
+	 */
+	public static int intern(String systemIdentifier) {
+		synchronized (ids) {
+			Integer id = ids.get(systemIdentifier);
+			if (id == null) {
+				id = add(systemIdentifier);
+			}
+			return id;
+		}
+	}
+
+	private static Integer add(String systemIdentifier) {
+		Integer id = identifiers.size();
+		identifiers.add(systemIdentifier);
+		ids.put(systemIdentifier, id);
+		return id;
+	}
+
+	/**
+	 * @return the id of the identifier or -1 if it was never interned.
+	 */
+	public static int idOf(String systemIdentifier) {
+		synchronized (ids) {
+			Integer id = ids.get(systemIdentifier);
+			return id == null ? -1 : id;
+		}
+	}
+
+	/**
+	 * @return the interned identifier with the id
+	 */
+	public static String get(int id) {
+		synchronized (ids) {
+			return identifiers.get(id);
+		}
+	}
+
+	public static int size() {
+		synchronized (ids) {
+			return identifiers.size();
+		}
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ *    BSDPServer - Implements Apple's Boot Service Discover Protocol
+ *     in Java. "jbsdpd"
+ *    Copyright (C) 2015  Jan-Philipp Hülshoff <github@bklosr.de>
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package de.upb.phys.bsdpd.test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+import de.upb.phys.bsdpd.BSDPMessage;
+import de.upb.phys.bsdpd.bsdppackets.BSDPOption;
+import de.upb.phys.bsdpd.bsdppackets.BSDPoMessageType;
+import de.upb.phys.bsdpd.bsdppackets.BSDPoReplyPort;
+import de.upb.phys.bsdpd.bsdppackets.BSDPoSelectedBootImageId;
+import de.upb.phys.bsdpd.bsdppackets.BSDPoVersion;
+import de.upb.phys.bsdpd.bsdppackets.BSDPoMessageType.TYPES;
+import edu.bucknell.net.JDHCP.DHCPMessage;
+
+/**
+ * Load generator to compare the execution modes of a running BSDP-Server.
+ * 
+ * Sends INFORM[LIST] (or INFORM[SELECT]) requests from simulated clients with
+ * distinct hardware addresses in bursts of <code>window</code> requests and
+ * waits for each burst to be answered (or to time out) before sending the
+ * next one. Start the server
+ * e.g. with <code>-e SINGLE_THREAD</code> and <code>-e VIRTUAL_THREADS</code>
+ * and compare the printed rates.
+ * 
+ * <pre>
+ * java de.upb.phys.bsdpd.test.BSDPBenchmark server requests [replyPort] [window] [vendorClass] [selectImageId]
+ * </pre>
+ * 
+ * selectImageId is the 4 byte BSDP boot image id, e.g. 0x81000065 for the
+ * install image with index 101.
+ * 
+ * @author jph
+ * 
+ */
+public class BSDPBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.out.println("Usage: BSDPBenchmark server requests "
+					+ "[replyPort] [window] [vendorClass] [selectImageId]");
+			return;
+		}
+		InetAddress server = InetAddress.getByName(args[0]);
+		int requests = Integer.parseInt(args[1]);
+		int replyPort = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+		int window = args.length > 3 ? Integer.parseInt(args[3]) : 32;
+		String vendorClass = args.length > 4 ? args[4]
+				: "AAPLBSDPC/i386/MacBookPro8,1";
+		long selectImageId = args.length > 5 ? Long.decode(args[5]) : -1;
+
+		DatagramSocket socket = new DatagramSocket(replyPort);
+		InetAddress localAddress = InetAddress.getLocalHost();
+		if (server.isLoopbackAddress()) {
+			localAddress = server;
+		}
+
+		BitSet answered = new BitSet(requests);
+		long replies = 0;
+		byte[] buffer = new byte[1500];
+		socket.setSoTimeout(500);
+
+		long start = System.nanoTime();
+		long lastReply = start;
+		for (int first = 0; first < requests; first += window) {
+			int last = Math.min(first + window, requests);
+			for (int xid = first; xid < last; xid++) {
+				byte[] request = createRequest(xid, localAddress, replyPort,
+						vendorClass, selectImageId);
+				socket.send(new DatagramPacket(request, request.length,
+						server, DHCPMessage.SERVER_PORT));
+			}
+			// Wait for the window to be answered, lost requests time out.
+			while (answered.nextClearBit(first) < last) {
+				DatagramPacket packet = new DatagramPacket(buffer,
+						buffer.length);
+				try {
+					socket.receive(packet);
+				} catch (SocketTimeoutException e) {
+					break;
+				}
+				lastReply = System.nanoTime();
+				replies++;
+				int xid = ByteBuffer.wrap(buffer, 4, 4).getInt();
+				if (xid >= 0 && xid < requests) {
+					answered.set(xid);
+				}
+			}
+		}
+		socket.close();
+
+		double seconds = (lastReply - start) / 1e9;
+		System.out.println("Requests sent:     " + requests + " (window "
+				+ window + ")");
+		System.out.println("Requests answered: " + answered.cardinality());
+		System.out.println("Reply packets:     " + replies);
+		System.out.println("Duration:          " + (long) (seconds * 1000)
+				+ "ms");
+		System.out.println("Answered/s:        "
+				+ (long) (answered.cardinality() / seconds));
+	}
+
+	private static byte[] createRequest(int xid, InetAddress localAddress,
+			int replyPort, String vendorClass, long selectImageId) {
+		BSDPMessage message = new BSDPMessage();
+		message.setOp((byte) 1);
+		message.setHtype((byte) 1);
+		message.setHlen((byte) 6);
+		message.setXid(xid);
+		message.setCiaddr(localAddress.getAddress());
+		message.setChaddr(new byte[] { 0x00, 0x16, (byte) 0xcb,
+				(byte) (xid >> 16), (byte) (xid >> 8), (byte) xid, 0, 0, 0,
+				0, 0, 0, 0, 0, 0, 0 });
+		message.setOption((byte) 53, new byte[] { DHCPMessage.INFORM });
+		message.setOption((byte) 60, vendorClass.getBytes());
+
+		BSDPoReplyPort replyPortOption = new BSDPoReplyPort();
+		replyPortOption.setReplyPort(replyPort);
+		message.setBSDPOption(replyPortOption);
+		message.setBSDPOption(new BSDPoVersion());
+		if (selectImageId < 0) {
+			message.setBSDPOption(new BSDPoMessageType(TYPES.LIST));
+		} else {
+			message.setBSDPOption(new BSDPoMessageType(TYPES.SELECT));
+			final byte[] bootImageId = ByteBuffer.allocate(4).putInt(
+					(int) selectImageId).array();
+			message.setBSDPOption(new BSDPOption() {
+				@Override
+				public byte getOptionNumber() {
+					return BSDPoSelectedBootImageId.NO;
+				}
+
+				@Override
+				public byte[] getEncodedData() {
+					return bootImageId;
+				}
+
+				@Override
+				public void setEncodedData(byte[] encodedData) {
+				}
+			});
+		}
+		return message.externalize();
+	}
+}
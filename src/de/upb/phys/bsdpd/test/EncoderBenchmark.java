@@ -0,0 +1,191 @@
+/*
+ *    BSDPServer - Implements Apple's Boot Service Discover Protocol
+ *     in Java. "jbsdpd"
+ *    Copyright (C) 2015  Jan-Philipp Hülshoff <github@bklosr.de>
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package de.upb.phys.bsdpd.test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import de.upb.phys.bsdpd.BSDPMessage;
+import de.upb.phys.bsdpd.BSDPPacketView;
+import de.upb.phys.bsdpd.bsdppackets.BSDPOption;
+import de.upb.phys.bsdpd.bsdppackets.BSDPoBootImageList;
+import de.upb.phys.bsdpd.bsdppackets.BSDPoMessageType;
+import de.upb.phys.bsdpd.bsdppackets.BSDPoServerId;
+import de.upb.phys.bsdpd.bsdppackets.BSDPoServerPriority;
+import de.upb.phys.bsdpd.bsdppackets.BSDPoMessageType.TYPES;
+import de.upb.phys.bsdpd.transport.BSDPTransport;
+import edu.bucknell.net.JDHCP.DHCPMessage;
+
+/**
+ * Compares {@link BSDPMessage#externalize()} with the encoder writing into a
+ * reused buffer ({@link BSDPMessage#externalize(ByteBuffer)}).
+ *
+ * Encodes a LIST reply with a boot image list repeatedly and prints the
+ * time and the allocated bytes per reply of both ways.
+ *
+ * <pre>
+ * java de.upb.phys.bsdpd.test.EncoderBenchmark [iterations]
+ * </pre>
+ *
+ * @author jph
+ *
+ */
+public class EncoderBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		BSDPMessage reply = createReply();
+		ByteBuffer buffer = ByteBuffer
+				.allocateDirect(BSDPTransport.PACKET_SIZE);
+
+		// Both encoders must produce the same packet.
+		byte[] expected = reply.externalize();
+		reply.externalize(buffer);
+		buffer.flip();
+		byte[] actual = new byte[buffer.remaining()];
+		buffer.get(actual);
+		if (!equalPackets(expected, actual)) {
+			System.out.println("The encoders differ!");
+			return;
+		}
+		System.out.println("Reply size: " + actual.length + " bytes");
+
+		for (int round = 0; round < 3; round++) {
+			long allocated = allocatedBytes();
+			long start = System.nanoTime();
+			int checksum = 0;
+			for (int i = 0; i < iterations; i++) {
+				checksum += reply.externalize().length;
+			}
+			print("externalize()          ", start, allocated, iterations,
+					checksum);
+
+			allocated = allocatedBytes();
+			start = System.nanoTime();
+			checksum = 0;
+			for (int i = 0; i < iterations; i++) {
+				buffer.clear();
+				reply.externalize(buffer);
+				checksum += buffer.position();
+			}
+			print("externalize(ByteBuffer)", start, allocated, iterations,
+					checksum);
+		}
+	}
+
+	private static void print(String name, long start, long allocated,
+			int iterations, int checksum) {
+		long duration = System.nanoTime() - start;
+		long bytes = allocatedBytes() - allocated;
+		System.out.println(name + ": " + duration / iterations + " ns/reply, "
+				+ (allocated < 0 ? "?" : Long.toString(bytes / iterations))
+				+ " bytes/reply allocated (" + checksum + ")");
+	}
+
+	/**
+	 * The option order may differ, so the packets are compared option by
+	 * option.
+	 */
+	private static boolean equalPackets(byte[] expected, byte[] actual) {
+		if (expected.length != actual.length
+				|| !Arrays.equals(Arrays.copyOf(expected, 236), Arrays.copyOf(
+						actual, 236))) {
+			return false;
+		}
+		BSDPPacketView expectedView = new BSDPPacketView();
+		BSDPPacketView actualView = new BSDPPacketView();
+		if (!expectedView.wrap(ByteBuffer.wrap(expected))
+				|| !actualView.wrap(ByteBuffer.wrap(actual))) {
+			return false;
+		}
+		for (int code = 1; code < 255; code++) {
+			if (code != 43
+					&& !Arrays.equals(expectedView.getOption(code), actualView
+							.getOption(code))) {
+				return false;
+			}
+			if (!Arrays.equals(expectedView.getBSDPOption(code), actualView
+					.getBSDPOption(code))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return bytes allocated by this thread so far or -1 if the JVM does not
+	 *         count them.
+	 */
+	private static long allocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean)
+					.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	private static BSDPMessage createReply() throws Exception {
+		BSDPMessage reply = new BSDPMessage();
+		reply.setOp((byte) 2);
+		reply.setHtype((byte) 1);
+		reply.setHlen((byte) 6);
+		reply.setXid(4242);
+		reply.setCiaddr(new byte[] { 10, 0, 0, 42 });
+		reply.setSiaddr(new byte[] { 10, 0, 0, 1 });
+		reply.setChaddr(new byte[] { 0x00, 0x16, (byte) 0xcb, 1, 2, 3, 0, 0,
+				0, 0, 0, 0, 0, 0, 0, 0 });
+		reply.setOption((byte) 53, new byte[] { DHCPMessage.ACK });
+		reply.setOption((byte) 54, new byte[] { 10, 0, 0, 1 });
+		reply.setOption((byte) 60, "AAPLBSDPC".getBytes("US-ASCII"));
+		reply.setBSDPOption(new BSDPoMessageType(TYPES.LIST));
+		reply.setBSDPOption(new BSDPoServerPriority(500));
+		reply.setBSDPOption(new BSDPoServerId(InetAddress
+				.getByAddress(new byte[] { 10, 0, 0, 1 })));
+		// Image list without the database: 8 entries with 20 byte names.
+		final byte[] imageList = new byte[8 * (4 + 1 + 20)];
+		for (int i = 0; i < 8; i++) {
+			int pos = i * 25;
+			imageList[pos] = (byte) 0x81;
+			imageList[pos + 3] = (byte) (101 + i);
+			imageList[pos + 4] = 20;
+			Arrays.fill(imageList, pos + 5, pos + 25, (byte) ('A' + i));
+		}
+		reply.setBSDPOption(new BSDPOption() {
+			@Override
+			public byte getOptionNumber() {
+				return BSDPoBootImageList.NO;
+			}
+
+			@Override
+			public byte[] getEncodedData() {
+				return imageList;
+			}
+
+			@Override
+			public void setEncodedData(byte[] encodedData) {
+			}
+		});
+		return reply;
+	}
+}
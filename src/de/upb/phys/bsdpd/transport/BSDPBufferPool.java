@@ -0,0 +1,86 @@
+/*
+ *    BSDPServer - Implements Apple's Boot Service Discover Protocol
+ *     in Java. "jbsdpd"
+ *    Copyright (C) 2015  Jan-Philipp Hülshoff <github@bklosr.de>
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package de.upb.phys.bsdpd.transport;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of direct buffers of {@link BSDPTransport#PACKET_SIZE} bytes the
+ * replies are encoded into. Buffers are reused after they are sent, so
+ * encoding a reply does not allocate.
+ *
+ * @author jph
+ *
+ */
+public class BSDPBufferPool {
+
+	private final BlockingQueue<ByteBuffer> buffers;
+
+	private final AtomicLong allocated = new AtomicLong();
+	private final AtomicLong reused = new AtomicLong();
+
+	/**
+	 * @param maxBuffers
+	 *            maximum number of free buffers kept in the pool
+	 */
+	public BSDPBufferPool(int maxBuffers) {
+		buffers = new ArrayBlockingQueue<ByteBuffer>(maxBuffers);
+	}
+
+	/**
+	 * @return an empty buffer, allocated if the pool is empty.
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = buffers.poll();
+		if (buffer == null) {
+			allocated.incrementAndGet();
+			return ByteBuffer.allocateDirect(BSDPTransport.PACKET_SIZE);
+		}
+		reused.incrementAndGet();
+		return buffer;
+	}
+
+	/**
+	 * Returns a buffer from {@link #acquire()} to the pool. It must not be used
+	 * afterwards.
+	 */
+	public void release(ByteBuffer buffer) {
+		buffer.clear();
+		buffers.offer(buffer);
+	}
+
+	public long getAllocated() {
+		return allocated.get();
+	}
+
+	public long getReused() {
+		return reused.get();
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "@" + hashCode() + "[free="
+				+ buffers.size() + ",allocated=" + getAllocated() + ",reused="
+				+ getReused() + "]";
+	}
+}
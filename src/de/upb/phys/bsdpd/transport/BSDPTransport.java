@@ -0,0 +1,99 @@
+/*
+ *    BSDPServer - Implements Apple's Boot Service Discover Protocol
+ *     in Java. "jbsdpd"
+ *    Copyright (C) 2015  Jan-Philipp Hülshoff <github@bklosr.de>
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package de.upb.phys.bsdpd.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Datagram transport used by the BSDPServer to receive requests and send
+ * replies.
+ *
+ * Whether a batch costs one system call or one per datagram depends on the
+ * implementation: {@link NIODatagramTransport} loops over the datagrams,
+ * {@link MMsgDatagramTransport} uses recvmmsg(2) and sendmmsg(2).
+ *
+ * @author jph
+ *
+ */
+public interface BSDPTransport {
+
+	/**
+	 * Default size of the receive buffers (MTU for ethernet)
+	 */
+	public static final int PACKET_SIZE = 1500;
+
+	/**
+	 * Blocks until at least one datagram is available or {@link #wakeup()} is
+	 * called and reads as many waiting datagrams as there are buffers.
+	 *
+	 * @param datagrams
+	 *            buffers to read into, each holds one datagram between
+	 *            position and limit afterwards
+	 * @return number of buffers filled, 0 if the transport was woken up
+	 *         without a datagram.
+	 */
+	public int receive(ByteBuffer[] datagrams) throws IOException;
+
+	/**
+	 * Sends the remaining bytes of the buffer as one datagram.
+	 *
+	 * @param datagram
+	 *            data to send
+	 * @param destination
+	 *            host and port to send the datagram to
+	 */
+	public void send(ByteBuffer datagram, InetSocketAddress destination)
+			throws IOException;
+
+	/**
+	 * Sends a batch of datagrams in order.
+	 *
+	 * @param datagrams
+	 *            data to send
+	 * @param destinations
+	 *            host and port for the datagram with the same index
+	 * @param count
+	 *            number of datagrams to send from the start of the arrays
+	 * @return number of datagrams sent. Less than count if the socket did not
+	 *         take the next one.
+	 * @throws IOException
+	 *             if not even the first datagram could be sent.
+	 */
+	public int send(ByteBuffer[] datagrams, InetSocketAddress[] destinations,
+			int count) throws IOException;
+
+	/**
+	 * @return the local address the transport is bound to
+	 */
+	public InetSocketAddress getLocalAddress();
+
+	/**
+	 * Makes a thread blocked in {@link #receive(ByteBuffer[])} return
+	 * immediately.
+	 */
+	public void wakeup();
+
+	/**
+	 * Releases the socket and all other resources.
+	 */
+	public void close();
+}
@@ -0,0 +1,612 @@
+/*
+ *    BSDPServer - Implements Apple's Boot Service Discover Protocol
+ *     in Java. "jbsdpd"
+ *    Copyright (C) 2015  Jan-Philipp Hülshoff <github@bklosr.de>
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package de.upb.phys.bsdpd.transport;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Optional;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Linux transport moving whole batches of datagrams per system call with
+ * recvmmsg(2) and sendmmsg(2).
+ *
+ * The socket, the message headers and the datagram slots live in native
+ * memory and are accessed through the Foreign Function &amp; Memory API (Java
+ * 21 or later, start with --enable-native-access=ALL-UNNAMED to silence the
+ * warning). The API is looked up by reflection like the virtual threads, so
+ * the server still builds and runs on older runtimes; use
+ * {@link #isAvailable()} before creating an instance and fall back to the
+ * {@link NIODatagramTransport} otherwise.
+ *
+ * The receiving thread sleeps in poll(2) on the socket and an eventfd(2)
+ * which {@link #wakeup()} writes to. Received datagrams are copied from the
+ * native slots into the caller's buffers, replies are copied into the native
+ * slots before they are sent. Only IPv4 on x86_64 and aarch64 is supported,
+ * the structure layouts below are the ones of these platforms.
+ *
+ * @author jph
+ *
+ */
+public class MMsgDatagramTransport implements BSDPTransport {
+
+	private static final Logger l = Logger.getLogger("bsdpd");
+
+	/** Maximum number of datagrams moved by one system call. */
+	public static final int MAX_BATCH = 64;
+
+	private static final int AF_INET = 2;
+	private static final int SOCK_DGRAM = 2;
+	private static final int SOCK_CLOEXEC = 02000000;
+	private static final int SOL_SOCKET = 1;
+	private static final int SO_REUSEADDR = 2;
+	private static final int SO_BROADCAST = 6;
+	private static final int SO_REUSEPORT = 15;
+	private static final int EFD_NONBLOCK = 04000;
+	private static final int EFD_CLOEXEC = 02000000;
+	private static final int MSG_DONTWAIT = 0x40;
+	private static final short POLLIN = 0x1;
+	private static final short POLLERR = 0x8;
+	private static final short POLLNVAL = 0x20;
+
+	/** struct msghdr with the msg_len of struct mmsghdr and padding. */
+	private static final int MMSGHDR_SIZE = 64;
+	private static final int MSG_NAME = 0;
+	private static final int MSG_NAMELEN = 8;
+	private static final int MSG_IOV = 16;
+	private static final int MSG_IOVLEN = 24;
+	private static final int MSG_FLAGS = 48;
+	private static final int MSG_LEN = 56;
+	private static final int IOVEC_SIZE = 16;
+	private static final int SOCKADDR_IN_SIZE = 16;
+	private static final int POLLFD_SIZE = 8;
+
+	/** The native functions, null if they cannot be used. */
+	private static final Native NATIVE = Native.load();
+
+	private final Object arena;
+	private final InetSocketAddress localAddress;
+	private final int socket;
+	private final int wakeupEvent;
+	private volatile boolean closed;
+
+	private final NativeBuffer receiveHeaders;
+	private final NativeBuffer receiveData;
+	private final NativeBuffer sendHeaders;
+	private final NativeBuffer sendData;
+	private final NativeBuffer sendAddresses;
+	private final NativeBuffer scratch;
+	/** Value written to the eventfd by a wakeup and the one read back. */
+	private final NativeBuffer eventValue;
+	private final Object sendLock = new Object();
+
+	/**
+	 * @return true if the FFM API and the system calls can be used on this
+	 *         platform and runtime.
+	 */
+	public static boolean isAvailable() {
+		return NATIVE != null;
+	}
+
+	/**
+	 * Binds a new socket to the given local address.
+	 *
+	 * @param localAddress
+	 *            the address to bind, IPv4 only.
+	 * @param reusePort
+	 *            set SO_REUSEPORT, so several sockets can be bound to the
+	 *            same address and the kernel spreads the datagrams over them.
+	 */
+	public MMsgDatagramTransport(InetSocketAddress localAddress,
+			boolean reusePort) throws IOException {
+		if (NATIVE == null) {
+			throw new IOException(
+					"recvmmsg/sendmmsg are not available on this platform.");
+		}
+		if (!(localAddress.getAddress() instanceof Inet4Address)) {
+			throw new IOException("Only IPv4 addresses can be bound: "
+					+ localAddress);
+		}
+		this.localAddress = localAddress;
+		arena = NATIVE.openArena();
+		receiveHeaders = NATIVE.allocate(arena, MAX_BATCH
+				* (MMSGHDR_SIZE + IOVEC_SIZE));
+		receiveData = NATIVE.allocate(arena, MAX_BATCH * PACKET_SIZE);
+		sendHeaders = NATIVE.allocate(arena, MAX_BATCH
+				* (MMSGHDR_SIZE + IOVEC_SIZE));
+		sendData = NATIVE.allocate(arena, MAX_BATCH * PACKET_SIZE);
+		sendAddresses = NATIVE.allocate(arena, MAX_BATCH * SOCKADDR_IN_SIZE);
+		// Poll descriptors, socket option value and bind address.
+		scratch = NATIVE.allocate(arena, 2 * POLLFD_SIZE + 8
+				+ SOCKADDR_IN_SIZE);
+		eventValue = NATIVE.allocate(arena, 16);
+		eventValue.buffer.putLong(0, 1);
+		int fd = NATIVE.socket(AF_INET, SOCK_DGRAM | SOCK_CLOEXEC, 0);
+		if (fd < 0) {
+			NATIVE.closeArena(arena);
+			throw new IOException("Could not create a socket.");
+		}
+		socket = fd;
+		int event = -1;
+		try {
+			setOption(SO_REUSEADDR);
+			if (reusePort) {
+				setOption(SO_REUSEPORT);
+			}
+			setOption(SO_BROADCAST);
+			int address = 2 * POLLFD_SIZE + 8;
+			putSocketAddress(scratch.buffer, address, localAddress);
+			if (NATIVE.bind(socket, scratch.address + address,
+					SOCKADDR_IN_SIZE) != 0) {
+				throw new IOException("Could not bind to " + localAddress
+						+ ".");
+			}
+			event = NATIVE.eventfd(0, EFD_NONBLOCK | EFD_CLOEXEC);
+			if (event < 0) {
+				throw new IOException("Could not create an eventfd.");
+			}
+		} catch (IOException e) {
+			NATIVE.close(socket);
+			NATIVE.closeArena(arena);
+			throw e;
+		}
+		wakeupEvent = event;
+		ByteBuffer pollFds = scratch.buffer;
+		pollFds.putInt(0, socket);
+		pollFds.putShort(4, POLLIN);
+		pollFds.putInt(POLLFD_SIZE, wakeupEvent);
+		pollFds.putShort(POLLFD_SIZE + 4, POLLIN);
+		initHeaders(receiveHeaders, receiveData, false);
+		initHeaders(sendHeaders, sendData, true);
+	}
+
+	private void setOption(int option) throws IOException {
+		int value = 2 * POLLFD_SIZE;
+		scratch.buffer.putInt(value, 1);
+		if (NATIVE.setsockopt(socket, SOL_SOCKET, option, scratch.address
+				+ value, 4) != 0) {
+			throw new IOException("Could not set socket option " + option
+					+ ".");
+		}
+	}
+
+	/**
+	 * Points the message headers at their iovec and datagram slot, and for
+	 * sending at their socket address. Only the lengths change afterwards.
+	 */
+	private void initHeaders(NativeBuffer headers, NativeBuffer data,
+			boolean send) {
+		long iovecs = headers.address + MAX_BATCH * MMSGHDR_SIZE;
+		for (int i = 0; i < MAX_BATCH; i++) {
+			int header = i * MMSGHDR_SIZE;
+			int iovec = MAX_BATCH * MMSGHDR_SIZE + i * IOVEC_SIZE;
+			headers.buffer.putLong(header + MSG_NAME, send ? sendAddresses.address
+					+ i * SOCKADDR_IN_SIZE : 0);
+			headers.buffer.putInt(header + MSG_NAMELEN, send ? SOCKADDR_IN_SIZE
+					: 0);
+			headers.buffer.putLong(header + MSG_IOV, iovecs + i * IOVEC_SIZE);
+			headers.buffer.putLong(header + MSG_IOVLEN, 1);
+			headers.buffer.putLong(iovec, data.address + i * PACKET_SIZE);
+			headers.buffer.putLong(iovec + 8, PACKET_SIZE);
+		}
+	}
+
+	private static void putSocketAddress(ByteBuffer buffer, int index,
+			InetSocketAddress address) {
+		buffer.putShort(index, (short) AF_INET);
+		buffer.put(index + 2, (byte) (address.getPort() >> 8));
+		buffer.put(index + 3, (byte) address.getPort());
+		byte[] ip = address.getAddress().getAddress();
+		for (int i = 0; i < 4; i++) {
+			buffer.put(index + 4 + i, ip[i]);
+		}
+		buffer.putLong(index + 8, 0);
+	}
+
+	@Override
+	public int receive(ByteBuffer[] datagrams) throws IOException {
+		int count = drain(datagrams);
+		if (count == 0) {
+			ByteBuffer pollFds = scratch.buffer;
+			pollFds.putShort(6, (short) 0);
+			pollFds.putShort(POLLFD_SIZE + 6, (short) 0);
+			if (NATIVE.poll(scratch.address, 2, -1) < 0) {
+				// Interrupted by a signal, the caller receives again.
+				return 0;
+			}
+			if ((pollFds.getShort(6) & (POLLERR | POLLNVAL)) != 0) {
+				throw new IOException("Socket failed.");
+			}
+			if (pollFds.getShort(POLLFD_SIZE + 6) != 0) {
+				NATIVE.read(wakeupEvent, eventValue.address + 8, 8);
+			}
+			count = drain(datagrams);
+		}
+		return count;
+	}
+
+	private int drain(ByteBuffer[] datagrams) throws IOException {
+		if (closed) {
+			throw new IOException("Transport is closed.");
+		}
+		int count = NATIVE.recvmmsg(socket, receiveHeaders.address, Math.min(
+				datagrams.length, MAX_BATCH), MSG_DONTWAIT, 0);
+		if (count <= 0) {
+			// EAGAIN, nothing is waiting.
+			return 0;
+		}
+		ByteBuffer data = receiveData.buffer.duplicate();
+		for (int i = 0; i < count; i++) {
+			int length = receiveHeaders.buffer.getInt(i * MMSGHDR_SIZE
+					+ MSG_LEN);
+			ByteBuffer datagram = datagrams[i];
+			datagram.clear();
+			data.limit(i * PACKET_SIZE
+					+ Math.min(length, datagram.remaining()));
+			data.position(i * PACKET_SIZE);
+			datagram.put(data);
+			datagram.flip();
+			data.limit(data.capacity());
+		}
+		return count;
+	}
+
+	@Override
+	public void send(ByteBuffer datagram, InetSocketAddress destination)
+			throws IOException {
+		synchronized (sendLock) {
+			if (closed || !prepare(0, datagram, destination)
+					|| NATIVE.sendmmsg(socket, sendHeaders.address, 1,
+							MSG_DONTWAIT) != 1) {
+				throw new IOException("Could not send the datagram to "
+						+ destination + ".");
+			}
+		}
+	}
+
+	@Override
+	public int send(ByteBuffer[] datagrams, InetSocketAddress[] destinations,
+			int count) throws IOException {
+		int sentTotal = 0;
+		synchronized (sendLock) {
+			while (!closed && sentTotal < count) {
+				int batch = 0;
+				while (batch < MAX_BATCH && sentTotal + batch < count
+						&& prepare(batch, datagrams[sentTotal + batch],
+								destinations[sentTotal + batch])) {
+					batch++;
+				}
+				int sentNow = batch == 0 ? -1 : NATIVE.sendmmsg(socket,
+						sendHeaders.address, batch, MSG_DONTWAIT);
+				if (sentNow <= 0) {
+					break;
+				}
+				sentTotal += sentNow;
+				if (sentNow < batch) {
+					break;
+				}
+			}
+		}
+		if (sentTotal == 0 && count > 0) {
+			throw new IOException("Could not send the datagrams, first to "
+					+ destinations[0] + ".");
+		}
+		return sentTotal;
+	}
+
+	/**
+	 * Copies a datagram into its native slot.
+	 *
+	 * @return false if the datagram cannot be sent by this transport.
+	 */
+	private boolean prepare(int slot, ByteBuffer datagram,
+			InetSocketAddress destination) {
+		InetAddress address = destination.getAddress();
+		int length = datagram.remaining();
+		if (!(address instanceof Inet4Address) || length > PACKET_SIZE) {
+			return false;
+		}
+		putSocketAddress(sendAddresses.buffer, slot * SOCKADDR_IN_SIZE,
+				destination);
+		ByteBuffer data = sendData.buffer.duplicate();
+		data.position(slot * PACKET_SIZE);
+		data.put(datagram);
+		sendHeaders.buffer.putLong(MAX_BATCH * MMSGHDR_SIZE + slot
+				* IOVEC_SIZE + 8, length);
+		return true;
+	}
+
+	@Override
+	public InetSocketAddress getLocalAddress() {
+		return localAddress;
+	}
+
+	/**
+	 * May be called from any thread, also while the transport is closed by
+	 * another one.
+	 */
+	@Override
+	public void wakeup() {
+		// The lock keeps close() from releasing the eventfd and the arena
+		// between the check and the write.
+		synchronized (sendLock) {
+			if (!closed) {
+				NATIVE.write(wakeupEvent, eventValue.address, 8);
+			}
+		}
+	}
+
+	/**
+	 * Must not be called while a thread is receiving, stop it with
+	 * {@link #wakeup()} first.
+	 */
+	@Override
+	public void close() {
+		synchronized (sendLock) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			NATIVE.close(socket);
+			NATIVE.close(wakeupEvent);
+			NATIVE.closeArena(arena);
+		}
+	}
+
+	/**
+	 * Native memory as a buffer in the native byte order and its address.
+	 */
+	private static class NativeBuffer {
+		private final ByteBuffer buffer;
+		private final long address;
+
+		private NativeBuffer(ByteBuffer buffer, long address) {
+			this.buffer = buffer.order(ByteOrder.nativeOrder());
+			this.address = address;
+		}
+	}
+
+	/**
+	 * The downcall handles of the used system calls. Pointers are passed as
+	 * long values, so no FFM type is needed when the handles are invoked.
+	 */
+	private static class Native {
+		private final Method ofShared;
+		private final Method allocate;
+		private final Method address;
+		private final Method asByteBuffer;
+		private final Method closeArena;
+		private final MethodHandle socket;
+		private final MethodHandle setsockopt;
+		private final MethodHandle bind;
+		private final MethodHandle poll;
+		private final MethodHandle recvmmsg;
+		private final MethodHandle sendmmsg;
+		private final MethodHandle eventfd;
+		private final MethodHandle read;
+		private final MethodHandle write;
+		private final MethodHandle close;
+
+		private Native() throws Exception {
+			Class<?> linkerClass = Class.forName("java.lang.foreign.Linker");
+			Class<?> arenaClass = Class.forName("java.lang.foreign.Arena");
+			Class<?> segmentClass = Class
+					.forName("java.lang.foreign.MemorySegment");
+			Class<?> layoutClass = Class
+					.forName("java.lang.foreign.MemoryLayout");
+			Class<?> valueLayoutClass = Class
+					.forName("java.lang.foreign.ValueLayout");
+			Class<?> descriptorClass = Class
+					.forName("java.lang.foreign.FunctionDescriptor");
+			Class<?> optionClass = Class
+					.forName("java.lang.foreign.Linker$Option");
+			Class<?> lookupClass = Class
+					.forName("java.lang.foreign.SymbolLookup");
+
+			ofShared = arenaClass.getMethod("ofShared");
+			allocate = arenaClass.getMethod("allocate", long.class,
+					long.class);
+			closeArena = arenaClass.getMethod("close");
+			address = segmentClass.getMethod("address");
+			asByteBuffer = segmentClass.getMethod("asByteBuffer");
+
+			Object linker = linkerClass.getMethod("nativeLinker").invoke(null);
+			Object lookup = linkerClass.getMethod("defaultLookup").invoke(
+					linker);
+			Method find = lookupClass.getMethod("find", String.class);
+			Method of = descriptorClass.getMethod("of", layoutClass, Array
+					.newInstance(layoutClass, 0).getClass());
+			Method downcallHandle = linkerClass.getMethod("downcallHandle",
+					segmentClass, descriptorClass, Array.newInstance(
+							optionClass, 0).getClass());
+			Object noOptions = Array.newInstance(optionClass, 0);
+			Object i = valueLayoutClass.getField("JAVA_INT").get(null);
+			Object j = valueLayoutClass.getField("JAVA_LONG").get(null);
+
+			Object[][] signatures = { { "socket", i, i, i, i },
+					{ "setsockopt", i, i, i, i, j, i }, { "bind", i, i, j, i },
+					{ "poll", i, j, j, i }, { "recvmmsg", i, i, j, i, i, j },
+					{ "sendmmsg", i, i, j, i, i }, { "eventfd", i, i, i },
+					{ "read", j, i, j, j }, { "write", j, i, j, j },
+					{ "close", i, i } };
+			MethodHandle[] handles = new MethodHandle[signatures.length];
+			for (int n = 0; n < signatures.length; n++) {
+				Object[] signature = signatures[n];
+				Optional<?> symbol = (Optional<?>) find.invoke(lookup,
+						signature[0]);
+				if (!symbol.isPresent()) {
+					throw new IllegalStateException("No " + signature[0]
+							+ " in the C library.");
+				}
+				Object arguments = Array.newInstance(layoutClass,
+						signature.length - 2);
+				for (int a = 2; a < signature.length; a++) {
+					Array.set(arguments, a - 2, signature[a]);
+				}
+				Object descriptor = of.invoke(null, signature[1], arguments);
+				handles[n] = (MethodHandle) downcallHandle.invoke(linker,
+						symbol.get(), descriptor, noOptions);
+			}
+			socket = handles[0];
+			setsockopt = handles[1];
+			bind = handles[2];
+			poll = handles[3];
+			recvmmsg = handles[4];
+			sendmmsg = handles[5];
+			eventfd = handles[6];
+			read = handles[7];
+			write = handles[8];
+			close = handles[9];
+		}
+
+		static Native load() {
+			String os = System.getProperty("os.name", "");
+			String arch = System.getProperty("os.arch", "");
+			if (!os.equals("Linux")
+					|| !(arch.equals("amd64") || arch.equals("x86_64") || arch
+							.equals("aarch64"))) {
+				return null;
+			}
+			try {
+				return new Native();
+			} catch (Throwable t) {
+				l.log(Level.FINE, "recvmmsg/sendmmsg not available: " + t);
+				return null;
+			}
+		}
+
+		Object openArena() {
+			try {
+				return ofShared.invoke(null);
+			} catch (Exception e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		NativeBuffer allocate(Object arena, long size) {
+			try {
+				Object segment = allocate.invoke(arena, size, 8L);
+				return new NativeBuffer((ByteBuffer) asByteBuffer
+						.invoke(segment), (Long) address.invoke(segment));
+			} catch (Exception e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		void closeArena(Object arena) {
+			try {
+				closeArena.invoke(arena);
+			} catch (Exception e) {
+				l.log(Level.WARNING, "Could not free native memory.", e);
+			}
+		}
+
+
+		int socket(int domain, int type, int protocol) {
+			try {
+				return (int) socket.invokeExact(domain, type, protocol);
+			} catch (Throwable t) {
+				throw new IllegalStateException(t);
+			}
+		}
+
+		int setsockopt(int fd, int level, int option, long value, int length) {
+			try {
+				return (int) setsockopt.invokeExact(fd, level, option, value,
+						length);
+			} catch (Throwable t) {
+				throw new IllegalStateException(t);
+			}
+		}
+
+		int bind(int fd, long address, int length) {
+			try {
+				return (int) bind.invokeExact(fd, address, length);
+			} catch (Throwable t) {
+				throw new IllegalStateException(t);
+			}
+		}
+
+		int poll(long fds, long count, int timeout) {
+			try {
+				return (int) poll.invokeExact(fds, count, timeout);
+			} catch (Throwable t) {
+				throw new IllegalStateException(t);
+			}
+		}
+
+		int recvmmsg(int fd, long headers, int count, int flags, long timeout) {
+			try {
+				return (int) recvmmsg.invokeExact(fd, headers, count, flags,
+						timeout);
+			} catch (Throwable t) {
+				throw new IllegalStateException(t);
+			}
+		}
+
+		int sendmmsg(int fd, long headers, int count, int flags) {
+			try {
+				return (int) sendmmsg.invokeExact(fd, headers, count, flags);
+			} catch (Throwable t) {
+				throw new IllegalStateException(t);
+			}
+		}
+
+		int eventfd(int initial, int flags) {
+			try {
+				return (int) eventfd.invokeExact(initial, flags);
+			} catch (Throwable t) {
+				throw new IllegalStateException(t);
+			}
+		}
+
+		long read(int fd, long buffer, long length) {
+			try {
+				return (long) read.invokeExact(fd, buffer, length);
+			} catch (Throwable t) {
+				throw new IllegalStateException(t);
+			}
+		}
+
+		long write(int fd, long buffer, long length) {
+			try {
+				return (long) write.invokeExact(fd, buffer, length);
+			} catch (Throwable t) {
+				throw new IllegalStateException(t);
+			}
+		}
+
+		void close(int fd) {
+			try {
+				int ignored = (int) close.invokeExact(fd);
+			} catch (Throwable t) {
+				throw new IllegalStateException(t);
+			}
+		}
+	}
+}
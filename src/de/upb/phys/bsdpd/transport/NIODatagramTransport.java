@@ -0,0 +1,180 @@
+/*
+ *    BSDPServer - Implements Apple's Boot Service Discover Protocol
+ *     in Java. "jbsdpd"
+ *    Copyright (C) 2015  Jan-Philipp Hülshoff <github@bklosr.de>
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package de.upb.phys.bsdpd.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Selector driven transport based on a non blocking DatagramChannel.
+ *
+ * The receiving thread sleeps in {@link Selector#select()} until a datagram is
+ * readable or {@link #wakeup()} is called, so there is no socket timeout to
+ * poll on. After a wakeup all waiting datagrams are read without selecting
+ * again, so a burst of requests costs one select.
+ *
+ * @author jph
+ *
+ */
+public class NIODatagramTransport implements BSDPTransport {
+
+	private static final Logger l = Logger.getLogger("bsdpd");
+
+	private final DatagramChannel channel;
+	private final Selector selector;
+	private final InetSocketAddress localAddress;
+
+	/**
+	 * Binds a new channel to the given port on all local addresses.
+	 *
+	 * @param port
+	 *            the port to bind.
+	 */
+	public NIODatagramTransport(int port) throws IOException {
+		this(new InetSocketAddress(port), false);
+	}
+
+	/**
+	 * Binds a new channel to the given local address.
+	 *
+	 * @param localAddress
+	 *            the address to bind.
+	 * @param reusePort
+	 *            set SO_REUSEPORT, so several channels can be bound to the
+	 *            same address and the kernel spreads the datagrams over them.
+	 */
+	public NIODatagramTransport(InetSocketAddress localAddress,
+			boolean reusePort) throws IOException {
+		this.localAddress = localAddress;
+		channel = DatagramChannel.open();
+		try {
+			channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+			if (reusePort) {
+				channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+			}
+			channel.setOption(StandardSocketOptions.SO_BROADCAST, true);
+			channel.bind(localAddress);
+			channel.configureBlocking(false);
+			selector = Selector.open();
+			channel.register(selector, SelectionKey.OP_READ);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return true if SO_REUSEPORT can be used on this platform.
+	 */
+	public static boolean isReusePortSupported() {
+		try {
+			DatagramChannel channel = DatagramChannel.open();
+			try {
+				return channel.supportedOptions().contains(
+						StandardSocketOptions.SO_REUSEPORT);
+			} finally {
+				channel.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	@Override
+	public int receive(ByteBuffer[] datagrams) throws IOException {
+		int count = drain(datagrams);
+		if (count == 0) {
+			selector.select();
+			selector.selectedKeys().clear();
+			count = drain(datagrams);
+		}
+		return count;
+	}
+
+	private int drain(ByteBuffer[] datagrams) throws IOException {
+		int count = 0;
+		while (count < datagrams.length) {
+			ByteBuffer datagram = datagrams[count];
+			datagram.clear();
+			if (channel.receive(datagram) == null) {
+				break;
+			}
+			datagram.flip();
+			count++;
+		}
+		return count;
+	}
+
+	@Override
+	public InetSocketAddress getLocalAddress() {
+		return localAddress;
+	}
+
+	@Override
+	public void send(ByteBuffer datagram, InetSocketAddress destination)
+			throws IOException {
+		if (channel.send(datagram, destination) == 0) {
+			throw new IOException("Send buffer full, datagram to "
+					+ destination + " dropped.");
+		}
+	}
+
+	@Override
+	public int send(ByteBuffer[] datagrams, InetSocketAddress[] destinations,
+			int count) throws IOException {
+		for (int i = 0; i < count; i++) {
+			try {
+				send(datagrams[i], destinations[i]);
+			} catch (IOException e) {
+				if (i == 0) {
+					throw e;
+				}
+				return i;
+			}
+		}
+		return count;
+	}
+
+	@Override
+	public void wakeup() {
+		selector.wakeup();
+	}
+
+	@Override
+	public void close() {
+		try {
+			selector.close();
+		} catch (IOException e) {
+			l.log(Level.WARNING, "Could not close selector.", e);
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			l.log(Level.WARNING, "Could not close channel.", e);
+		}
+	}
+}
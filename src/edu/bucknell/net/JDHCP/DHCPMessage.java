@@ -1,17 +1,22 @@
 package edu.bucknell.net.JDHCP;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
  * This class represents a DHCP Message.
  * 
+ * A message is not thread safe. It is meant to be built or decoded and encoded
+ * by one thread at a time; hand it to another thread through a queue or a
+ * similar safe publication.
+ * 
  * @author Jason Goldschmidt and Nick Stone
  * @version 1.1.1 9/06/1999
  */
@@ -33,6 +38,7 @@ public class DHCPMessage extends Object {
 	private byte file[] = new byte[128]; // Boot file name
 	private DHCPOptions optionsList = null; // internal representaton of
 	// DHCP Options
+	private byte[] optionsBuffer; // options field of the last internalize
 
 	private int gPort; // global port variable for object
 	private InetAddress destination_IP; // IP format of the servername
@@ -91,6 +97,31 @@ public class DHCPMessage extends Object {
 	 */
 	public static final int INFORM = 8;
 
+	/**
+	 * Length of the fixed fields in front of the options
+	 */
+	public static final int FIXED_FIELDS_LENGTH = 236;
+
+	/**
+	 * Offset and length of the sname field
+	 */
+	public static final int SNAME_OFFSET = 44;
+	public static final int SNAME_LENGTH = 64;
+
+	/**
+	 * Offset and length of the file field
+	 */
+	public static final int FILE_OFFSET = 108;
+	public static final int FILE_LENGTH = 128;
+
+	/**
+	 * Code of the option overload option and the fields it marks as used
+	 * for options
+	 */
+	public static final byte OPTION_OVERLOAD = 52;
+	public static final int OVERLOAD_FILE = 1;
+	public static final int OVERLOAD_SNAME = 2;
+
 	static {
 		if (BROADCAST_ADDR == null) {
 			try {
@@ -129,13 +160,13 @@ public class DHCPMessage extends Object {
 		xid = inMessage.getXid();
 		secs = inMessage.getSecs();
 		flags = inMessage.getFlags();
-		ciaddr = inMessage.getCiaddr();
-		yiaddr = inMessage.getYiaddr();
-		siaddr = inMessage.getSiaddr();
-		giaddr = inMessage.getGiaddr();
-		chaddr = inMessage.getChaddr();
-		sname = inMessage.getSname();
-		file = inMessage.getFile();
+		setCiaddr(inMessage.getCiaddr());
+		setYiaddr(inMessage.getYiaddr());
+		setSiaddr(inMessage.getSiaddr());
+		setGiaddr(inMessage.getGiaddr());
+		setChaddr(inMessage.getChaddr());
+		setSname(inMessage.getSname());
+		setFile(inMessage.getFile());
 		optionsList.internalize(inMessage.getOptions());
 
 	}
@@ -158,13 +189,13 @@ public class DHCPMessage extends Object {
 		xid = inMessage.getXid();
 		secs = inMessage.getSecs();
 		flags = inMessage.getFlags();
-		ciaddr = inMessage.getCiaddr();
-		yiaddr = inMessage.getYiaddr();
-		siaddr = inMessage.getSiaddr();
-		giaddr = inMessage.getGiaddr();
-		chaddr = inMessage.getChaddr();
-		sname = inMessage.getSname();
-		file = inMessage.getFile();
+		setCiaddr(inMessage.getCiaddr());
+		setYiaddr(inMessage.getYiaddr());
+		setSiaddr(inMessage.getSiaddr());
+		setGiaddr(inMessage.getGiaddr());
+		setChaddr(inMessage.getChaddr());
+		setSname(inMessage.getSname());
+		setFile(inMessage.getFile());
 		optionsList.internalize(inMessage.getOptions());
 	}
 
@@ -181,13 +212,13 @@ public class DHCPMessage extends Object {
 		xid = inMessage.getXid();
 		secs = inMessage.getSecs();
 		flags = inMessage.getFlags();
-		ciaddr = inMessage.getCiaddr();
-		yiaddr = inMessage.getYiaddr();
-		siaddr = inMessage.getSiaddr();
-		giaddr = inMessage.getGiaddr();
-		chaddr = inMessage.getChaddr();
-		sname = inMessage.getSname();
-		file = inMessage.getFile();
+		setCiaddr(inMessage.getCiaddr());
+		setYiaddr(inMessage.getYiaddr());
+		setSiaddr(inMessage.getSiaddr());
+		setGiaddr(inMessage.getGiaddr());
+		setChaddr(inMessage.getChaddr());
+		setSname(inMessage.getSname());
+		setFile(inMessage.getFile());
 		optionsList.internalize(inMessage.getOptions());
 	}
 
@@ -358,7 +389,7 @@ public class DHCPMessage extends Object {
 	// Purpose: convert a DHCPMessage object to a byte array.
 	// Precondition: a "well-formed" DHCPMessage object
 	// Postconditon: a byte array representation of that object is returned
-	public synchronized byte[] externalize() {
+	public byte[] externalize() {
 		ByteArrayOutputStream outBStream = new ByteArrayOutputStream();
 		DataOutputStream outStream = new DataOutputStream(outBStream);
 
@@ -393,6 +424,54 @@ public class DHCPMessage extends Object {
 		return data;
 	}
 
+	/**
+	 * Writes the DHCPMessage like {@link #externalize()} into a buffer, without
+	 * intermediate arrays.
+	 * 
+	 * @param out
+	 *            buffer to write to, starting at its position
+	 */
+	public void externalize(ByteBuffer out) {
+		out.put(op);
+		out.put(htype);
+		out.put(hlen);
+		out.put(hops);
+		out.putInt(xid);
+		out.putShort(secs);
+		out.putShort(flags);
+		out.put(ciaddr, 0, 4);
+		out.put(yiaddr, 0, 4);
+		out.put(siaddr, 0, 4);
+		out.put(giaddr, 0, 4);
+		out.put(chaddr, 0, 16);
+		out.put(sname, 0, 64);
+		out.put(file, 0, 128);
+		if (optionsList == null) {
+			Initialize();
+		}
+		externalizeOptions(optionsList, out);
+	}
+
+	/**
+	 * @return the options of the message
+	 */
+	protected DHCPOptions getOptionsList() {
+		if (optionsList == null) {
+			Initialize();
+		}
+		return optionsList;
+	}
+
+	/**
+	 * Writes the options of {@link #externalize(ByteBuffer)}. Subclasses may
+	 * add options while writing. The fixed fields are already written, so the
+	 * message starts {@link #FIXED_FIELDS_LENGTH} bytes before the position
+	 * of the buffer.
+	 */
+	protected void externalizeOptions(DHCPOptions options, ByteBuffer out) {
+		options.externalize(out);
+	}
+
 	/**
 	 * Convert a specified byte array containing a DHCP message into a
 	 * DHCPMessage object.
@@ -404,39 +483,89 @@ public class DHCPMessage extends Object {
 	// Precondition: a byte array containg a DHCPMessage object.
 	// Postconditon: the contents on the byte array are stored into
 	// the datamembers of the DHCPMessage object.
-	public synchronized DHCPMessage internalize(byte[] ibuff) {
-		ByteArrayInputStream inBStream = new ByteArrayInputStream(ibuff, 0,
-				ibuff.length);
-		DataInputStream inStream = new DataInputStream(inBStream);
+	public DHCPMessage internalize(byte[] ibuff) {
+		ByteBuffer in = ByteBuffer.wrap(ibuff);
 
 		try {
-			op = inStream.readByte();
-			htype = inStream.readByte();
-			hlen = inStream.readByte();
-			hops = inStream.readByte();
-			xid = inStream.readInt();
-			secs = inStream.readShort();
-			flags = inStream.readShort();
-			inStream.readFully(ciaddr, 0, 4);
-			inStream.readFully(yiaddr, 0, 4);
-			inStream.readFully(siaddr, 0, 4);
-			inStream.readFully(giaddr, 0, 4);
-			inStream.readFully(chaddr, 0, 16);
-			inStream.readFully(sname, 0, 64);
-			inStream.readFully(file, 0, 128);
-			byte[] options = new byte[312];
-			inStream.readFully(options, 0, 312);
+			op = in.get();
+			htype = in.get();
+			hlen = in.get();
+			hops = in.get();
+			xid = in.getInt();
+			secs = in.getShort();
+			flags = in.getShort();
+			in.get(ciaddr, 0, 4);
+			in.get(yiaddr, 0, 4);
+			in.get(siaddr, 0, 4);
+			in.get(giaddr, 0, 4);
+			in.get(chaddr, 0, 16);
+			in.get(sname, 0, 64);
+			in.get(file, 0, 128);
+			// The options field has at least 312 bytes, but may be longer.
+			int length = Math.max(312, OptionTable.scan(ibuff, 240,
+					ibuff.length) - 236);
+			// The options of a former internalize may still point into the
+			// buffer, so they are dropped before it is overwritten.
 			if (optionsList == null) {
 				Initialize();
 			}
-			optionsList.internalize(options);
-		} catch (IOException e) {
+			optionsList.clear();
+			if (optionsBuffer == null || optionsBuffer.length < length) {
+				optionsBuffer = new byte[length];
+			}
+			in.get(optionsBuffer, 0, length);
+			optionsList.internalize(optionsBuffer, length);
+			byte[] overload = optionsList.getOption(OPTION_OVERLOAD);
+			if (overload != null && overload.length == 1) {
+				// The file field is read before the sname field (RFC 3396).
+				if ((overload[0] & OVERLOAD_FILE) != 0) {
+					optionsList.internalizeOverloaded(file);
+				}
+				if ((overload[0] & OVERLOAD_SNAME) != 0) {
+					optionsList.internalizeOverloaded(sname);
+				}
+			}
+		} catch (BufferUnderflowException e) {
 			System.err.println(e);
 		} // end catch
 
 		return this;
 	}
 
+	/**
+	 * Resets the message to the state of a new message, so it can be used
+	 * again. The arrays of the fixed fields and the options buffer are kept.
+	 */
+	public void reset() {
+		op = 0;
+		htype = 0;
+		hlen = 0;
+		hops = 0;
+		xid = 0;
+		secs = 0;
+		flags = 0;
+		Arrays.fill(ciaddr, (byte) 0);
+		Arrays.fill(yiaddr, (byte) 0);
+		Arrays.fill(siaddr, (byte) 0);
+		Arrays.fill(giaddr, (byte) 0);
+		Arrays.fill(chaddr, (byte) 0);
+		Arrays.fill(sname, (byte) 0);
+		Arrays.fill(file, (byte) 0);
+		getOptionsList().clear();
+		destination_IP = BROADCAST_ADDR;
+		gPort = SERVER_PORT;
+	}
+
+	/**
+	 * Copies an address or name into a field, the rest of the field is
+	 * zeroed. The field keeps its length.
+	 */
+	private static void copy(byte[] from, byte[] to) {
+		int length = Math.min(from.length, to.length);
+		System.arraycopy(from, 0, to, 0, length);
+		Arrays.fill(to, length, to.length, (byte) 0);
+	}
+
 	/**************************************************************/
 	/* set* methods for changing DHCPMessage datamembers. */
 	/**************************************************************/
@@ -520,7 +649,7 @@ public class DHCPMessage extends Object {
 	 *            client IP address
 	 */
 	public void setCiaddr(byte[] inCiaddr) {
-		ciaddr = inCiaddr;
+		copy(inCiaddr, ciaddr);
 	}
 
 	/**
@@ -530,7 +659,7 @@ public class DHCPMessage extends Object {
 	 *            'your' (client) IP address
 	 */
 	public void setYiaddr(byte[] inYiaddr) {
-		yiaddr = inYiaddr;
+		copy(inYiaddr, yiaddr);
 	}
 
 	/**
@@ -540,7 +669,7 @@ public class DHCPMessage extends Object {
 	 *            address of next server to use in bootstrap
 	 */
 	public void setSiaddr(byte[] inSiaddr) {
-		siaddr = inSiaddr;
+		copy(inSiaddr, siaddr);
 	}
 
 	/**
@@ -550,7 +679,7 @@ public class DHCPMessage extends Object {
 	 *            relay agent IP address
 	 */
 	public void setGiaddr(byte[] inGiaddr) {
-		giaddr = inGiaddr;
+		copy(inGiaddr, giaddr);
 	}
 
 	/**
@@ -560,7 +689,7 @@ public class DHCPMessage extends Object {
 	 *            client hardware address
 	 */
 	public void setChaddr(byte[] inChaddr) {
-		chaddr = inChaddr;
+		copy(inChaddr, chaddr);
 	}
 
 	/**
@@ -570,7 +699,7 @@ public class DHCPMessage extends Object {
 	 *            server host name
 	 */
 	public void setSname(byte[] inSname) {
-		sname = inSname;
+		copy(inSname, sname);
 	}
 
 	/**
@@ -580,7 +709,7 @@ public class DHCPMessage extends Object {
 	 *            boot file name
 	 */
 	public void setFile(byte[] inFile) {
-		file = inFile;
+		copy(inFile, file);
 	}
 
 	/**
@@ -608,6 +737,16 @@ public class DHCPMessage extends Object {
 		}
 	}
 
+	/**
+	 * Set message destination IP
+	 * 
+	 * @param inDestination
+	 *            message destination IP
+	 */
+	public void setDestination(InetAddress inDestination) {
+		destination_IP = inDestination;
+	}
+
 	/**************************************************************
 	 * get* accesser fuctions return value of private data members*
 	 **************************************************************/
@@ -747,6 +886,17 @@ public class DHCPMessage extends Object {
 		return optionsList.getOption(inOptNum);
 	}
 
+	/**
+	 * Returns the table of the DHCP options, for reading them without copying
+	 * (see {@link OptionTable#array(int)}). It must not be changed.
+	 */
+	public OptionTable getOptionTable() {
+		if (optionsList == null) {
+			Initialize();
+		}
+		return optionsList.getTable();
+	}
+
 	/**
 	 * Removes the specified DHCP option that matches the input code.
 	 * 
@@ -1,9 +1,7 @@
 package edu.bucknell.net.JDHCP;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.Enumeration;
-import java.util.Hashtable;
-import java.util.Map.Entry;
 
 /**
  * This class represents a linked list of options for a DHCP message. Its
@@ -14,26 +12,17 @@ import java.util.Map.Entry;
  */
 public class DHCPOptions {
 
-	/**
-	 *This inner class represent an entry in the Option Table
-	 */
-	class DHCPOptionsEntry extends Object {
-		protected byte code;
-		protected byte length;
-		protected byte content[];
+	private final OptionTable optionsTable = new OptionTable();
 
-		public DHCPOptionsEntry(byte entryCode, byte entryLength,
-				byte entryContent[]) {
-			code = entryCode;
-			length = entryLength;
-			content = entryContent;
-		}
+	public DHCPOptions() {
 	}
 
-	private Hashtable<Byte, DHCPOptionsEntry> optionsTable = null;
-
-	public DHCPOptions() {
-		optionsTable = new Hashtable<Byte, DHCPOptionsEntry>();
+	/**
+	 * @return the table holding the options, for reading them without
+	 *         copying. It must not be changed.
+	 */
+	public OptionTable getTable() {
+		return optionsTable;
 	}
 
 	/**
@@ -43,7 +32,7 @@ public class DHCPOptions {
 	 *            The code of option to be removed
 	 */
 	public void removeOption(byte entryCode) {
-		optionsTable.remove(new Byte(entryCode));
+		optionsTable.remove(entryCode);
 	}
 
 	/**
@@ -54,7 +43,7 @@ public class DHCPOptions {
 	 * @return true if option is set, otherwise false
 	 */
 	public boolean contains(byte entryCode) {
-		return optionsTable.containsKey(new Byte(entryCode));
+		return optionsTable.contains(entryCode);
 	}
 
 	/**
@@ -75,12 +64,7 @@ public class DHCPOptions {
 	 *         returned if option is not set.
 	 */
 	public byte[] getOption(byte entryCode) {
-		if (this.contains(entryCode)) {
-			DHCPOptionsEntry ent = optionsTable.get(new Byte(entryCode));
-			return ent.content;
-		} else {
-			return null;
-		}
+		return optionsTable.get(entryCode);
 	}
 
 	/**
@@ -92,28 +76,14 @@ public class DHCPOptions {
 	 *            [] Content of node option
 	 */
 	public void setOption(byte entryCode, byte value[]) {
-		DHCPOptionsEntry opt = new DHCPOptionsEntry(entryCode,
-				(byte) value.length, value);
-		optionsTable.put(new Byte(entryCode), opt);
+		optionsTable.set(entryCode, value);
 	}
 
 	/**
-	 * Returns the option value of a specified option code in a byte array
-	 * 
-	 * @param length
-	 *            Length of option content
-	 * @param position
-	 *            Location in array of option node
-	 * @param options
-	 *            [] The byte array of options
-	 * @return byte array containing the value for the option
+	 * Removes all options.
 	 */
-	private byte[] getArrayOption(int length, int position, byte options[]) {
-		byte value[] = new byte[length];
-		for (int i = 0; i < length; i++) {
-			value[i] = options[position + i];
-		}
-		return value;
+	public void clear() {
+		optionsTable.clear();
 	}
 
 	/**
@@ -123,19 +93,54 @@ public class DHCPOptions {
 	 *            [] The byte array representation of the options list
 	 */
 	public void internalize(byte[] optionsArray) {
+		internalize(optionsArray, optionsArray.length);
+	}
+
+	/**
+	 * Like {@link #internalize(byte[])} for the first bytes of the array.
+	 * 
+	 * @param length
+	 *            number of bytes of the options, with vendor magic cookie
+	 */
+	public void internalize(byte[] optionsArray, int length) {
+		optionsTable.parse(optionsArray, 4, length); // ignore vendor magic cookie
+	}
+
+	/**
+	 * Adds the options encapsulated in an option of this list to a table,
+	 * without copying the option value.
+	 * 
+	 * @param entryCode
+	 *            code of the option with the encapsulated options, e.g. 43
+	 */
+	public void internalizeEncapsulated(byte entryCode, OptionTable into) {
+		into.parse(optionsTable, entryCode);
+	}
 
-		/* Assume options valid and correct */
-		int pos = 4; // ignore vendor magic cookie
-		byte code, length;
-		byte value[];
+	/**
+	 * Adds the options of an overloaded sname or file field (option 52).
+	 * Options already present are continued, not replaced (RFC 3396).
+	 * 
+	 * @param field
+	 *            the field, without vendor magic cookie
+	 */
+	public void internalizeOverloaded(byte[] field) {
+		optionsTable.parse(field, 0, field.length, true);
+	}
 
-		while (optionsArray[pos] != (byte) 255) { // until end option
-			code = optionsArray[pos++];
-			length = optionsArray[pos++];
-			value = getArrayOption(length, pos, optionsArray);
-			setOption(code, value);
-			pos += length; // increment position pointer
+	/**
+	 * @param excludedCode
+	 *            code of the option not to count or -1
+	 * @return length of the encoded options with header and payload, without
+	 *         vendor magic cookie and end option.
+	 */
+	public int getEncodedLength(int excludedCode) {
+		int byteCount = optionsTable.encodedLength();
+		if (excludedCode != -1 && optionsTable.contains(excludedCode)) {
+			byteCount -= OptionTable.encodedLength(optionsTable
+					.length(excludedCode));
 		}
+		return byteCount;
 	}
 
 	/**
@@ -144,12 +149,7 @@ public class DHCPOptions {
 	 * @return Current length with header and payload.
 	 */
 	public int checkLength() {
-		int byteCount = 0;
-		for (Entry<Byte, DHCPOptionsEntry> e : optionsTable.entrySet()) {
-			byteCount++; // Identifier Byte
-			byteCount++; // Length Byte
-			byteCount += e.getValue().content.length; // Data length
-		}
+		int byteCount = optionsTable.encodedLength();
 		if (byteCount > 311) {
 			throw new IllegalStateException(
 					"BSDP Vendor Option payload must be less or equal than 255 bytes.");
@@ -175,36 +175,56 @@ public class DHCPOptions {
 		options[2] = (byte) 83;
 		options[3] = (byte) 99;
 
-		int position = 4;
-		for (Enumeration<DHCPOptionsEntry> e = optionsTable.elements(); e
-				.hasMoreElements();) {
-			DHCPOptionsEntry entry = e.nextElement();
-			options[position++] = entry.code;
-			options[position++] = entry.length;
-			for (int i = 0; i < (0x0000FF & entry.length); ++i) {
-				options[position++] = entry.content[i];
-			}
-		}
+		int position = optionsTable.write(options, 4);
 		options[position] = (byte) 255; // insert end option
 		return options;
 	}
 
+	/**
+	 * Writes the options like {@link #externalize()} into a buffer.
+	 * 
+	 * @param out
+	 *            buffer to write to, starting at its position
+	 */
+	public void externalize(ByteBuffer out) {
+		externalizeExcept(out, -1);
+		out.put((byte) 255); // insert end option
+	}
+
+	/**
+	 * Writes the vendor magic cookie and all options but one into a buffer.
+	 * The end option is not written, so more options can be appended.
+	 * 
+	 * @param out
+	 *            buffer to write to, starting at its position
+	 * @param excludedCode
+	 *            code of the option not to write or -1
+	 */
+	public void externalizeExcept(ByteBuffer out, int excludedCode) {
+		out.put((byte) 99); // insert vendor magic cookie
+		out.put((byte) 130);
+		out.put((byte) 83);
+		out.put((byte) 99);
+
+		optionsTable.write(out, excludedCode);
+	}
+
 	@Override
 	public String toString() {
 		String entries = "";
-		for (Enumeration<DHCPOptionsEntry> e = optionsTable.elements(); e
-				.hasMoreElements();) {
-			DHCPOptionsEntry entry = e.nextElement();
-			switch (entry.code) {
+		for (int i = 0; i < optionsTable.size(); i++) {
+			int code = optionsTable.codeAt(i);
+			byte[] content = optionsTable.get(code);
+			switch (code) {
 			case 17:
-				entries += "id=ROOT_PATH,path=" + new String(entry.content)
+				entries += "id=ROOT_PATH,path=" + new String(content)
 						+ ";";
 			case 43:
-				// entries += "id=VENDOR_OPTIONS,length=" + entry.length + ",data=" + Arrays.toString(entry.content) + ";";
+				// entries += "id=VENDOR_OPTIONS,length=" + content.length + ",data=" + Arrays.toString(content) + ";";
 				break;
 			case 53:
 				entries += "id=DHCP_MESSAGE_TYPE,data=";
-				switch (entry.content[0]) {
+				switch (content[0]) {
 				case 1:
 					entries += "DHCPDISCOVER;";
 					break;
@@ -230,25 +250,25 @@ public class DHCPOptions {
 					entries += "DHCPINFORM;";
 					break;
 				default:
-					entries += entry.content[0] + ";";
+					entries += content[0] + ";";
 					break;
 				}
 				break;
 			case 57:
 				int messageSize = 0;
-				messageSize |= entry.content[0] & 0xFF;
+				messageSize |= content[0] & 0xFF;
 				messageSize <<= 8;
-				messageSize |= entry.content[1] & 0xFF;
+				messageSize |= content[1] & 0xFF;
 
 				entries += "id=DHCP_MESSAGE_SIZE,data=" + messageSize + ";";
 				break;
 			case 60:
 				entries += "id=VENDOR_CLASS_IDENTIFIER,data="
-						+ new String(entry.content) + ";";
+						+ new String(content) + ";";
 				break;
 			default:
-				entries += "id=" + entry.code + ",length=" + entry.length
-						+ ",data=" + Arrays.toString(entry.content) + ";";
+				entries += "id=" + code + ",length=" + content.length
+						+ ",data=" + Arrays.toString(content) + ";";
 				break;
 			}
 
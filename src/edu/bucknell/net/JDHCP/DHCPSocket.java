@@ -10,6 +10,9 @@ import java.net.UnknownHostException;
 /**
  * This class represents a Socket for sending DHCP Messages
  * 
+ * Sending and receiving only use local buffers and the thread safe
+ * DatagramSocket. The messages must not be used by other threads meanwhile.
+ * 
  * @author Jason Goldschmidt
  * @version 1.1.1 9/06/1999
  * @see java.net.DatagramSocket
@@ -59,7 +62,7 @@ public class DHCPSocket extends DatagramSocket {
 	 * @param inMessage
 	 *            well-formed DHCPMessage to be sent to a server
 	 */
-	public synchronized void send(DHCPMessage inMessage)
+	public void send(DHCPMessage inMessage)
 			throws java.io.IOException {
 		byte data[] = new byte[packetSize];
 		data = inMessage.externalize();
@@ -83,7 +86,7 @@ public class DHCPSocket extends DatagramSocket {
 	 * @param outMessage
 	 *            DHCPMessage object to receive new message into
 	 */
-	public synchronized boolean receive(DHCPMessage outMessage) {
+	public boolean receive(DHCPMessage outMessage) {
 		try {
 			DatagramPacket incoming = new DatagramPacket(new byte[packetSize],
 					packetSize);
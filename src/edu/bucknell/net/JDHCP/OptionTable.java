@@ -0,0 +1,357 @@
+package edu.bucknell.net.JDHCP;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Table of options indexed by their one byte code. Used for the DHCP options
+ * and the BSDP options in option 43.
+ *
+ * Each of the 256 codes has a slot, so looking up, setting and writing an
+ * option does not box the code or allocate an entry. Parsed options stay in
+ * the parsed array, only the offset and length of their value are recorded.
+ * Options are enumerated in the order they were first set or parsed.
+ *
+ * {@link #get(int)} copies a parsed value out of the parsed array. Readers on
+ * the hot path use {@link #array(int)}, {@link #offset(int)} and
+ * {@link #length(int)} or {@link #getUnsigned(int)} instead, which neither
+ * allocate nor change the table.
+ *
+ * Values longer than 255 bytes are written as several options with the same
+ * code, and such options are concatenated again when parsed (RFC 3396).
+ *
+ * @author jph
+ */
+public class OptionTable {
+
+	private static final int ABSENT = -1;
+
+	/** Values set or already copied out of the backing array. */
+	private final byte[][] values = new byte[256][];
+	/** Offsets of the values in the backing array, ABSENT if not present. */
+	private final int[] offsets = new int[256];
+	private final int[] lengths = new int[256];
+	/** Codes in enumeration order. */
+	private final byte[] order = new byte[256];
+	private int size;
+	private byte[] backing;
+	/** Codes seen by the current parse, later instances are appended. */
+	private final boolean[] parsed = new boolean[256];
+
+	public OptionTable() {
+		for (int i = 0; i < offsets.length; i++) {
+			offsets[i] = ABSENT;
+		}
+	}
+
+	public boolean contains(int code) {
+		return offsets[code & 0xFF] != ABSENT;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @return number of options
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return code of the option at the index in enumeration order
+	 */
+	public int codeAt(int index) {
+		return order[index] & 0xFF;
+	}
+
+	/**
+	 * @return length of the option value or -1 if it is not present
+	 */
+	public int length(int code) {
+		return contains(code) ? lengths[code & 0xFF] : -1;
+	}
+
+	/**
+	 * @return the array holding the option value, starting at
+	 *         {@link #offset(int)}, or null if it is not present. It is not
+	 *         copied and must not be changed.
+	 */
+	public byte[] array(int code) {
+		code &= 0xFF;
+		if (offsets[code] == ABSENT) {
+			return null;
+		}
+		return values[code] != null ? values[code] : backing;
+	}
+
+	/**
+	 * @return offset of the option value in {@link #array(int)} or -1 if it is
+	 *         not present
+	 */
+	public int offset(int code) {
+		code &= 0xFF;
+		if (offsets[code] == ABSENT) {
+			return -1;
+		}
+		return values[code] != null ? 0 : offsets[code];
+	}
+
+	/**
+	 * @return the option value as unsigned big endian number, or -1 if it is
+	 *         not present or longer than three bytes
+	 */
+	public int getUnsigned(int code) {
+		code &= 0xFF;
+		int length = length(code);
+		if (length < 0 || length > 3) {
+			return -1;
+		}
+		byte[] data = array(code);
+		int offset = offset(code);
+		int value = 0;
+		for (int i = 0; i < length; i++) {
+			value = value << 8 | data[offset + i] & 0xFF;
+		}
+		return value;
+	}
+
+	/**
+	 * @return the option value or null if it is not present. A parsed value
+	 *         is copied on the first call only.
+	 */
+	public byte[] get(int code) {
+		code &= 0xFF;
+		if (offsets[code] == ABSENT) {
+			return null;
+		}
+		byte[] value = values[code];
+		if (value == null) {
+			value = new byte[lengths[code]];
+			System.arraycopy(backing, offsets[code], value, 0, value.length);
+			values[code] = value;
+		}
+		return value;
+	}
+
+	/**
+	 * Sets an option. The value is not copied. An option that is already
+	 * present keeps its place in the enumeration order.
+	 */
+	public void set(int code, byte[] value) {
+		code &= 0xFF;
+		if (offsets[code] == ABSENT) {
+			order[size++] = (byte) code;
+		}
+		values[code] = value;
+		offsets[code] = 0;
+		lengths[code] = value.length;
+	}
+
+	public void remove(int code) {
+		code &= 0xFF;
+		if (offsets[code] == ABSENT) {
+			return;
+		}
+		offsets[code] = ABSENT;
+		values[code] = null;
+		parsed[code] = false;
+		for (int i = 0; i < size; i++) {
+			if ((order[i] & 0xFF) == code) {
+				System.arraycopy(order, i + 1, order, i, size - i - 1);
+				size--;
+				break;
+			}
+		}
+	}
+
+	public void clear() {
+		for (int i = 0; i < size; i++) {
+			int code = order[i] & 0xFF;
+			offsets[code] = ABSENT;
+			values[code] = null;
+			parsed[code] = false;
+		}
+		size = 0;
+		backing = null;
+	}
+
+	/**
+	 * Adds the options encoded in the array between pos and end. Pad options
+	 * are skipped, the end option or a truncated option stops parsing. The
+	 * array is kept and must not be modified afterwards.
+	 */
+	public void parse(byte[] data, int pos, int end) {
+		parse(data, pos, end, false);
+	}
+
+	/**
+	 * Like {@link #parse(byte[], int, int)}.
+	 *
+	 * @param continued
+	 *            true if the options continue options parsed before, e.g. in
+	 *            the overloaded file and sname fields. Options seen there
+	 *            are appended to instead of replaced.
+	 */
+	public void parse(byte[] data, int pos, int end, boolean continued) {
+		// Values still pointing into the former array are copied out first.
+		for (int i = 0; i < size; i++) {
+			get(order[i]);
+			if (!continued) {
+				parsed[order[i] & 0xFF] = false;
+			}
+		}
+		backing = data;
+		end = Math.min(end, data.length);
+		while (pos < end) {
+			int code = data[pos++] & 0xFF;
+			if (code == 255) { // end option
+				return;
+			}
+			if (code == 0) { // pad option
+				continue;
+			}
+			if (pos >= end) {
+				return;
+			}
+			int length = data[pos++] & 0xFF;
+			if (pos + length > end) {
+				return;
+			}
+			if (parsed[code]) {
+				append(code, data, pos, length);
+				pos += length;
+				continue;
+			}
+			if (offsets[code] == ABSENT) {
+				order[size++] = (byte) code;
+			}
+			parsed[code] = true;
+			values[code] = null;
+			offsets[code] = pos;
+			lengths[code] = length;
+			pos += length;
+		}
+	}
+
+	/**
+	 * Adds the options encapsulated in an option of another table, e.g. the
+	 * BSDP options in option 43, without copying its value.
+	 */
+	public void parse(OptionTable outer, int code) {
+		code &= 0xFF;
+		if (outer.offsets[code] == ABSENT) {
+			return;
+		}
+		if (outer.values[code] != null) {
+			parse(outer.values[code], 0, outer.lengths[code]);
+		} else {
+			parse(outer.backing, outer.offsets[code], outer.offsets[code]
+					+ outer.lengths[code]);
+		}
+	}
+
+	/**
+	 * @return position after the end option of the options encoded in the
+	 *         array between pos and end, or end if there is none.
+	 */
+	public static int scan(byte[] data, int pos, int end) {
+		end = Math.min(end, data.length);
+		while (pos < end) {
+			int code = data[pos++] & 0xFF;
+			if (code == 255) {
+				return pos;
+			}
+			if (code != 0 && pos < end) {
+				pos += 1 + (data[pos] & 0xFF);
+			}
+		}
+		return end;
+	}
+
+	private void append(int code, byte[] data, int pos, int length) {
+		byte[] value = get(code);
+		byte[] concatenated = new byte[value.length + length];
+		System.arraycopy(value, 0, concatenated, 0, value.length);
+		System.arraycopy(data, pos, concatenated, value.length, length);
+		values[code] = concatenated;
+		offsets[code] = 0;
+		lengths[code] = concatenated.length;
+	}
+
+	/**
+	 * @return number of bytes of the encoded options, without end option
+	 */
+	public int encodedLength() {
+		int byteCount = 0;
+		for (int i = 0; i < size; i++) {
+			byteCount += encodedLength(lengths[order[i] & 0xFF]);
+		}
+		return byteCount;
+	}
+
+	/**
+	 * @return number of bytes of an option with a value of the given length,
+	 *         split into several options if it is longer than 255 bytes.
+	 */
+	public static int encodedLength(int valueLength) {
+		int instances = Math.max(1, (valueLength + 254) / 255);
+		return 2 * instances + valueLength;
+	}
+
+	/**
+	 * Writes the options but one into a buffer, without end option.
+	 *
+	 * @param excludedCode
+	 *            code of the option not to write or -1
+	 */
+	public void write(ByteBuffer out, int excludedCode) {
+		for (int i = 0; i < size; i++) {
+			int code = order[i] & 0xFF;
+			if (code == excludedCode) {
+				continue;
+			}
+			byte[] data = values[code] != null ? values[code] : backing;
+			int offset = values[code] != null ? 0 : offsets[code];
+			int remaining = lengths[code];
+			do {
+				int length = Math.min(remaining, 255);
+				out.put((byte) code);
+				out.put((byte) length);
+				out.put(data, offset, length);
+				offset += length;
+				remaining -= length;
+			} while (remaining > 0);
+		}
+	}
+
+	/**
+	 * Writes the options into an array, without end option.
+	 *
+	 * @return position after the last option written
+	 */
+	public int write(byte[] out, int position) {
+		for (int i = 0; i < size; i++) {
+			int code = order[i] & 0xFF;
+			byte[] data = values[code] != null ? values[code] : backing;
+			int offset = values[code] != null ? 0 : offsets[code];
+			int remaining = lengths[code];
+			do {
+				int length = Math.min(remaining, 255);
+				out[position++] = (byte) code;
+				out[position++] = (byte) length;
+				System.arraycopy(data, offset, out, position, length);
+				position += length;
+				offset += length;
+				remaining -= length;
+			} while (remaining > 0);
+		}
+		return position;
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "@" + hashCode() + "[size=" + size
+				+ ",encodedLength=" + encodedLength() + "]";
+	}
+}